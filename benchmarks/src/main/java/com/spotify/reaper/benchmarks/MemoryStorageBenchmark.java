@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.benchmarks;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.SegmentGenerator;
+import com.spotify.reaper.storage.MemoryStorage;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Segment queries done by the repair runners, on a run which is half way done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MemoryStorageBenchmark {
+
+  @Param({"1000", "100000"})
+  public int segmentCount;
+
+  private MemoryStorage storage;
+  private long runId;
+
+  @Setup
+  public void setUp() throws ReaperException {
+    storage = new MemoryStorage();
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder("cluster", "keyspace", Sets.newHashSet("table")));
+    RepairRun run = storage.addRepairRun(
+        new RepairRun.Builder("cluster", unit.getId(), DateTime.now(), 0.9, segmentCount,
+                              RepairParallelism.PARALLEL));
+    runId = run.getId();
+
+    List<RingRange> ranges = new SegmentGenerator(Rings.MURMUR3)
+        .generateSegments(segmentCount, Rings.tokens(Rings.MURMUR3, 1, 1, 42));
+    List<RepairSegment.Builder> segments = Lists.newArrayListWithCapacity(ranges.size());
+    for (int i = 0; i < ranges.size(); i++) {
+      RepairSegment.Builder segment = new RepairSegment.Builder(runId, ranges.get(i), unit.getId());
+      if (i < ranges.size() / 2) {
+        segment.state(RepairSegment.State.DONE);
+      }
+      segments.add(segment);
+    }
+    storage.addRepairSegments(segments, runId);
+  }
+
+  @Benchmark
+  public Optional<RepairSegment> getNextFreeSegment() {
+    return storage.getNextFreeSegment(runId);
+  }
+
+  @Benchmark
+  public int getSegmentAmountForRepairRun() {
+    return storage.getSegmentAmountForRepairRun(runId, RepairSegment.State.DONE);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.benchmarks;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.RingSnapshot;
+import com.spotify.reaper.service.SegmentGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range to replica lookups for every segment of a run, as done when repairing segments, plus
+ * the underlying {@link RingRange#encloses(RingRange)} check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RingLookupBenchmark {
+
+  @Param({Rings.MURMUR3, Rings.RANDOM})
+  public String partitioner;
+
+  @Param({"256"})
+  public int vnodes;
+
+  @Param({"10", "200", "2000"})
+  public int nodes;
+
+  private Map<RingRange, List<String>> rangeToEndpoint;
+  private RingSnapshot snapshot;
+  private RingRange[] segments;
+  private int next;
+
+  @Setup
+  public void setUp() throws ReaperException {
+    List<BigInteger> tokens = Rings.tokens(partitioner, nodes, vnodes, 42);
+    rangeToEndpoint = Rings.rangeToEndpoint(tokens, nodes);
+    snapshot = new RingSnapshot(rangeToEndpoint);
+    List<RingRange> segmentList =
+        new SegmentGenerator(partitioner).generateSegments(nodes * vnodes, tokens);
+    segments = segmentList.toArray(new RingRange[segmentList.size()]);
+  }
+
+  private RingRange nextSegment() {
+    next = (next + 1) % segments.length;
+    return segments[next];
+  }
+
+  @Benchmark
+  public boolean encloses() {
+    RingRange segment = nextSegment();
+    return segments[(next + 1) % segments.length].encloses(segment);
+  }
+
+  @Benchmark
+  public List<String> snapshotLookup() {
+    return snapshot.tokenRangeToEndpoint(nextSegment());
+  }
+
+  /**
+   * The scan over all ranges that the ring snapshot replaced, for comparison.
+   */
+  @Benchmark
+  public List<String> linearLookup() {
+    RingRange segment = nextSegment();
+    for (Map.Entry<RingRange, List<String>> entry : rangeToEndpoint.entrySet()) {
+      if (entry.getKey().encloses(segment)) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.benchmarks;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.spotify.reaper.service.RingRange;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates realistic vnode token rings for the benchmarks.
+ */
+final class Rings {
+
+  static final String MURMUR3 = "org.apache.cassandra.dht.Murmur3Partitioner";
+  static final String RANDOM = "org.apache.cassandra.dht.RandomPartitioner";
+
+  private static final int REPLICATION_FACTOR = 3;
+
+  private Rings() {
+  }
+
+  /**
+   * @return nodes * vnodes distinct random tokens of the given partitioner, in ring order.
+   */
+  static List<BigInteger> tokens(String partitioner, int nodes, int vnodes, long seed) {
+    Random random = new Random(seed);
+    List<BigInteger> tokens = Lists.newArrayListWithCapacity(nodes * vnodes);
+    for (int i = 0; i < nodes * vnodes; i++) {
+      if (MURMUR3.equals(partitioner)) {
+        tokens.add(BigInteger.valueOf(random.nextLong()));
+      } else {
+        tokens.add(new BigInteger(127, random));
+      }
+    }
+    Collections.sort(tokens);
+    return tokens;
+  }
+
+  /**
+   * @return the ranges between the given tokens, each owned by the next replication factor nodes.
+   */
+  static Map<RingRange, List<String>> rangeToEndpoint(List<BigInteger> tokens, int nodes) {
+    Map<RingRange, List<String>> rangeToEndpoint = Maps.newLinkedHashMap();
+    for (int i = 0; i < tokens.size(); i++) {
+      List<String> replicas = Lists.newArrayListWithCapacity(REPLICATION_FACTOR);
+      for (int r = 0; r < REPLICATION_FACTOR; r++) {
+        replicas.add("node" + ((i + r) % nodes));
+      }
+      rangeToEndpoint.put(new RingRange(tokens.get(i), tokens.get((i + 1) % tokens.size())),
+                          replicas);
+    }
+    return rangeToEndpoint;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.benchmarks;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.SegmentGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SegmentGeneratorBenchmark {
+
+  @Param({Rings.MURMUR3, Rings.RANDOM})
+  public String partitioner;
+
+  @Param({"16", "256"})
+  public int vnodes;
+
+  @Param({"10", "200", "2000"})
+  public int nodes;
+
+  @Param({"100"})
+  public int segmentCount;
+
+  private SegmentGenerator generator;
+  private List<BigInteger> tokens;
+
+  @Setup
+  public void setUp() throws ReaperException {
+    generator = new SegmentGenerator(partitioner);
+    tokens = Rings.tokens(partitioner, nodes, vnodes, 42);
+  }
+
+  @Benchmark
+  public List<RingRange> generateSegments() throws ReaperException {
+    return generator.generateSegments(segmentCount, tokens);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.SegmentGenerator;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing the segments of a new repair run into PostgreSQL, with the COPY protocol and with
+ * batches of inserts. Needs a database prepared with src/main/db/reaper_db.sql, given with the
+ * system properties reaper.db.url, reaper.db.user and reaper.db.password. The benchmark adds a
+ * cluster, repair unit and repair run of its own into the database, and deletes them afterwards.
+ * It lives in the package of PostgresStorage to call its package-private batch insert.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PostgresSegmentInsertBenchmark {
+
+  private static final String CLUSTER_NAME = "reaper_benchmark";
+
+  @Param({"1000", "10000", "100000"})
+  public int segmentCount;
+
+  @Param({"copy", "batch"})
+  public String insertMethod;
+
+  private DBI jdbi;
+  private PostgresStorage storage;
+  private List<RepairSegment.Builder> segments;
+  private long runId;
+
+  @Setup
+  public void setUp() throws ReaperException {
+    jdbi = new DBI(System.getProperty("reaper.db.url", "jdbc:postgresql://localhost/reaper"),
+                   System.getProperty("reaper.db.user", "reaper"),
+                   System.getProperty("reaper.db.password", ""));
+    storage = new PostgresStorage(jdbi);
+    tearDown();
+
+    storage.addCluster(new Cluster(CLUSTER_NAME, "org.apache.cassandra.dht.Murmur3Partitioner",
+                                   Sets.newHashSet("127.0.0.1")));
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder(CLUSTER_NAME, "keyspace", Sets.newHashSet("table")));
+    RepairRun run = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, unit.getId(), DateTime.now(), 0.9, segmentCount,
+                              RepairParallelism.PARALLEL));
+    runId = run.getId();
+
+    List<RingRange> ranges = new SegmentGenerator("org.apache.cassandra.dht.Murmur3Partitioner")
+        .generateSegments(segmentCount, Collections.singletonList(BigInteger.valueOf(42)));
+    segments = Lists.newArrayListWithCapacity(ranges.size());
+    for (RingRange range : ranges) {
+      segments.add(new RepairSegment.Builder(runId, range, unit.getId()));
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteSegments() {
+    try (Handle h = jdbi.open()) {
+      h.execute("DELETE FROM repair_segment WHERE run_id = ?", runId);
+      h.execute("DELETE FROM repair_segment_count WHERE run_id = ?", runId);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    try (Handle h = jdbi.open()) {
+      h.execute("DELETE FROM repair_segment WHERE repair_unit_id IN "
+                + "(SELECT id FROM repair_unit WHERE cluster_name = ?)", CLUSTER_NAME);
+      h.execute("DELETE FROM repair_segment_count WHERE run_id IN "
+                + "(SELECT id FROM repair_run WHERE cluster_name = ?)", CLUSTER_NAME);
+      h.execute("DELETE FROM repair_run WHERE cluster_name = ?", CLUSTER_NAME);
+      h.execute("DELETE FROM repair_unit WHERE cluster_name = ?", CLUSTER_NAME);
+      h.execute("DELETE FROM cluster WHERE name = ?", CLUSTER_NAME);
+    }
+  }
+
+  @Benchmark
+  public void addRepairSegments() {
+    if ("copy".equals(insertMethod)) {
+      storage.addRepairSegments(segments, runId);
+    } else {
+      storage.addRepairSegmentsInBatches(segments, runId);
+    }
+  }
+}
@@ -1,6 +1,6 @@
 --
 -- PostgreSQL schema for cassandra-reaper database
--- Assumes PostgreSQL version 9.3 or newer
+-- Assumes PostgreSQL version 9.5 or newer, for FOR UPDATE SKIP LOCKED and INSERT ... ON CONFLICT
 --
 
 -- CREATE DATABASE reaper_db;
@@ -59,6 +59,8 @@ CREATE TABLE IF NOT EXISTS "repair_segment" (
 -- see (Java) RepairSegment.State for state values
   "state"            SMALLINT    NOT NULL,
   "coordinator_host" TEXT                     DEFAULT NULL,
+-- number of the repair command on the coordinator, to follow it after a restart of Reaper
+  "repair_command_id" INT                     DEFAULT NULL,
   "start_time"       TIMESTAMP WITH TIME ZONE DEFAULT NULL,
   "end_time"         TIMESTAMP WITH TIME ZONE DEFAULT NULL,
   "fail_count"       INT         NOT NULL     DEFAULT 0
@@ -70,6 +72,20 @@ ON "repair_segment" USING BTREE ("run_id" ASC, "fail_count" ASC);
 CREATE INDEX "repair_segment_state_idx"
 ON "repair_segment" USING BTREE ("state");
 
+-- Only covers the free (NOT_STARTED) segments, in the order the next one is taken.
+CREATE INDEX "repair_segment_free_idx"
+ON "repair_segment" USING BTREE ("run_id" ASC, "fail_count" ASC, "start_token" ASC)
+WHERE "state" = 0;
+
+-- Amount of segments of each repair run in each (Java) RepairSegment.State, kept up to date
+-- together with repair_segment so that the progress of a run is read without counting segments.
+CREATE TABLE IF NOT EXISTS "repair_segment_count" (
+  "run_id"           INT         NOT NULL REFERENCES "repair_run" ("id"),
+  "state"            SMALLINT    NOT NULL,
+  "amount"           INT         NOT NULL,
+  PRIMARY KEY ("run_id", "state")
+);
+
 CREATE TABLE IF NOT EXISTS "repair_schedule" (
   "id"                 SERIAL PRIMARY KEY,
   "repair_unit_id"     INT                      NOT NULL REFERENCES "repair_unit" ("id"),
@@ -94,6 +110,7 @@ GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE repair_run TO reaper;
 GRANT USAGE, SELECT ON SEQUENCE repair_run_id_seq TO reaper;
 GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE repair_segment TO reaper;
 GRANT USAGE, SELECT ON SEQUENCE repair_segment_id_seq TO reaper;
+GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE repair_segment_count TO reaper;
 GRANT SELECT, INSERT, UPDATE, DELETE ON TABLE repair_schedule TO reaper;
 GRANT USAGE, SELECT ON SEQUENCE repair_schedule_id_seq TO reaper;
 
@@ -104,3 +121,7 @@ GRANT USAGE, SELECT ON SEQUENCE repair_schedule_id_seq TO reaper;
 -- alter table repair_run add column repair_parallelism TEXT NOT NULL DEFAULT 'SEQUENTIAL';
 -- update repair_run set repair_parallelism = (select repair_parallelism from repair_unit where id = repair_unit_id);
 -- alter table repair_unit drop column segment_count, drop column repair_parallelism;
+-- create index repair_segment_free_idx on repair_segment using btree (run_id asc, fail_count asc, start_token asc) where state = 0;
+-- create table repair_segment_count (run_id INT NOT NULL REFERENCES repair_run (id), state SMALLINT NOT NULL, amount INT NOT NULL, PRIMARY KEY (run_id, state));
+-- insert into repair_segment_count (run_id, state, amount) select run_id, state, count(*) from repair_segment group by run_id, state;
+-- alter table repair_segment add column repair_command_id INT DEFAULT NULL;
@@ -1,7 +1,12 @@
 package com.spotify.reaper;
 
+import com.codahale.metrics.MetricRegistry;
 import com.spotify.reaper.cassandra.JmxConnectionFactory;
+import com.spotify.reaper.service.HostLoadCache;
+import com.spotify.reaper.service.HostSessionLedger;
+import com.spotify.reaper.service.LastEventBuffer;
 import com.spotify.reaper.service.RepairManager;
+import com.spotify.reaper.service.RingSnapshotCache;
 import com.spotify.reaper.storage.IStorage;
 
 /**
@@ -14,4 +19,9 @@ public class AppContext {
   public RepairManager repairManager;
   public JmxConnectionFactory jmxConnectionFactory;
   public ReaperApplicationConfiguration config;
+  public RingSnapshotCache ringSnapshots = new RingSnapshotCache();
+  public HostLoadCache hostLoads = new HostLoadCache();
+  public HostSessionLedger hostSessions = new HostSessionLedger();
+  public LastEventBuffer lastEvents = new LastEventBuffer();
+  public MetricRegistry metricRegistry = new MetricRegistry();
 }
@@ -21,9 +21,13 @@ import com.spotify.reaper.resources.PingResource;
 import com.spotify.reaper.resources.ReaperHealthCheck;
 import com.spotify.reaper.resources.RepairRunResource;
 import com.spotify.reaper.resources.RepairScheduleResource;
+import com.spotify.reaper.service.LastEventBuffer;
 import com.spotify.reaper.service.RepairManager;
 import com.spotify.reaper.service.SchedulingManager;
+import com.spotify.reaper.storage.CachingStorage;
+import com.spotify.reaper.storage.EmbeddedStorage;
 import com.spotify.reaper.storage.IStorage;
+import com.spotify.reaper.storage.InstrumentedStorage;
 import com.spotify.reaper.storage.MemoryStorage;
 import com.spotify.reaper.storage.PostgresStorage;
 
@@ -35,11 +39,13 @@ import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import io.dropwizard.Application;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
@@ -90,6 +96,7 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
 
     checkConfiguration(config);
     context.config = config;
+    context.metricRegistry = environment.metrics();
 
     addSignalHandlers(); // SIGHUP, etc.
 
@@ -99,6 +106,27 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
         config.getRepairRunThreadCount(),
         config.getHangingRepairTimeoutMins(), TimeUnit.MINUTES,
         30, TimeUnit.SECONDS);
+    context.repairManager.setMaxParallelSegmentsPerRun(config.getMaxParallelSegmentsPerRun());
+    context.hostSessions.setMaxSessionsPerHost(config.getMaxRepairSessionsPerHost());
+    context.repairManager.setProbeTimeout(config.getHostProbeTimeoutSeconds(), TimeUnit.SECONDS);
+    if (null != config.getMinRepairIntensity() && null != config.getMaxRepairIntensity()) {
+      LOG.info("adapting repair intensity to the load of the nodes, between {} and {}",
+               config.getMinRepairIntensity(), config.getMaxRepairIntensity());
+      context.repairManager.setAdaptiveIntensity(config.getMinRepairIntensity(),
+                                                 config.getMaxRepairIntensity());
+    }
+    context.repairManager.setMetricRegistry(context.metricRegistry);
+    context.hostLoads.setMetricRegistry(context.metricRegistry);
+    environment.lifecycle().manage(new Managed() {
+      @Override
+      public void start() {
+      }
+
+      @Override
+      public void stop() {
+        context.hostLoads.close();
+      }
+    });
 
     if (context.storage == null) {
       LOG.info("initializing storage of type: {}", config.getStorageType());
@@ -111,6 +139,7 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
       LOG.info("no JMX connection factory given in context, creating default");
       context.jmxConnectionFactory = new JmxConnectionFactory();
     }
+    context.jmxConnectionFactory.setMetricRegistry(environment.metrics());
 
     // read jmx host/port mapping from config and provide to jmx con.factory
     Map<String, Integer> jmxPorts = config.getJmxPorts();
@@ -140,6 +169,8 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
     Thread.sleep(1000);
 
     SchedulingManager.start(context);
+    context.repairManager.scheduleLastEventFlushes(
+        context, LastEventBuffer.DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
 
     LOG.info("resuming pending repair runs");
     context.repairManager.resumeRunningRepairRuns(context);
@@ -151,13 +182,37 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
     if ("memory".equalsIgnoreCase(config.getStorageType())) {
       storage = new MemoryStorage();
     } else if ("database".equalsIgnoreCase(config.getStorageType())) {
-      storage = new PostgresStorage(config, environment);
+      CachingStorage cachingStorage =
+          new CachingStorage(new PostgresStorage(config, environment));
+      cachingStorage.setMetricRegistry(environment.metrics());
+      storage = cachingStorage;
+    } else if ("embedded".equalsIgnoreCase(config.getStorageType())) {
+      if (null == config.getStorageDirectory()) {
+        throw new ReaperException("storageDirectory must be given for embedded storage");
+      }
+      final EmbeddedStorage embeddedStorage =
+          new EmbeddedStorage(new File(config.getStorageDirectory()));
+      // lets a running compaction of the journal finish on shutdown
+      environment.lifecycle().manage(new Managed() {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() throws Exception {
+          embeddedStorage.close();
+        }
+      });
+      storage = embeddedStorage;
     } else {
       LOG.error("invalid storageType: {}", config.getStorageType());
       throw new ReaperException("invalid storage type: " + config.getStorageType());
     }
     assert storage.isStorageConnected() : "Failed to connect storage";
-    return storage;
+    long slowCallThresholdMillis = null == config.getSlowStorageCallThresholdMillis()
+        ? InstrumentedStorage.DEFAULT_SLOW_CALL_THRESHOLD_MILLIS
+        : config.getSlowStorageCallThresholdMillis();
+    return InstrumentedStorage.instrument(storage, environment.metrics(), slowCallThresholdMillis);
   }
 
   private void checkConfiguration(ReaperApplicationConfiguration config) throws ReaperException {
@@ -166,7 +221,30 @@ public class ReaperApplication extends Application<ReaperApplicationConfiguratio
     LOG.debug("segmentCount: " + config.getSegmentCount());
     LOG.debug("repairParallelism: " + config.getRepairParallelism());
     LOG.debug("hangingRepairTimeoutMins: " + config.getHangingRepairTimeoutMins());
+    LOG.debug("maxParallelSegmentsPerRun: " + config.getMaxParallelSegmentsPerRun());
+    LOG.debug("maxRepairSessionsPerHost: " + config.getMaxRepairSessionsPerHost());
+    LOG.debug("hostProbeTimeoutSeconds: " + config.getHostProbeTimeoutSeconds());
     LOG.debug("jmxPorts: " + config.getJmxPorts());
+    LOG.debug("slowStorageCallThresholdMillis: " + config.getSlowStorageCallThresholdMillis());
+    LOG.debug("minRepairIntensity: " + config.getMinRepairIntensity());
+    LOG.debug("maxRepairIntensity: " + config.getMaxRepairIntensity());
+    if ((null == config.getMinRepairIntensity()) != (null == config.getMaxRepairIntensity())) {
+      throw new ReaperException(
+          "minRepairIntensity and maxRepairIntensity must be configured together");
+    }
+    checkIntensityBound("minRepairIntensity", config.getMinRepairIntensity());
+    checkIntensityBound("maxRepairIntensity", config.getMaxRepairIntensity());
+    if (null != config.getMinRepairIntensity()
+        && config.getMinRepairIntensity() > config.getMaxRepairIntensity()) {
+      throw new ReaperException("minRepairIntensity can't be bigger than maxRepairIntensity");
+    }
+  }
+
+  private static void checkIntensityBound(String name, Double intensity) throws ReaperException {
+    if (null != intensity && !(intensity > 0.0 && intensity <= 1.0)) {
+      throw new ReaperException(name + " must be between 0.0 and 1.0, but not zero, was: "
+                                + intensity);
+    }
   }
 
   public static void checkRepairParallelismString(String givenRepairParallelism)
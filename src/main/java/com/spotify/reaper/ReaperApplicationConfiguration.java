@@ -23,6 +23,7 @@ import java.util.Map;
 import javax.validation.Valid;
 import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import io.dropwizard.Configuration;
@@ -52,9 +53,37 @@ public class ReaperApplicationConfiguration extends Configuration {
   @NotNull
   private Integer hangingRepairTimeoutMins;
 
+  @JsonProperty
+  @Min(1)
+  private Integer maxParallelSegmentsPerRun = 1;
+
+  @JsonProperty
+  @Min(1)
+  private Integer maxRepairSessionsPerHost = 1;
+
+  @JsonProperty
+  @Min(1)
+  private Integer hostProbeTimeoutSeconds = 30;
+
+  @JsonProperty
+  @DecimalMin(value = "0", inclusive=false)
+  @Max(1)
+  private Double minRepairIntensity;
+
+  @JsonProperty
+  @DecimalMin(value = "0", inclusive=false)
+  @Max(1)
+  private Double maxRepairIntensity;
+
   @NotEmpty
   private String storageType;
 
+  @JsonProperty
+  private String storageDirectory;
+
+  @JsonProperty
+  private Long slowStorageCallThresholdMillis;
+
   @Valid
   @NotNull
   @JsonProperty
@@ -104,6 +133,22 @@ public class ReaperApplicationConfiguration extends Configuration {
     this.storageType = storageType;
   }
 
+  public String getStorageDirectory() {
+    return storageDirectory;
+  }
+
+  public void setStorageDirectory(String storageDirectory) {
+    this.storageDirectory = storageDirectory;
+  }
+
+  public Long getSlowStorageCallThresholdMillis() {
+    return slowStorageCallThresholdMillis;
+  }
+
+  public void setSlowStorageCallThresholdMillis(Long slowStorageCallThresholdMillis) {
+    this.slowStorageCallThresholdMillis = slowStorageCallThresholdMillis;
+  }
+
   public DataSourceFactory getDataSourceFactory() {
     return database;
   }
@@ -121,6 +166,46 @@ public class ReaperApplicationConfiguration extends Configuration {
     this.hangingRepairTimeoutMins = hangingRepairTimeoutMins;
   }
 
+  public int getMaxParallelSegmentsPerRun() {
+    return maxParallelSegmentsPerRun;
+  }
+
+  public void setMaxParallelSegmentsPerRun(int maxParallelSegmentsPerRun) {
+    this.maxParallelSegmentsPerRun = maxParallelSegmentsPerRun;
+  }
+
+  public int getMaxRepairSessionsPerHost() {
+    return maxRepairSessionsPerHost;
+  }
+
+  public void setMaxRepairSessionsPerHost(int maxRepairSessionsPerHost) {
+    this.maxRepairSessionsPerHost = maxRepairSessionsPerHost;
+  }
+
+  public int getHostProbeTimeoutSeconds() {
+    return hostProbeTimeoutSeconds;
+  }
+
+  public void setHostProbeTimeoutSeconds(int hostProbeTimeoutSeconds) {
+    this.hostProbeTimeoutSeconds = hostProbeTimeoutSeconds;
+  }
+
+  public Double getMinRepairIntensity() {
+    return minRepairIntensity;
+  }
+
+  public void setMinRepairIntensity(Double minRepairIntensity) {
+    this.minRepairIntensity = minRepairIntensity;
+  }
+
+  public Double getMaxRepairIntensity() {
+    return maxRepairIntensity;
+  }
+
+  public void setMaxRepairIntensity(Double maxRepairIntensity) {
+    this.maxRepairIntensity = maxRepairIntensity;
+  }
+
   public Map<String, Integer> getJmxPorts() {
     return jmxPorts;
   }
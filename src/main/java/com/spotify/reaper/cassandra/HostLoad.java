@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.cassandra;
+
+/**
+ * The signals telling whether a node is too busy to take part in a repair.
+ */
+public final class HostLoad {
+
+  private final int pendingCompactions;
+  private final boolean repairRunning;
+
+  public HostLoad(int pendingCompactions, boolean repairRunning) {
+    this.pendingCompactions = pendingCompactions;
+    this.repairRunning = repairRunning;
+  }
+
+  public int getPendingCompactions() {
+    return pendingCompactions;
+  }
+
+  /**
+   * @return true if any repairs are running on the node, or if that's uncertain.
+   */
+  public boolean isRepairRunning() {
+    return repairRunning;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d pending compactions, %s", pendingCompactions,
+                         repairRunning ? "repairing" : "not repairing");
+  }
+}
@@ -13,19 +13,45 @@
  */
 package com.spotify.reaper.cassandra;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
 
 import com.spotify.reaper.ReaperException;
 import com.spotify.reaper.core.Cluster;
 
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public class JmxConnectionFactory {
 
+  private static final Logger LOG = LoggerFactory.getLogger(JmxConnectionFactory.class);
+
+  private static final long MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
   private Map<String, Integer> jmxPorts;
 
+  // Long-lived connections shared by everyone asking for a connection to the same host.
+  private final ConcurrentMap<String, PooledConnection> pool = Maps.newConcurrentMap();
+  private volatile long lastEviction = DateTimeUtils.currentTimeMillis();
+
+  private Counter poolHits;
+  private Counter poolMisses;
+  private Timer connectTimer;
+
+  public JmxConnectionFactory() {
+    setMetricRegistry(new MetricRegistry());
+  }
+
   public JmxProxy connect(Optional<RepairStatusHandler> handler, String host)
       throws ReaperException {
     // use configured jmx port for host if provided
@@ -39,6 +65,82 @@ public class JmxConnectionFactory {
     return connect(Optional.<RepairStatusHandler>absent(), host);
   }
 
+  /**
+   * Returns a connection to the given host from the connection pool, connecting only if there is
+   * no live connection to the host yet. The connection is shared, so callers must not close it.
+   * It stays open as long as repair commands are followed through it, however long they take.
+   * If it dies, the repair commands followed through it are failed, as their outcome can't be
+   * known anymore.
+   */
+  public final JmxProxy connectPooled(String host) throws ReaperException {
+    evictIdleConnections();
+    PooledConnection pooled = pool.get(host);
+    if (pooled != null) {
+      if (pooled.proxy.isConnectionAlive()) {
+        poolHits.inc();
+        pooled.lastUsed = DateTimeUtils.currentTimeMillis();
+        return pooled.proxy;
+      }
+      LOG.debug("pooled JMX connection to {} is dead, reconnecting", host);
+      if (pool.remove(host, pooled)) {
+        pooled.proxy.failRepairStatusHandlers("lost the JMX connection to " + host);
+        closeQuietly(pooled.proxy);
+      }
+    }
+    poolMisses.inc();
+    JmxProxy proxy;
+    Timer.Context timerContext = connectTimer.time();
+    try {
+      proxy = connect(host);
+    } finally {
+      timerContext.stop();
+    }
+    PooledConnection newPooled = new PooledConnection(proxy);
+    PooledConnection existing = pool.putIfAbsent(host, newPooled);
+    if (existing != null) {
+      // somebody else connected to the same host meanwhile
+      closeQuietly(proxy);
+      existing.lastUsed = DateTimeUtils.currentTimeMillis();
+      return existing.proxy;
+    }
+    return proxy;
+  }
+
+  public final JmxProxy connectAnyPooled(Collection<String> hosts) throws ReaperException {
+    if (hosts == null || hosts.isEmpty()) {
+      throw new ReaperException("no hosts given for connectAnyPooled");
+    }
+    return connectPooled(hosts.iterator().next());
+  }
+
+  /**
+   * Closes the connections which haven't been asked for in a while. The ones still following
+   * repair commands are in use, even if nobody asked for them lately.
+   */
+  private void evictIdleConnections() {
+    long now = DateTimeUtils.currentTimeMillis();
+    if (now - lastEviction < MAX_IDLE_MILLIS) {
+      return;
+    }
+    lastEviction = now;
+    for (Map.Entry<String, PooledConnection> entry : pool.entrySet()) {
+      PooledConnection pooled = entry.getValue();
+      if (now - pooled.lastUsed > MAX_IDLE_MILLIS && !pooled.proxy.hasRepairStatusHandlers()
+          && pool.remove(entry.getKey(), pooled)) {
+        LOG.debug("evicting idle JMX connection to {}", entry.getKey());
+        closeQuietly(pooled.proxy);
+      }
+    }
+  }
+
+  private static void closeQuietly(JmxProxy proxy) {
+    try {
+      proxy.close();
+    } catch (ReaperException e) {
+      LOG.warn("failed closing JMX connection to {}", proxy.getHost());
+    }
+  }
+
   public final JmxProxy connectAny(Optional<RepairStatusHandler> handler, Collection<String> hosts)
       throws ReaperException {
     if (hosts == null || hosts.isEmpty()) {
@@ -59,4 +161,21 @@ public class JmxConnectionFactory {
   public void setJmxPorts(Map<String, Integer> jmxPorts) {
     this.jmxPorts = jmxPorts;
   }
+
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    poolHits = metricRegistry.counter(MetricRegistry.name(JmxConnectionFactory.class, "pool-hits"));
+    poolMisses =
+        metricRegistry.counter(MetricRegistry.name(JmxConnectionFactory.class, "pool-misses"));
+    connectTimer = metricRegistry.timer(MetricRegistry.name(JmxConnectionFactory.class, "connect"));
+  }
+
+  private static final class PooledConnection {
+
+    private final JmxProxy proxy;
+    private volatile long lastUsed = DateTimeUtils.currentTimeMillis();
+
+    private PooledConnection(JmxProxy proxy) {
+      this.proxy = proxy;
+    }
+  }
 }
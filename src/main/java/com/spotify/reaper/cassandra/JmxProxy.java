@@ -16,9 +16,12 @@ package com.spotify.reaper.cassandra;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import com.spotify.reaper.ReaperException;
 import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.RingSnapshot;
+import com.spotify.reaper.service.Token;
 
 import org.apache.cassandra.db.ColumnFamilyStoreMBean;
 import org.apache.cassandra.db.compaction.CompactionManager;
@@ -26,10 +29,12 @@ import org.apache.cassandra.db.compaction.CompactionManagerMBean;
 import org.apache.cassandra.repair.RepairParallelism;
 import org.apache.cassandra.service.ActiveRepairService;
 import org.apache.cassandra.service.StorageServiceMBean;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.util.AbstractMap;
@@ -39,9 +44,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
 import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
 import javax.management.JMX;
 import javax.management.ListenerNotFoundException;
 import javax.management.MBeanServerConnection;
@@ -71,6 +79,9 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
   private final CompactionManagerMBean cmProxy;
   private final StorageServiceMBean ssProxy;
   private final Optional<RepairStatusHandler> repairStatusHandler;
+  // Handlers of the repairs triggered through this connection, by repair command number.
+  private final ConcurrentMap<Integer, RepairStatusHandler> repairStatusHandlers =
+      Maps.newConcurrentMap();
   private final String host;
 
   private JmxProxy(Optional<RepairStatusHandler> handler, String host, JMXConnector jmxConnector,
@@ -161,20 +172,25 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
   }
 
   /**
-   * @return all hosts owning a range of tokens
+   * @return all token ranges of the given keyspace, each mapped to the hosts owning it
    */
-  public List<String> tokenRangeToEndpoint(String keyspace, RingRange tokenRange) {
+  public Map<RingRange, List<String>> getRangeToEndpointMap(String keyspace) {
     checkNotNull(ssProxy, "Looks like the proxy is not connected");
-    Set<Map.Entry<List<String>, List<String>>> entries =
-        ssProxy.getRangeToEndpointMap(keyspace).entrySet();
-    for (Map.Entry<List<String>, List<String>> entry : entries) {
-      BigInteger rangeStart = new BigInteger(entry.getKey().get(0));
-      BigInteger rangeEnd = new BigInteger(entry.getKey().get(1));
-      if (new RingRange(rangeStart, rangeEnd).encloses(tokenRange)) {
-        return entry.getValue();
-      }
+    Map<RingRange, List<String>> rangeToEndpoint = Maps.newLinkedHashMap();
+    for (Map.Entry<List<String>, List<String>> entry :
+        ssProxy.getRangeToEndpointMap(keyspace).entrySet()) {
+      Token rangeStart = Token.parse(entry.getKey().get(0));
+      Token rangeEnd = Token.parse(entry.getKey().get(1));
+      rangeToEndpoint.put(new RingRange(rangeStart, rangeEnd), entry.getValue());
     }
-    return Lists.newArrayList();
+    return rangeToEndpoint;
+  }
+
+  /**
+   * @return all hosts owning a range of tokens
+   */
+  public List<String> tokenRangeToEndpoint(String keyspace, RingRange tokenRange) {
+    return new RingSnapshot(getRangeToEndpointMap(keyspace)).tokenRangeToEndpoint(tokenRange);
   }
 
   /**
@@ -229,6 +245,21 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
     return cmProxy.getPendingTasks();
   }
 
+  /**
+   * @return when the Cassandra process of the node started, if it could be read. Repair command
+   * numbers are only unique since then.
+   */
+  public Optional<DateTime> getStartTime() {
+    try {
+      ObjectName name = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+      long startTime = (Long) mbeanServer.getAttribute(name, "StartTime");
+      return Optional.of(new DateTime(startTime));
+    } catch (IOException | JMException e) {
+      LOG.warn("Failed reading the start time of " + host + " using JMX", e);
+      return Optional.absent();
+    }
+  }
+
   /**
    * @return true if any repairs are running on the node.
    */
@@ -254,6 +285,53 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
     return true;
   }
 
+  /**
+   * Reads the pending compactions of the node and whether it's repairing, like
+   * {@link #getPendingCompactions()} and {@link #isRepairRunning()} do, but with a single batched
+   * request per MBean.
+   *
+   * @throws ReaperException if the pending compactions can't be read.
+   */
+  public HostLoad getLoad() throws ReaperException {
+    checkNotNull(mbeanServer, "Looks like the proxy is not connected");
+    int pendingCompactions;
+    try {
+      Map<String, Object> compactions = getAttributes(
+          new ObjectName(CompactionManager.MBEAN_OBJECT_NAME), "PendingTasks");
+      if (!compactions.containsKey("PendingTasks")) {
+        throw new ReaperException("Failed reading the pending compactions of " + host);
+      }
+      pendingCompactions = ((Number) compactions.get("PendingTasks")).intValue();
+    } catch (IOException | JMException e) {
+      throw new ReaperException("Failed reading the pending compactions of " + host, e);
+    }
+    // If uncertain, assume it's running
+    boolean repairRunning = true;
+    try {
+      Map<String, Object> sessions = getAttributes(
+          new ObjectName(AES_OBJECT_NAME), "ActiveCount", "PendingTasks");
+      if (sessions.containsKey("ActiveCount") && sessions.containsKey("PendingTasks")) {
+        repairRunning = ((Number) sessions.get("ActiveCount")).longValue()
+                        + ((Number) sessions.get("PendingTasks")).longValue() != 0;
+      }
+    } catch (InstanceNotFoundException e) {
+      // This happens if no repair has yet been run on the node
+      repairRunning = false;
+    } catch (IOException | JMException e) {
+      LOG.error("Error getting attribute from JMX", e);
+    }
+    return new HostLoad(pendingCompactions, repairRunning);
+  }
+
+  private Map<String, Object> getAttributes(ObjectName name, String... attributes)
+      throws IOException, JMException {
+    Map<String, Object> values = Maps.newHashMap();
+    for (Attribute attribute : mbeanServer.getAttributes(name, attributes).asList()) {
+      values.put(attribute.getName(), attribute.getValue());
+    }
+    return values;
+  }
+
   /**
    * Terminates all ongoing repairs on the node this proxy is connected to
    */
@@ -331,6 +409,61 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
                                          columnFamilies.toArray(new String[columnFamilies.size()]));
   }
 
+  /**
+   * Triggers a repair like {@link #triggerRepair(BigInteger, BigInteger, String,
+   * RepairParallelism, Collection)}, and routes the notifications about it to the given handler,
+   * until {@link #removeRepairStatusHandler(int)} is called with the returned command number.
+   * This way many repairs can share the same connection to their coordinator.
+   *
+   * @return Repair command number, or 0 if nothing to repair
+   */
+  public int triggerRepair(BigInteger beginToken, BigInteger endToken, String keyspace,
+                           RepairParallelism repairParallelism, Collection<String> columnFamilies,
+                           RepairStatusHandler handler) {
+    // Notifications for the new command can arrive before forceRepairRangeAsync returns. Holding
+    // the lock until the handler is registered makes them wait for it in handleNotification.
+    synchronized (repairStatusHandlers) {
+      int commandId = triggerRepair(beginToken, endToken, keyspace, repairParallelism,
+                                    columnFamilies);
+      repairStatusHandlers.put(commandId, handler);
+      return commandId;
+    }
+  }
+
+  /**
+   * Routes the notifications about a repair command triggered earlier, e.g. before a restart of
+   * Reaper, to the given handler, until {@link #removeRepairStatusHandler(int)} is called.
+   */
+  public void addRepairStatusHandler(int commandId, RepairStatusHandler handler) {
+    repairStatusHandlers.put(commandId, handler);
+  }
+
+  public void removeRepairStatusHandler(int commandId) {
+    repairStatusHandlers.remove(commandId);
+  }
+
+  /**
+   * @return true if notifications about repair commands are still routed to their handlers
+   * through this connection, which must then be kept open.
+   */
+  public boolean hasRepairStatusHandlers() {
+    return !repairStatusHandlers.isEmpty();
+  }
+
+  /**
+   * Tells the handlers of all repair commands followed through this connection that their repair
+   * failed, as their notifications can't be received anymore, and forgets about them.
+   */
+  public void failRepairStatusHandlers(String message) {
+    for (Map.Entry<Integer, RepairStatusHandler> entry : repairStatusHandlers.entrySet()) {
+      if (repairStatusHandlers.remove(entry.getKey(), entry.getValue())) {
+        LOG.warn("Failing repair command {} on host {}: {}", entry.getKey(), host, message);
+        entry.getValue().handle(entry.getKey(), ActiveRepairService.Status.SESSION_FAILED,
+                                message);
+      }
+    }
+  }
+
   /**
    * Invoked when the MBean this class listens to publishes an event.
    * We're only interested in repair-related events.
@@ -343,17 +476,37 @@ public class JmxProxy implements NotificationListener, AutoCloseable {
     // we're interested in "repair"
     String type = notification.getType();
     LOG.debug("Received notification: {}", notification.toString());
-    if (repairStatusHandler.isPresent() && type.equals("repair")) {
+    if (type.equals("repair")) {
       int[] data = (int[]) notification.getUserData();
       // get the repair sequence number
       int repairNo = data[0];
+      RepairStatusHandler handler = findRepairStatusHandler(repairNo);
+      if (handler == null) {
+        LOG.debug("No handler for repair command {} on host {}", repairNo, host);
+        return;
+      }
       // get the repair status
       ActiveRepairService.Status status = ActiveRepairService.Status.values()[data[1]];
       // this is some text message like "Starting repair...", "Finished repair...", etc.
       String message = notification.getMessage();
       // let the handler process the event
-      repairStatusHandler.get().handle(repairNo, status, message);
+      handler.handle(repairNo, status, message);
+    }
+  }
+
+  @Nullable
+  private RepairStatusHandler findRepairStatusHandler(int repairNo) {
+    RepairStatusHandler handler = repairStatusHandlers.get(repairNo);
+    if (handler == null) {
+      // the repair might be being triggered right now, so wait for its handler to be registered
+      synchronized (repairStatusHandlers) {
+        handler = repairStatusHandlers.get(repairNo);
+      }
+    }
+    if (handler == null && repairStatusHandler.isPresent()) {
+      handler = repairStatusHandler.get();
     }
+    return handler;
   }
 
   public String getConnectionId() throws IOException {
@@ -26,6 +26,7 @@ import com.spotify.reaper.core.RepairRun;
 import com.spotify.reaper.core.RepairSegment;
 import com.spotify.reaper.core.RepairUnit;
 import com.spotify.reaper.resources.view.RepairRunStatus;
+import com.spotify.reaper.storage.RepairRunSummary;
 
 import org.apache.cassandra.repair.RepairParallelism;
 import org.slf4j.Logger;
@@ -35,8 +36,8 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
 
@@ -318,12 +319,9 @@ public class RepairRunResource {
   @Path("/cluster/{cluster_name}")
   public Response getRepairRunsForCluster(@PathParam("cluster_name") String clusterName) {
     LOG.info("get repair run for cluster called with: cluster_name = {}", clusterName);
-    Collection<RepairRun> repairRuns = context.storage.getRepairRunsForCluster(clusterName);
-    Collection<RepairRunStatus> repairRunViews = new ArrayList<>();
-    for (RepairRun repairRun : repairRuns) {
-      repairRunViews.add(getRepairRunStatus(repairRun));
-    }
-    return Response.ok().entity(repairRunViews).build();
+    Collection<RepairRunSummary> repairRuns = context.storage.getRepairRunSummaries(
+        Optional.of(clusterName), EnumSet.noneOf(RepairRun.RunState.class), 0, Integer.MAX_VALUE);
+    return Response.ok().entity(getRepairRunStatuses(repairRuns)).build();
   }
 
   /**
@@ -332,7 +330,8 @@ public class RepairRunResource {
   private RepairRunStatus getRepairRunStatus(RepairRun repairRun) {
     Optional<RepairUnit> repairUnit = context.storage.getRepairUnit(repairRun.getRepairUnitId());
     assert repairUnit.isPresent() : "no repair unit found with id: " + repairRun.getRepairUnitId();
-    RepairRunStatus repairRunStatus = new RepairRunStatus(repairRun, repairUnit.get());
+    RepairRunStatus repairRunStatus =
+        new RepairRunStatus(context.lastEvents.withPendingEvent(repairRun), repairUnit.get());
     if (repairRun.getRunState() != RepairRun.RunState.NOT_STARTED) {
       int segmentsRepaired =
           context.storage.getSegmentAmountForRepairRun(repairRun.getId(), RepairSegment.State.DONE);
@@ -341,6 +340,17 @@ public class RepairRunResource {
     return repairRunStatus;
   }
 
+  private List<RepairRunStatus> getRepairRunStatuses(Collection<RepairRunSummary> repairRuns) {
+    List<RepairRunStatus> repairRunStatuses = Lists.newArrayListWithCapacity(repairRuns.size());
+    for (RepairRunSummary repairRun : repairRuns) {
+      RepairRunStatus repairRunStatus = new RepairRunStatus(
+          context.lastEvents.withPendingEvent(repairRun.getRepairRun()), repairRun.getRepairUnit());
+      repairRunStatus.setSegmentsRepaired(repairRun.getSegmentsRepaired());
+      repairRunStatuses.add(repairRunStatus);
+    }
+    return repairRunStatuses;
+  }
+
   /**
    * Crafts an URI used to identify given repair run.
    *
@@ -362,37 +372,27 @@ public class RepairRunResource {
   /**
    * @param state comma-separated list of states to return. These states must match names of
    * {@link com.spotify.reaper.core.RepairRun.RunState}.
+   * @param offset amount of matching repair runs to skip, newest first.
+   * @param limit maximum amount of repair runs to return.
    * @return All repair runs in the system if the param is absent, repair runs with state included
    *   in the state parameter otherwise. If the state parameter contains non-existing run states,
    *   BAD_REQUEST response is returned.
    */
   @GET
-  public Response listRepairRuns(@QueryParam("state") Optional<String> state) {
+  public Response listRepairRuns(@QueryParam("state") Optional<String> state,
+                                 @QueryParam("offset") Optional<Integer> offset,
+                                 @QueryParam("limit") Optional<Integer> limit) {
     Set desiredStates = splitStateParam(state);
-    if (desiredStates == null) {
+    if (desiredStates == null || offset.or(0) < 0 || limit.or(0) < 0) {
       return Response.status(Response.Status.BAD_REQUEST).build();
     }
-    Collection<RepairRun> runs;
-    List<RepairRunStatus> runStatuses = Lists.newArrayList();
-    Collection<Cluster> clusters = context.storage.getClusters();
-    for (Cluster cluster : clusters) {
-      runs = context.storage.getRepairRunsForCluster(cluster.getName());
-      for (RepairRun run : runs) {
-        if (!desiredStates.isEmpty() && !desiredStates.contains(run.getRunState().name())) {
-          continue;
-        }
-        Optional<RepairUnit> runsUnit = context.storage.getRepairUnit(run.getRepairUnitId());
-        if (runsUnit.isPresent()) {
-          runStatuses.add(new RepairRunStatus(run, runsUnit.get()));
-        } else {
-          String errMsg =
-              String.format("Found repair run %d with no associated repair unit", run.getId());
-          LOG.error(errMsg);
-          return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        }
-      }
+    Set<RepairRun.RunState> runStates = EnumSet.noneOf(RepairRun.RunState.class);
+    for (Object desiredState : desiredStates) {
+      runStates.add(RepairRun.RunState.valueOf((String) desiredState));
     }
-    return Response.status(Response.Status.OK).entity(runStatuses).build();
+    Collection<RepairRunSummary> runs = context.storage.getRepairRunSummaries(
+        Optional.<String>absent(), runStates, offset.or(0), limit.or(Integer.MAX_VALUE));
+    return Response.status(Response.Status.OK).entity(getRepairRunStatuses(runs)).build();
   }
 
   @VisibleForTesting
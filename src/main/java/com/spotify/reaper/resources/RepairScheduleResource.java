@@ -158,6 +158,7 @@ public class RepairScheduleResource {
       RepairSchedule newRepairSchedule = CommonTools.storeNewRepairSchedule(
           context, cluster, theRepairUnit, scheduleDaysBetween.get(), nextActivation, owner.get(),
           segments, parallelism, intensity);
+      SchedulingManager.scheduleChanged(newRepairSchedule);
 
       return Response.created(buildRepairScheduleURI(uriInfo, newRepairSchedule))
           .entity(new RepairScheduleStatus(newRepairSchedule, theRepairUnit)).build();
@@ -126,6 +126,11 @@ public class RepairRunStatus {
     return CommonTools.dateTimeToISO8601(pauseTime);
   }
 
+  @JsonProperty("segments_repaired")
+  public int getSegmentsRepaired() {
+    return this.segmentsRepaired;
+  }
+
   public void setSegmentsRepaired(int segmentsRepaired) {
     this.segmentsRepaired = segmentsRepaired;
   }
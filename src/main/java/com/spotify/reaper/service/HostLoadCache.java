@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Maps;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.HostLoad;
+import com.spotify.reaper.cassandra.JmxConnectionFactory;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load signals of the hosts of all clusters, shared by all segment runners. The hosts asked for
+ * are polled in the background by one poller per cluster, so that concurrent repair runs don't
+ * each query the same hosts over JMX. A load is fetched directly when missing or older than the
+ * time to live. Each poll, once per time to live, only fetches the hosts asked for since the
+ * previous poll whose load wasn't fetched directly meanwhile, so a host is fetched at most about
+ * once per time to live, and only while it's being asked for. Each fetch is timed per host, while
+ * loads read from the cache are not.
+ */
+public class HostLoadCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HostLoadCache.class);
+
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final int POLLER_THREADS = 4;
+
+  private final long ttlMillis;
+  private final ConcurrentMap<String, ClusterPoller> pollers = Maps.newConcurrentMap();
+  private final ScheduledThreadPoolExecutor executor;
+  private volatile MetricRegistry metricRegistry = new MetricRegistry();
+
+  public HostLoadCache() {
+    this(DEFAULT_TTL_MILLIS);
+  }
+
+  public HostLoadCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    executor = new ScheduledThreadPoolExecutor(POLLER_THREADS,
+                                               new NamedThreadFactory("HostLoadPoller"));
+  }
+
+  /**
+   * @param jmxConnectionFactory used to reach the hosts of the cluster, when polling them.
+   * @throws ReaperException if the load had to be fetched, and the host couldn't be reached.
+   */
+  public HostLoad get(String clusterName, String host, JmxConnectionFactory jmxConnectionFactory)
+      throws ReaperException {
+    ClusterPoller poller = pollers.get(clusterName);
+    if (null == poller) {
+      ClusterPoller newPoller = new ClusterPoller(clusterName, jmxConnectionFactory);
+      poller = pollers.putIfAbsent(clusterName, newPoller);
+      if (null == poller) {
+        poller = newPoller;
+        long period = Math.max(1, ttlMillis);
+        try {
+          executor.scheduleWithFixedDelay(newPoller, period, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          LOG.debug("not polling the hosts of cluster {}, as polling was stopped", clusterName);
+        }
+      }
+    }
+    return poller.get(host);
+  }
+
+  /**
+   * Forgets the load of the host, so that it's fetched again when next asked for, like when a
+   * repair on the host just finished.
+   */
+  public void invalidate(String clusterName, String host) {
+    ClusterPoller poller = pollers.get(clusterName);
+    if (null != poller) {
+      poller.loads.remove(host);
+    }
+  }
+
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    this.metricRegistry = metricRegistry;
+  }
+
+  /**
+   * Stops polling the hosts. Loads asked for afterwards are always fetched directly.
+   */
+  public void close() {
+    LOG.info("stopping the polling of host loads");
+    executor.shutdownNow();
+  }
+
+  private static final class TimedLoad {
+
+    private final HostLoad load;
+    private final long time;
+
+    private TimedLoad(HostLoad load, long time) {
+      this.load = load;
+      this.time = time;
+    }
+  }
+
+  private final class ClusterPoller implements Runnable {
+
+    private final String clusterName;
+    private final JmxConnectionFactory jmxConnectionFactory;
+    // when each polled host was last asked for
+    private final ConcurrentMap<String, Long> lastAsked = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, TimedLoad> loads = Maps.newConcurrentMap();
+    // only used by the poll, which never runs concurrently with itself
+    private long previousPoll = System.currentTimeMillis();
+
+    private ClusterPoller(String clusterName, JmxConnectionFactory jmxConnectionFactory) {
+      this.clusterName = clusterName;
+      this.jmxConnectionFactory = jmxConnectionFactory;
+    }
+
+    private HostLoad get(String host) throws ReaperException {
+      long now = System.currentTimeMillis();
+      lastAsked.put(host, now);
+      TimedLoad timedLoad = loads.get(host);
+      if (null != timedLoad && now - timedLoad.time <= ttlMillis) {
+        return timedLoad.load;
+      }
+      return fetch(host);
+    }
+
+    private HostLoad fetch(String host) throws ReaperException {
+      long time = System.currentTimeMillis();
+      Timer.Context timing =
+          metricRegistry.timer(MetricRegistry.name(HostLoadCache.class, "fetch", host)).time();
+      try {
+        HostLoad load = jmxConnectionFactory.connectPooled(host).getLoad();
+        loads.put(host, new TimedLoad(load, time));
+        return load;
+      } finally {
+        timing.stop();
+      }
+    }
+
+    @Override
+    public void run() {
+      long now = System.currentTimeMillis();
+      long idleSince = previousPoll;
+      previousPoll = now;
+      for (Map.Entry<String, Long> asked : lastAsked.entrySet()) {
+        String host = asked.getKey();
+        if (asked.getValue() < idleSince) {
+          LOG.debug("no longer polling the load of host {} in cluster {}", host, clusterName);
+          lastAsked.remove(host, asked.getValue());
+          loads.remove(host);
+          continue;
+        }
+        TimedLoad timedLoad = loads.get(host);
+        if (null != timedLoad && now - timedLoad.time < ttlMillis) {
+          // fetched directly since the previous poll
+          continue;
+        }
+        try {
+          fetch(host);
+        } catch (ReaperException | RuntimeException e) {
+          LOG.debug("failed polling the load of host {} in cluster {}", host, clusterName, e);
+          loads.remove(host);
+        }
+      }
+    }
+  }
+}
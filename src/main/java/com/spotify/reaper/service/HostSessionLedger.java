@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Counts the repair sessions driven by Reaper on each host, across all repair runs, so that runs on
+ * the same cluster don't repair more segments on a host at the same time than allowed. Unlike
+ * asking the nodes whether they are repairing, taking hosts from the ledger is atomic, and costs
+ * no network call.
+ */
+public class HostSessionLedger {
+
+  public static final int DEFAULT_MAX_SESSIONS_PER_HOST = 1;
+
+  private volatile int maxSessionsPerHost = DEFAULT_MAX_SESSIONS_PER_HOST;
+  // the sessions on each host, by cluster name. Guarded by this.
+  private final Map<String, Multiset<String>> sessions = Maps.newHashMap();
+
+  public void setMaxSessionsPerHost(int maxSessionsPerHost) {
+    assert maxSessionsPerHost > 0 : "at least one session per host must be allowed";
+    this.maxSessionsPerHost = maxSessionsPerHost;
+  }
+
+  private Multiset<String> sessionsOf(String clusterName) {
+    assert Thread.holdsLock(this);
+    Multiset<String> clusterSessions = sessions.get(clusterName);
+    if (null == clusterSessions) {
+      clusterSessions = HashMultiset.create();
+      sessions.put(clusterName, clusterSessions);
+    }
+    return clusterSessions;
+  }
+
+  /**
+   * @return true if all the given hosts can take one more session.
+   */
+  public synchronized boolean isAvailable(String clusterName, Collection<String> hosts) {
+    Multiset<String> clusterSessions = sessionsOf(clusterName);
+    for (String host : ImmutableSet.copyOf(hosts)) {
+      if (clusterSessions.count(host) >= maxSessionsPerHost) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Counts one more session on each of the given hosts, if all of them can take it.
+   *
+   * @return false, without counting anything, if one of the hosts can't take another session.
+   */
+  public synchronized boolean tryAcquire(String clusterName, Collection<String> hosts) {
+    if (!isAvailable(clusterName, hosts)) {
+      return false;
+    }
+    acquire(clusterName, hosts);
+    return true;
+  }
+
+  /**
+   * Counts one more session on each of the given hosts, even if that's more than allowed, like for
+   * a session that is already running.
+   */
+  public synchronized void acquire(String clusterName, Collection<String> hosts) {
+    sessionsOf(clusterName).addAll(ImmutableSet.copyOf(hosts));
+  }
+
+  public synchronized void release(String clusterName, Collection<String> hosts) {
+    Multiset<String> clusterSessions = sessionsOf(clusterName);
+    for (String host : ImmutableSet.copyOf(hosts)) {
+      clusterSessions.remove(host);
+    }
+  }
+
+  public synchronized int getSessions(String clusterName, String host) {
+    return sessionsOf(clusterName).count(host);
+  }
+}
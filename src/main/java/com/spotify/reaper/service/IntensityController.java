@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+/**
+ * Adapts the intensity of a repair run to the load of the nodes it repairs. After each repaired
+ * segment, the intensity is raised by a small step if the replicas of the segment have few pending
+ * compactions, and halved if they have many, within the configured bounds. Lowering fast and
+ * raising slowly backs off quickly when the nodes get busy.
+ */
+public class IntensityController {
+
+  // the most pending compactions on any replica for the intensity to be raised
+  static final int LOW_PENDING_COMPACTIONS = 5;
+  // the most pending compactions on any replica for the intensity not to be lowered
+  static final int HIGH_PENDING_COMPACTIONS = 15;
+  private static final double INCREASE_STEP = 0.05;
+  private static final double DECREASE_FACTOR = 0.5;
+
+  private final double minIntensity;
+  private final double maxIntensity;
+  // guarded by this
+  private double intensity;
+
+  public IntensityController(double initialIntensity, double minIntensity, double maxIntensity) {
+    assert 0 < minIntensity && minIntensity <= maxIntensity && maxIntensity <= 1 :
+        "intensity bounds must be within (0, 1]";
+    this.minIntensity = minIntensity;
+    this.maxIntensity = maxIntensity;
+    this.intensity = bound(initialIntensity);
+  }
+
+  private double bound(double newIntensity) {
+    return Math.max(minIntensity, Math.min(maxIntensity, newIntensity));
+  }
+
+  public synchronized double getIntensity() {
+    return intensity;
+  }
+
+  /**
+   * @param pendingCompactions the most pending compactions on any replica of the last segment.
+   * @return the intensity to use for the next segment.
+   */
+  public synchronized double update(int pendingCompactions) {
+    if (pendingCompactions <= LOW_PENDING_COMPACTIONS) {
+      intensity = bound(intensity + INCREASE_STEP);
+    } else if (pendingCompactions > HIGH_PENDING_COMPACTIONS) {
+      intensity = bound(intensity * DECREASE_FACTOR);
+    }
+    return intensity;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.google.common.collect.Maps;
+
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.storage.IStorage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the latest event of repair runs until they are written to storage in a batch. Runners
+ * report an event on every postpone, trigger and delay, while only the latest one per run is
+ * shown, so storing them all as they happen would be wasted writes.
+ *
+ * The views of repair runs should go through this buffer to see the events not stored yet.
+ */
+public class LastEventBuffer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LastEventBuffer.class);
+
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final ConcurrentMap<Long, String> pendingEvents = Maps.newConcurrentMap();
+
+  public void record(long runId, String event) {
+    pendingEvents.put(runId, event);
+  }
+
+  /**
+   * Forgets the pending event of a run, so that it can't overwrite a last event that is stored
+   * directly together with a change of the run state.
+   */
+  public synchronized void discard(long runId) {
+    pendingEvents.remove(runId);
+  }
+
+  /**
+   * @return the given repair run, with its pending event if there is one.
+   */
+  public RepairRun withPendingEvent(RepairRun repairRun) {
+    String event = pendingEvents.get(repairRun.getId());
+    return null == event ? repairRun : repairRun.with().lastEvent(event).build(repairRun.getId());
+  }
+
+  /**
+   * Stores the pending events in one batch. Events recorded while flushing stay pending for the
+   * next flush.
+   */
+  public synchronized void flush(IStorage storage) {
+    if (pendingEvents.isEmpty()) {
+      return;
+    }
+    Map<Long, String> events = Maps.newHashMap(pendingEvents);
+    try {
+      storage.updateRepairRunLastEvents(events);
+    } catch (RuntimeException e) {
+      LOG.warn("failed storing the last events of {} repair runs", events.size(), e);
+      return;
+    }
+    for (Map.Entry<Long, String> event : events.entrySet()) {
+      pendingEvents.remove(event.getKey(), event.getValue());
+    }
+  }
+}
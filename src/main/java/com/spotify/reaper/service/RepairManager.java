@@ -1,10 +1,16 @@
 package com.spotify.reaper.service;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.JmxProxy;
 import com.spotify.reaper.core.RepairRun;
 import com.spotify.reaper.core.RepairSegment;
 
@@ -14,23 +20,78 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class RepairManager {
 
   private static final Logger LOG = LoggerFactory.getLogger(RepairManager.class);
 
-  private ScheduledExecutorService executor;
+  // Bounds the amount of replicas probed concurrently before repairing segments.
+  private static final int MAX_PROBE_THREADS = 32;
+
+  private ScheduledThreadPoolExecutor executor;
+  private ListeningExecutorService probeExecutor;
   private long repairTimeoutMillis;
   private long retryDelayMillis;
+  private int maxParallelSegmentsPerRun = 1;
+  private long probeTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+  private Optional<Double> minIntensity = Optional.absent();
+  private Optional<Double> maxIntensity = Optional.absent();
 
   public long getRepairTimeoutMillis() {
     return repairTimeoutMillis;
   }
 
+  public int getMaxParallelSegmentsPerRun() {
+    return maxParallelSegmentsPerRun;
+  }
+
+  public void setMaxParallelSegmentsPerRun(int maxParallelSegmentsPerRun) {
+    assert maxParallelSegmentsPerRun > 0 : "at least one segment per run must be allowed";
+    this.maxParallelSegmentsPerRun = maxParallelSegmentsPerRun;
+  }
+
+  public long getProbeTimeoutMillis() {
+    return probeTimeoutMillis;
+  }
+
+  /**
+   * Sets how long probing a single replica may take before the segment is postponed.
+   */
+  public void setProbeTimeout(long probeTimeout, TimeUnit probeTimeoutUnit) {
+    assert probeTimeout > 0 : "probing a replica must be given some time";
+    this.probeTimeoutMillis = probeTimeoutUnit.toMillis(probeTimeout);
+  }
+
+  /**
+   * Makes the repair runs started from now on adapt their intensity to the load of the nodes,
+   * within the given bounds.
+   */
+  public void setAdaptiveIntensity(double minIntensity, double maxIntensity) {
+    assert 0 < minIntensity && minIntensity <= maxIntensity && maxIntensity <= 1 :
+        "intensity bounds must be within (0, 1]";
+    this.minIntensity = Optional.of(minIntensity);
+    this.maxIntensity = Optional.of(maxIntensity);
+  }
+
+  /**
+   * @return a new controller of the intensity of a run, if adaptive intensity is enabled.
+   */
+  public Optional<IntensityController> newIntensityController(double initialIntensity) {
+    if (!minIntensity.isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new IntensityController(initialIntensity, minIntensity.get(), maxIntensity.get()));
+  }
+
   // Caching all active RepairRunners.
   @VisibleForTesting
   public Map<Long, RepairRunner> repairRunners = Maps.newConcurrentMap();
@@ -38,15 +99,45 @@ public class RepairManager {
   public void initializeThreadPool(int threadAmount, long repairTimeout,
                                           TimeUnit repairTimeoutTimeUnit, long retryDelay,
                                           TimeUnit retryDelayTimeUnit) {
-    executor = Executors
-        .newScheduledThreadPool(threadAmount, new NamedThreadFactory("RepairRunner"));
+    executor = new ScheduledThreadPoolExecutor(threadAmount, new NamedThreadFactory("RepairRunner"));
+    ThreadPoolExecutor probeThreads = new ThreadPoolExecutor(
+        MAX_PROBE_THREADS, MAX_PROBE_THREADS, 1, TimeUnit.MINUTES,
+        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("HostProbe"));
+    probeThreads.allowCoreThreadTimeOut(true);
+    probeExecutor = MoreExecutors.listeningDecorator(probeThreads);
     repairTimeoutMillis = repairTimeoutTimeUnit.toMillis(repairTimeout);
     retryDelayMillis = retryDelayTimeUnit.toMillis(retryDelay);
   }
 
+  /**
+   * Registers gauges of the repair runner thread pool: the amount of tasks waiting in its queue
+   * (including the delayed ones) and the amount of threads busy running one. The thread pool must
+   * be initialized first.
+   */
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    assert null != executor : "you need to initialize the thread pool first";
+    metricRegistry.register(MetricRegistry.name(RepairManager.class, "queue-depth"),
+                            new Gauge<Integer>() {
+                              @Override
+                              public Integer getValue() {
+                                return executor.getQueue().size();
+                              }
+                            });
+    metricRegistry.register(MetricRegistry.name(RepairManager.class, "active-threads"),
+                            new Gauge<Integer>() {
+                              @Override
+                              public Integer getValue() {
+                                return executor.getActiveCount();
+                              }
+                            });
+  }
 
   /**
    * Consult storage to see if any repairs are running, and resume those repair runs.
+   * The segments whose repair command is still running on their coordinator are adopted by the
+   * resumed runs, the others are repaired again. A repair command is only adopted when its number
+   * still identifies it, that is, when its coordinator hasn't restarted since the command started.
+   * No repairs are cancelled on the coordinators, as they might not be the ones of Reaper.
    *
    * @param context Reaper's application context.
    */
@@ -56,17 +147,42 @@ public class RepairManager {
     for (RepairRun repairRun : running) {
       Collection<RepairSegment> runningSegments =
           context.storage.getSegmentsWithState(repairRun.getId(), RepairSegment.State.RUNNING);
+      Map<RepairSegment, JmxProxy> adoptedSegments = Maps.newHashMap();
       for (RepairSegment segment : runningSegments) {
+        if (segment.getCoordinatorHost() == null) {
+          // claimed, but the repair command was never sent
+          SegmentRunner.postpone(context, segment);
+          continue;
+        }
+        JmxProxy coordinator;
         try {
-          SegmentRunner.abort(context, segment,
-                              context.jmxConnectionFactory.connect(segment.getCoordinatorHost()));
+          coordinator = context.jmxConnectionFactory.connectPooled(segment.getCoordinatorHost());
         } catch (ReaperException e) {
-          LOG.debug("Tried to abort repair on segment {} marked as RUNNING, but the host was down"
-                    + " (so abortion won't be needed)", segment.getId());
+          LOG.debug("Coordinator {} of segment {} marked as RUNNING is down, so its repair can't "
+                    + "be followed", segment.getCoordinatorHost(), segment.getId());
+          SegmentRunner.postpone(context, segment);
+          continue;
+        }
+        if (segment.getRepairCommandId() == null || segment.getStartTime() == null) {
+          // triggered by a version of Reaper not storing the command, so it can't be followed
+          LOG.info("Repair of segment {} on {} can't be followed", segment.getId(),
+                   coordinator.getHost());
+          SegmentRunner.postpone(context, segment);
+        } else if (!coordinator.isRepairRunning()) {
+          LOG.info("Repair command {} of segment {} is not running on {} anymore",
+                   segment.getRepairCommandId(), segment.getId(), coordinator.getHost());
           SegmentRunner.postpone(context, segment);
+        } else if (!isCommandOfCurrentProcess(coordinator, segment)) {
+          // the repairs running on the coordinator may be anyone's, so they are left alone
+          LOG.info("Repair command {} of segment {} can't be identified on {}, as it restarted "
+                   + "since or its start time is unknown", segment.getRepairCommandId(),
+                   segment.getId(), coordinator.getHost());
+          SegmentRunner.postpone(context, segment);
+        } else {
+          adoptedSegments.put(segment, coordinator);
         }
       }
-      startRepairRun(context, repairRun);
+      startRepairRun(context, repairRun, adoptedSegments);
     }
     Collection<RepairRun> paused =
         context.storage.getRepairRunsWithState(RepairRun.RunState.PAUSED);
@@ -75,7 +191,26 @@ public class RepairManager {
     }
   }
 
+  /**
+   * @return true if the coordinator has been running since the repair of the segment started, so
+   * that the stored command number still identifies the same repair command.
+   */
+  private static boolean isCommandOfCurrentProcess(JmxProxy coordinator, RepairSegment segment) {
+    Optional<DateTime> coordinatorStartTime = coordinator.getStartTime();
+    return coordinatorStartTime.isPresent()
+           && !coordinatorStartTime.get().isAfter(segment.getStartTime());
+  }
+
   public void startRepairRun(AppContext context, RepairRun runToBeStarted) {
+    startRepairRun(context, runToBeStarted, Collections.<RepairSegment, JmxProxy>emptyMap());
+  }
+
+  /**
+   * @param adoptedSegments the segments of the run still being repaired by the given
+   *                        coordinators, from before a restart.
+   */
+  private void startRepairRun(AppContext context, RepairRun runToBeStarted,
+                              Map<RepairSegment, JmxProxy> adoptedSegments) {
     assert null != executor : "you need to initialize the thread pool first";
     long runId = runToBeStarted.getId();
     LOG.info("Starting a run with id #{} with current state '{}'",
@@ -107,6 +242,9 @@ public class RepairManager {
       LOG.info("scheduling repair for repair run #{}", runId);
       try {
         RepairRunner newRunner = new RepairRunner(context, runId);
+        for (Map.Entry<RepairSegment, JmxProxy> adopted : adoptedSegments.entrySet()) {
+          newRunner.adoptSegment(adopted.getKey(), adopted.getValue());
+        }
         repairRunners.put(runId, newRunner);
         executor.submit(newRunner);
       } catch (ReaperException e) {
@@ -139,6 +277,38 @@ public class RepairManager {
     executor.schedule(runner, delay, TimeUnit.MILLISECONDS);
   }
 
+  public ScheduledFuture<?> scheduleTimeout(Runnable timeoutHandler, long delay) {
+    return executor.schedule(timeoutHandler, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Periodically stores the last events buffered by the repair runners.
+   */
+  public void scheduleLastEventFlushes(final AppContext context, long interval,
+                                       TimeUnit intervalTimeUnit) {
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        context.lastEvents.flush(context.storage);
+      }
+    }, interval, interval, intervalTimeUnit);
+  }
+
+  /**
+   * @return the executor used to drive repair runs, for running callbacks of segment repairs.
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * @return the executor shared by the segment runners for probing the replicas of segments over
+   * JMX, concurrently.
+   */
+  public ListeningExecutorService getProbeExecutor() {
+    return probeExecutor;
+  }
+
   public void removeRunner(RepairRunner runner) {
     repairRunners.remove(runner.getRepairRunId());
   }
@@ -13,8 +13,19 @@
  */
 package com.spotify.reaper.service;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
@@ -29,16 +40,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class RepairRunner implements Runnable {
 
   private static final Logger LOG = LoggerFactory.getLogger(RepairRunner.class);
 
+  // Same order as the segments are claimed in by the storage: least failed first, then by token.
+  private static final Comparator<RepairSegment> CLAIM_ORDER = new Comparator<RepairSegment>() {
+    @Override
+    public int compare(RepairSegment first, RepairSegment second) {
+      return ComparisonChain.start()
+          .compare(first.getFailCount(), second.getFailCount())
+          .compare(first.getTokenRange().getStartToken(), second.getTokenRange().getStartToken())
+          .result();
+    }
+  };
+
   private final AppContext context;
   private final long repairRunId;
+  private final String clusterName;
   private JmxProxy jmxConnection;
-  private Long currentlyRunningSegmentId;
+  // Replicas of the segments currently being repaired, by segment id. Guarded by this.
+  private final Map<Long, List<String>> runningSegments = Maps.newHashMap();
+  private final Meter repairedSegments = new Meter();
+  private final String segmentsPerHourName;
+  private final Optional<IntensityController> intensityController;
 
   public RepairRunner(AppContext context, long repairRunId)
       throws ReaperException {
@@ -49,6 +82,19 @@ public class RepairRunner implements Runnable {
     Optional<Cluster> cluster = context.storage.getCluster(repairRun.get().getClusterName());
     assert cluster.isPresent() : "No Cluster with name " + repairRun.get().getClusterName()
                                  + " found from storage";
+    clusterName = repairRun.get().getClusterName();
+    intensityController =
+        context.repairManager.newIntensityController(repairRun.get().getIntensity());
+    // throughput of this runner, replacing the one of a previous runner of the same run
+    segmentsPerHourName = MetricRegistry.name(RepairRunner.class, "segments-per-hour",
+                                              String.valueOf(repairRunId));
+    context.metricRegistry.remove(segmentsPerHourName);
+    context.metricRegistry.register(segmentsPerHourName, new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return repairedSegments.getMeanRate() * TimeUnit.HOURS.toSeconds(1);
+      }
+    });
   }
 
   public long getRepairRunId() {
@@ -56,8 +102,8 @@ public class RepairRunner implements Runnable {
   }
 
   @VisibleForTesting
-  public Long getCurrentlyRunningSegmentId() {
-    return currentlyRunningSegmentId;
+  public synchronized Collection<Long> getRunningSegmentIds() {
+    return ImmutableList.copyOf(runningSegments.keySet());
   }
 
   /**
@@ -74,29 +120,42 @@ public class RepairRunner implements Runnable {
           start();
           break;
         case RUNNING:
-          startNextSegment();
+          startNextSegments();
           break;
         case PAUSED:
           context.repairManager.scheduleRetry(this);
           break;
         case DONE:
           // We're done. Let go of thread.
-          context.repairManager.removeRunner(this);
+          release();
           break;
       }
     } catch (ReaperException | RuntimeException e) {
-      LOG.error("RepairRun FAILURE");
-      LOG.error(e.toString());
-      LOG.error(Arrays.toString(e.getStackTrace()));
-      e.printStackTrace();
-      context.storage.updateRepairRun(repairRun.with()
-                                          .runState(RepairRun.RunState.ERROR)
-                                          .endTime(DateTime.now())
-                                          .build(repairRun.getId()));
-      context.repairManager.removeRunner(this);
+      fail(e);
     }
   }
 
+  /**
+   * Marks the repair run as failed, and lets go of it.
+   */
+  private void fail(Throwable e) {
+    LOG.error("RepairRun FAILURE");
+    LOG.error(e.toString());
+    LOG.error(Arrays.toString(e.getStackTrace()));
+    e.printStackTrace();
+    RepairRun repairRun = context.storage.getRepairRun(repairRunId).get();
+    context.storage.updateRepairRun(repairRun.with()
+                                        .runState(RepairRun.RunState.ERROR)
+                                        .endTime(DateTime.now())
+                                        .build(repairRun.getId()));
+    release();
+  }
+
+  private void release() {
+    context.metricRegistry.remove(segmentsPerHourName);
+    context.repairManager.removeRunner(this);
+  }
+
   /**
    * Starts the repair run.
    */
@@ -110,7 +169,7 @@ public class RepairRunner implements Runnable {
     if (!success) {
       LOG.error("failed updating repair run " + repairRun.getId());
     }
-    startNextSegment();
+    startNextSegments();
   }
 
   /**
@@ -118,6 +177,7 @@ public class RepairRunner implements Runnable {
    */
   private void end() {
     LOG.info("Repairs for repair run #{} done", repairRunId);
+    context.lastEvents.discard(repairRunId);
     RepairRun repairRun = context.storage.getRepairRun(repairRunId).get();
     boolean success = context.storage.updateRepairRun(repairRun.with()
                                                           .runState(RepairRun.RunState.DONE)
@@ -130,32 +190,90 @@ public class RepairRunner implements Runnable {
   }
 
   /**
-   * Get the next segment and repair it. If there is none, we're done.
+   * Get the next segments and repair them, as long as the run has capacity for more parallel
+   * segments. A segment is only started in parallel with the others if none of its replicas are
+   * involved in the repairs already running. If there are no segments left, we're done.
    */
-  private void startNextSegment() throws ReaperException {
-    // Currently not allowing parallel repairs.
-    assert
-        context.storage.getSegmentAmountForRepairRun(repairRunId, RepairSegment.State.RUNNING) == 0;
-    Optional<RepairSegment> nextSegment = context.storage.getNextFreeSegment(repairRunId);
-    if (nextSegment.isPresent()) {
-      repairSegment(nextSegment.get().getId(), nextSegment.get().getTokenRange());
-    } else {
-      end();
+  private synchronized void startNextSegments() throws ReaperException {
+    int maxParallelSegments = context.repairManager.getMaxParallelSegmentsPerRun();
+    if (runningSegments.size() >= maxParallelSegments) {
+      LOG.debug("repair run #{} already repairing {} segments", repairRunId,
+                runningSegments.size());
+      return;
     }
+
+    RepairRun repairRun = context.storage.getRepairRun(repairRunId).get();
+    RepairUnit repairUnit = context.storage.getRepairUnit(repairRun.getRepairUnitId()).get();
+    if (!connectJmx(repairUnit)) {
+      if (runningSegments.isEmpty()) {
+        // otherwise the next finished segment will trigger a new try
+        context.repairManager.scheduleRetry(this);
+      }
+      return;
+    }
+    startFreeSegments(repairRun, repairUnit, maxParallelSegments);
   }
 
   /**
-   * Start the repair of a segment.
-   *
-   * @param segmentId  id of the segment to repair.
-   * @param tokenRange token range of the segment to repair.
+   * Goes through the free segments of the run, fetched once, starting each one which has none of
+   * its replicas busy with the repairs already running in this run, nor with as many sessions of
+   * other runs as allowed. Only the segments found free are claimed, so that the ranges of the
+   * ring holding no free segment cost no round trip to the storage, and a run waiting for the
+   * replicas of its first segment still repairs the segments whose replicas are free.
    */
-  private void repairSegment(long segmentId, RingRange tokenRange) throws ReaperException {
-    RepairRun repairRun = context.storage.getRepairRun(repairRunId).get();
-    RepairUnit repairUnit = context.storage.getRepairUnit(repairRun.getRepairUnitId()).get();
-    String keyspace = repairUnit.getKeyspaceName();
-    LOG.debug("preparing to repair segment {} on run with id {}", segmentId, repairRun.getId());
+  private void startFreeSegments(RepairRun repairRun, RepairUnit repairUnit,
+                                 int maxParallelSegments) throws ReaperException {
+    List<RepairSegment> freeSegments = Lists.newArrayList(
+        context.storage.getSegmentsWithState(repairRunId, RepairSegment.State.NOT_STARTED));
+    if (freeSegments.isEmpty()) {
+      if (runningSegments.isEmpty()) {
+        end();
+      }
+      return;
+    }
+    Set<String> busyHosts = Sets.newHashSet();
+    for (List<String> replicas : runningSegments.values()) {
+      busyHosts.addAll(replicas);
+    }
+    RingSnapshot ring = context.ringSnapshots.get(repairUnit.getClusterName(),
+                                                  repairUnit.getKeyspaceName(), jmxConnection);
+    Collections.sort(freeSegments, CLAIM_ORDER);
+    for (RepairSegment freeSegment : freeSegments) {
+      if (runningSegments.size() >= maxParallelSegments) {
+        break;
+      }
+      List<String> replicas = ring.tokenRangeToEndpoint(freeSegment.getTokenRange());
+      // a segment without replicas is still claimed, for its faulty range to end the run
+      if (!replicas.isEmpty()
+          && (!Collections.disjoint(busyHosts, replicas)
+              || !context.hostSessions.isAvailable(clusterName, replicas))) {
+        continue;
+      }
+      // the range of the segment encloses no other segment, so only this one can be claimed
+      Optional<RepairSegment> nextSegment =
+          context.storage.claimNextFreeSegmentInRange(repairRunId, freeSegment.getTokenRange());
+      if (nextSegment.isPresent()) {
+        if (!repairSegment(repairRun, repairUnit, nextSegment.get())) {
+          return;
+        }
+        busyHosts.addAll(runningSegments.get(nextSegment.get().getId()));
+      }
+    }
+    if (runningSegments.isEmpty()) {
+      // otherwise the next finished segment will trigger a new try
+      LOG.info("replicas of all free segments of repair run #{} are busy with other repair runs",
+               repairRunId);
+      context.lastEvents.record(repairRunId, "Waiting for the replicas to finish other repairs");
+      context.repairManager.scheduleRetry(this);
+    }
+  }
 
+  /**
+   * Makes sure the runner has a live JMX connection to the cluster.
+   *
+   * @return false if the connection could not be established.
+   */
+  private boolean connectJmx(RepairUnit repairUnit) {
     if (jmxConnection == null || !jmxConnection.isConnectionAlive()) {
       try {
         LOG.debug("connecting JMX proxy for repair runner on run id: {}", repairRunId);
@@ -164,15 +282,28 @@ public class RepairRunner implements Runnable {
       } catch (ReaperException e) {
         e.printStackTrace();
         LOG.warn("Failed to reestablish JMX connection in runner #{}, retrying", repairRunId);
-
-        context.repairManager.scheduleRetry(this);
-        return;
+        return false;
       }
       LOG.info("successfully reestablished JMX proxy for repair runner on run id: {}", repairRunId);
     }
+    return true;
+  }
 
-    List<String> potentialCoordinators = jmxConnection.tokenRangeToEndpoint(keyspace, tokenRange);
-    if (potentialCoordinators == null) {
+  /**
+   * Start the repair of a segment. The result is handled once the coordinator reports it.
+   *
+   * @param segment the segment to repair, already claimed by this runner.
+   * @return false if the repair run can't continue.
+   */
+  private boolean repairSegment(RepairRun repairRun, RepairUnit repairUnit,
+                                RepairSegment segment) {
+    final long segmentId = segment.getId();
+    String keyspace = repairUnit.getKeyspaceName();
+    LOG.debug("preparing to repair segment {} on run with id {}", segmentId, repairRun.getId());
+
+    final List<String> potentialCoordinators = context.ringSnapshots.tokenRangeToEndpoint(
+        repairUnit.getClusterName(), keyspace, jmxConnection, segment.getTokenRange());
+    if (potentialCoordinators.isEmpty()) {
       // This segment has a faulty token range. Abort the entire repair run.
       boolean success = context.storage.updateRepairRun(repairRun.with()
                                                             .runState(RepairRun.RunState.ERROR)
@@ -180,20 +311,111 @@ public class RepairRunner implements Runnable {
       if (!success) {
         LOG.error("failed updating repair run " + repairRun.getId());
       }
-      return;
+      return false;
     }
+    if (!context.hostSessions.tryAcquire(clusterName, potentialCoordinators)) {
+      // another run took the replicas meanwhile, so give the segment back without failing it
+      LOG.info("replicas of segment {} are busy with other repair runs", segmentId);
+      context.storage.updateRepairSegment(segment.with()
+                                              .state(RepairSegment.State.NOT_STARTED)
+                                              .startTime(null)
+                                              .build(segmentId));
+      context.lastEvents.record(repairRunId, "Waiting for the replicas to finish other repairs");
+      if (runningSegments.isEmpty()) {
+        context.repairManager.scheduleRetry(this);
+      }
+      return false;
+    }
+
+    ListenableFuture<RepairSegment.State> segmentResult;
+    try {
+      segmentResult = SegmentRunner.triggerRepair(context, segmentId, potentialCoordinators,
+                                                  context.repairManager.getRepairTimeoutMillis());
+    } catch (ReaperException e) {
+      segmentResult = Futures.immediateFailedFuture(e);
+    }
+    watchSegment(segmentId, potentialCoordinators, segmentResult);
+    return true;
+  }
+
+  /**
+   * Takes over a segment whose repair was triggered before a restart of Reaper, and is still
+   * running on the given coordinator. Must be called before the runner is started.
+   */
+  public synchronized void adoptSegment(RepairSegment segment, JmxProxy coordinator)
+      throws ReaperException {
+    RepairUnit repairUnit = context.storage.getRepairUnit(segment.getRepairUnitId()).get();
+    List<String> replicas = context.ringSnapshots.tokenRangeToEndpoint(
+        repairUnit.getClusterName(), repairUnit.getKeyspaceName(), coordinator,
+        segment.getTokenRange());
+    context.hostSessions.acquire(clusterName, replicas);
+    ListenableFuture<RepairSegment.State> segmentResult;
+    try {
+      segmentResult = SegmentRunner.adopt(
+          context, segment, coordinator, context.repairManager.getRepairTimeoutMillis());
+    } catch (ReaperException | RuntimeException e) {
+      context.hostSessions.release(clusterName, replicas);
+      throw e;
+    }
+    watchSegment(segment.getId(), replicas, segmentResult);
+  }
+
+  /**
+   * Counts the segment as running until its repair is over, and handles its result then. Its
+   * replicas must have been taken from the host session ledger.
+   */
+  private void watchSegment(final long segmentId, List<String> replicas,
+                            ListenableFuture<RepairSegment.State> segmentResult) {
+    assert Thread.holdsLock(this);
+    runningSegments.put(segmentId, replicas);
+    Futures.addCallback(segmentResult, new FutureCallback<RepairSegment.State>() {
+      @Override
+      public void onSuccess(RepairSegment.State state) {
+        try {
+          handleResult(segmentId);
+        } catch (RuntimeException e) {
+          fail(e);
+        }
+      }
 
-    currentlyRunningSegmentId = segmentId;
-    SegmentRunner.triggerRepair(context, segmentId, potentialCoordinators,
-                                context.repairManager.getRepairTimeoutMillis());
-    currentlyRunningSegmentId = null;
+      @Override
+      public void onFailure(Throwable t) {
+        releaseSegment(segmentId);
+        fail(t);
+      }
+    }, context.repairManager.getExecutor());
+  }
 
-    handleResult(segmentId);
+  /**
+   * Stops counting the segment as running, and gives its replicas back to the host session
+   * ledger. Their load is fetched again before repairing them next, now that they're done.
+   */
+  private void releaseSegment(long segmentId) {
+    List<String> replicas;
+    synchronized (this) {
+      replicas = runningSegments.remove(segmentId);
+    }
+    if (null != replicas) {
+      context.hostSessions.release(clusterName, replicas);
+      for (String replica : replicas) {
+        context.hostLoads.invalidate(clusterName, replica);
+      }
+    }
   }
 
   private void handleResult(long segmentId) {
-    RepairSegment segment = context.storage.getRepairSegment(segmentId).get();
-    RepairSegment.State state = segment.getState();
+    RepairSegment.State state;
+    long delay = 0;
+    try {
+      RepairSegment segment = context.storage.getRepairSegment(segmentId).get();
+      state = segment.getState();
+      if (RepairSegment.State.DONE == state) {
+        // the loads of the replicas are still cached until the segment is released
+        delay = intensityBasedDelayMillis(segment);
+      }
+    } finally {
+      releaseSegment(segmentId);
+    }
     LOG.debug("In repair run #{}, triggerRepair on segment {} ended with state {}",
               repairRunId, segmentId, state);
     switch (state) {
@@ -203,13 +425,10 @@ public class RepairRunner implements Runnable {
         break;
       case DONE:
         // Successful repair
-        long delay = intensityBasedDelayMillis(segment);
+        repairedSegments.mark();
         context.repairManager.scheduleNextRun(this, delay);
         String event = String.format("Waiting %ds because of intensity based delay", delay / 1000);
-        RepairRun updatedRepairRun =
-            context.storage.getRepairRun(repairRunId).get().with().lastEvent(event)
-                .build(repairRunId);
-        context.storage.updateRepairRun(updatedRepairRun);
+        context.lastEvents.record(repairRunId, event);
         break;
       default:
         // Another thread has started a new repair on this segment already
@@ -233,8 +452,41 @@ public class RepairRunner implements Runnable {
     long repairEnd = repairSegment.getEndTime().getMillis();
     long repairStart = repairSegment.getStartTime().getMillis();
     long repairDuration = repairEnd - repairStart;
-    long delay = (long) (repairDuration / repairRun.getIntensity() - repairDuration);
+    double intensity = repairRun.getIntensity();
+    if (intensityController.isPresent()) {
+      intensity = adaptIntensity(repairRun, repairSegment, intensityController.get());
+    }
+    long delay = (long) (repairDuration / intensity - repairDuration);
     LOG.debug("Scheduling next runner run() with delay {} ms", delay);
     return delay;
   }
+
+  /**
+   * Feeds the controller with the most pending compactions on the replicas of the segment, as
+   * found in the shared load of the hosts before the segment is released. The intensity is kept
+   * as is if a load can't be read.
+   */
+  private double adaptIntensity(RepairRun repairRun, RepairSegment repairSegment,
+                                IntensityController controller) {
+    try {
+      RepairUnit repairUnit = context.storage.getRepairUnit(repairRun.getRepairUnitId()).get();
+      List<String> replicas = context.ringSnapshots.tokenRangeToEndpoint(
+          repairUnit.getClusterName(), repairUnit.getKeyspaceName(), jmxConnection,
+          repairSegment.getTokenRange());
+      int pendingCompactions = 0;
+      for (String replica : replicas) {
+        pendingCompactions = Math.max(pendingCompactions, context.hostLoads.get(
+            repairUnit.getClusterName(), replica, context.jmxConnectionFactory)
+            .getPendingCompactions());
+      }
+      double intensity = controller.update(pendingCompactions);
+      LOG.debug("Intensity of repair run #{} is {} with {} pending compactions", repairRunId,
+                intensity, pendingCompactions);
+      return intensity;
+    } catch (ReaperException | RuntimeException e) {
+      LOG.warn("Failed reading the load of the replicas of segment {}, keeping intensity {}",
+               repairSegment.getId(), controller.getIntensity());
+      return controller.getIntensity();
+    }
+  }
 }
@@ -20,19 +20,31 @@ import java.math.BigInteger;
 // TODO: Check if this duplicates org.apache.cassandra.dht.Range.
 public class RingRange {
 
-  private final BigInteger start;
-  private final BigInteger end;
+  private final Token start;
+  private final Token end;
 
-  public RingRange(BigInteger start, BigInteger end) {
+  public RingRange(Token start, Token end) {
     this.start = start;
     this.end = end;
   }
 
+  public RingRange(BigInteger start, BigInteger end) {
+    this(Token.of(start), Token.of(end));
+  }
+
   public BigInteger getStart() {
-    return start;
+    return start.toBigInteger();
   }
 
   public BigInteger getEnd() {
+    return end.toBigInteger();
+  }
+
+  public Token getStartToken() {
+    return start;
+  }
+
+  public Token getEndToken() {
     return end;
   }
 
@@ -42,31 +54,38 @@ public class RingRange {
    * @return size of the range, max - range, in case of wrap
    */
   public BigInteger span(BigInteger ringSize) {
-    if (SegmentGenerator.greaterThanOrEqual(start, end)) {
-      return end.subtract(start).add(ringSize);
+    if (isWrapping()) {
+      return getEnd().subtract(getStart()).add(ringSize);
     } else {
-      return end.subtract(start);
+      return getEnd().subtract(getStart());
     }
   }
 
+  /**
+   * Same as {@link #span(BigInteger)}, without allocating. The span wraps around modulo 2^128
+   * like {@link Token#add(Token)} does, so it must be read as an unsigned integer: the span of a
+   * whole RandomPartitioner ring, 2^127, has the sign bit set.
+   */
+  public Token span(Token ringSize) {
+    Token span = end.subtract(start);
+    return isWrapping() ? span.add(ringSize) : span;
+  }
+
   /**
    * @return true if other is enclosed in this range.
    */
   public boolean encloses(RingRange other) {
     if (this.isWrapping()) {
       if (other.isWrapping()) {
-        return SegmentGenerator.greaterThanOrEqual(other.start, start) &&
-               SegmentGenerator.lowerThanOrEqual(other.end, end);
+        return other.start.compareTo(start) >= 0 && other.end.compareTo(end) <= 0;
       } else {
-        return SegmentGenerator.greaterThanOrEqual(other.start, start) ||
-               SegmentGenerator.lowerThanOrEqual(other.end, end);
+        return other.start.compareTo(start) >= 0 || other.end.compareTo(end) <= 0;
       }
     } else {
       if (other.isWrapping()) {
         return false;
       } else {
-        return SegmentGenerator.greaterThanOrEqual(other.start, start) &&
-               SegmentGenerator.lowerThanOrEqual(other.end, end);
+        return other.start.compareTo(start) >= 0 && other.end.compareTo(end) <= 0;
       }
     }
   }
@@ -76,7 +95,7 @@ public class RingRange {
    */
   @VisibleForTesting
   public boolean isWrapping() {
-    return SegmentGenerator.greaterThanOrEqual(start, end);
+    return start.compareTo(end) >= 0;
   }
 
   @Override
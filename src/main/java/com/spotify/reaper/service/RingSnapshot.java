@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Immutable view of the token ring of a keyspace, mapping each token range to its replicas.
+ * Ranges are indexed by their end token, so finding the range enclosing a segment takes
+ * O(log n) rather than a scan of all the (virtual) node ranges.
+ */
+public final class RingSnapshot {
+
+  private final Map<RingRange, List<String>> rangeToEndpoint;
+  private final NavigableMap<Token, Map.Entry<RingRange, List<String>>> rangesByEnd;
+
+  public RingSnapshot(Map<RingRange, List<String>> rangeToEndpoint) {
+    this.rangeToEndpoint = ImmutableMap.copyOf(rangeToEndpoint);
+    this.rangesByEnd = Maps.newTreeMap();
+    for (Map.Entry<RingRange, List<String>> entry : this.rangeToEndpoint.entrySet()) {
+      rangesByEnd.put(entry.getKey().getEndToken(), Maps.immutableEntry(
+          entry.getKey(), (List<String>) ImmutableList.copyOf(entry.getValue())));
+    }
+  }
+
+  /**
+   * @return all token ranges of the ring, each mapped to the hosts owning it.
+   */
+  public Map<RingRange, List<String>> getRangeToEndpointMap() {
+    return rangeToEndpoint;
+  }
+
+  public boolean isEmpty() {
+    return rangeToEndpoint.isEmpty();
+  }
+
+  /**
+   * @return the hosts owning the range which encloses the given token range, or an empty list if
+   * no single range encloses it.
+   */
+  public List<String> tokenRangeToEndpoint(RingRange tokenRange) {
+    if (rangesByEnd.isEmpty()) {
+      return ImmutableList.of();
+    }
+    // The range holding the end token of the segment is the one with the lowest end token not
+    // below it, or the wrapping range (which has the lowest end token of all) if there is none.
+    Map.Entry<Token, Map.Entry<RingRange, List<String>>> candidate =
+        rangesByEnd.ceilingEntry(tokenRange.getEndToken());
+    if (candidate == null) {
+      candidate = rangesByEnd.firstEntry();
+    }
+    if (candidate.getValue().getKey().encloses(tokenRange)) {
+      return candidate.getValue().getValue();
+    }
+    // Only happens for segments spanning several ranges, or rings with overlapping ranges.
+    for (Map.Entry<RingRange, List<String>> entry : rangesByEnd.values()) {
+      if (entry.getKey().encloses(tokenRange)) {
+        return entry.getValue();
+      }
+    }
+    return ImmutableList.of();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import com.spotify.reaper.cassandra.JmxProxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring snapshots shared by all repair runners, per cluster and keyspace. A snapshot is fetched
+ * over JMX when missing or older than the time to live, or when it can't place a segment (which
+ * is a hint that the topology changed).
+ */
+public class RingSnapshotCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RingSnapshotCache.class);
+
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final Cache<Key, RingSnapshot> snapshots;
+
+  public RingSnapshotCache() {
+    this(DEFAULT_TTL_MILLIS);
+  }
+
+  public RingSnapshotCache(long ttlMillis) {
+    snapshots = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @param jmxProxy connection to a node of the cluster, used if the snapshot must be fetched.
+   */
+  public RingSnapshot get(String clusterName, String keyspace, final JmxProxy jmxProxy) {
+    final Key key = new Key(clusterName, keyspace);
+    try {
+      return snapshots.get(key, new Callable<RingSnapshot>() {
+        @Override
+        public RingSnapshot call() {
+          LOG.debug("fetching token ring of keyspace {} in cluster {}", key.keyspace,
+                    key.clusterName);
+          return new RingSnapshot(jmxProxy.getRangeToEndpointMap(key.keyspace));
+        }
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new RuntimeException("failed fetching token ring of keyspace " + keyspace, e);
+    }
+  }
+
+  /**
+   * Finds the replicas of a token range, refreshing the snapshot once if the range can't be
+   * placed in it.
+   *
+   * @return the hosts owning the range, or an empty list if no single range of the ring encloses
+   * it.
+   */
+  public List<String> tokenRangeToEndpoint(String clusterName, String keyspace,
+                                           JmxProxy jmxProxy, RingRange tokenRange) {
+    List<String> replicas = get(clusterName, keyspace, jmxProxy).tokenRangeToEndpoint(tokenRange);
+    if (replicas.isEmpty()) {
+      invalidate(clusterName, keyspace);
+      replicas = get(clusterName, keyspace, jmxProxy).tokenRangeToEndpoint(tokenRange);
+    }
+    return replicas;
+  }
+
+  public void invalidate(String clusterName, String keyspace) {
+    snapshots.invalidate(new Key(clusterName, keyspace));
+  }
+
+  private static final class Key {
+
+    private final String clusterName;
+    private final String keyspace;
+
+    private Key(String clusterName, String keyspace) {
+      this.clusterName = clusterName;
+      this.keyspace = keyspace;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return clusterName.equals(that.clusterName) && keyspace.equals(that.keyspace);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(clusterName, keyspace);
+    }
+  }
+}
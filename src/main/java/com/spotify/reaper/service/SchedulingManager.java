@@ -1,7 +1,13 @@
 package com.spotify.reaper.service;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
@@ -11,33 +17,86 @@ import com.spotify.reaper.core.RepairSchedule;
 import com.spotify.reaper.core.RepairUnit;
 import com.spotify.reaper.resources.CommonTools;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.annotation.Nullable;
-
-public class SchedulingManager extends TimerTask {
+/**
+ * Starts the repair runs of repair schedules when they are due. The schedules are kept in memory,
+ * ordered by their next activation, and the manager wakes up when the first one is due. The due
+ * schedules are then managed by a worker of their cluster, which creates their repair run.
+ */
+public final class SchedulingManager {
 
   private static final Logger LOG = LoggerFactory.getLogger(SchedulingManager.class);
 
-  private static TimerTask schedulingManager;
+  // Minimum time between two wake-ups, so that a schedule that is several periods late doesn't
+  // keep the manager busy.
+  private static final long MIN_WAKE_UP_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // Creating a run connects to the cluster, so it's bounded in time and done by one worker thread
+  // per cluster.
+  private static final long RUN_CREATION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final int MAX_PENDING_SCHEDULES_PER_CLUSTER = 100;
+  private static final long WORKER_KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static volatile SchedulingManager schedulingManager;
 
   public static void start(AppContext context) {
+    start(context, MIN_WAKE_UP_INTERVAL_MILLIS, RUN_CREATION_TIMEOUT_MILLIS);
+  }
+
+  @VisibleForTesting
+  public static synchronized void start(AppContext context, long minWakeUpIntervalMillis,
+                                        long runCreationTimeoutMillis) {
     if (null == schedulingManager) {
       LOG.info("Starting new SchedulingManager instance");
-      schedulingManager = new SchedulingManager(context);
-      Timer timer = new Timer("SchedulingManagerTimer");
-      timer.schedule(schedulingManager, 1000, 1000 * 60); // activate once per minute
+      schedulingManager =
+          new SchedulingManager(context, minWakeUpIntervalMillis, runCreationTimeoutMillis);
+      schedulingManager.load();
     } else {
       LOG.warn("there is already one instance of SchedulingManager running, not starting new");
     }
   }
 
+  /**
+   * Stops the running instance, if any, interrupting the schedules being managed.
+   */
+  @VisibleForTesting
+  public static synchronized void stop() {
+    if (null != schedulingManager) {
+      schedulingManager.shutdown();
+      schedulingManager = null;
+    }
+  }
+
+  /**
+   * Must be called after adding or changing a repair schedule in storage, so that the schedule is
+   * activated at its new next activation time.
+   */
+  public static void scheduleChanged(RepairSchedule schedule) {
+    SchedulingManager manager = schedulingManager;
+    if (null != manager) {
+      manager.enqueue(schedule.getId(), schedule.getNextActivation().getMillis());
+    }
+  }
+
   public static void pauseRepairSchedule(AppContext context, RepairSchedule schedule) {
     RepairSchedule updatedSchedule = schedule.with()
         .state(RepairSchedule.State.PAUSED)
@@ -46,6 +105,7 @@ public class SchedulingManager extends TimerTask {
     if (!context.storage.updateRepairSchedule(updatedSchedule)) {
       throw new RuntimeException("failed updating repair schedule " + updatedSchedule.getId());
     }
+    scheduleChanged(updatedSchedule);
   }
 
   public static void resumeRepairSchedule(AppContext context, RepairSchedule schedule) {
@@ -56,53 +116,199 @@ public class SchedulingManager extends TimerTask {
     if (!context.storage.updateRepairSchedule(updatedSchedule)) {
       throw new RuntimeException("failed updating repair schedule " + updatedSchedule.getId());
     }
+    scheduleChanged(updatedSchedule);
   }
 
-  private AppContext context;
+  private final AppContext context;
+  private final long minWakeUpIntervalMillis;
+  private final long runCreationTimeoutMillis;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("SchedulingManager"));
 
-  /* nextActivatedSchedule used for nicer logging only */
-  @Nullable
-  private RepairSchedule nextActivatedSchedule;
+  // The next activations of all schedules, first due first, and by schedule id. Guarded by this.
+  private final NavigableSet<Activation> activations = Sets.newTreeSet();
+  private final Map<Long, Activation> activationsByScheduleId = Maps.newHashMap();
+  // The worker of each cluster. Guarded by this.
+  private final Map<String, ThreadPoolExecutor> clusterWorkers = Maps.newHashMap();
+  // The pending wake-up, if any, and when it happens. Guarded by this.
+  private ScheduledFuture<?> wakeUp;
+  private long wakeUpTime;
+  private long lastWakeUpTime;
 
-  private SchedulingManager(AppContext context) {
+  private SchedulingManager(AppContext context, long minWakeUpIntervalMillis,
+                            long runCreationTimeoutMillis) {
     this.context = context;
+    this.minWakeUpIntervalMillis = minWakeUpIntervalMillis;
+    this.runCreationTimeoutMillis = runCreationTimeoutMillis;
+  }
+
+  private synchronized void shutdown() {
+    executor.shutdownNow();
+    for (ThreadPoolExecutor worker : clusterWorkers.values()) {
+      worker.shutdownNow();
+    }
+  }
+
+  private void load() {
+    for (RepairSchedule schedule : context.storage.getAllRepairSchedules()) {
+      enqueue(schedule.getId(), schedule.getNextActivation().getMillis());
+    }
+  }
+
+  private synchronized void enqueue(long scheduleId, long activationTime) {
+    Activation previous = activationsByScheduleId.remove(scheduleId);
+    if (null != previous) {
+      activations.remove(previous);
+    }
+    Activation activation = new Activation(activationTime, scheduleId);
+    activations.add(activation);
+    activationsByScheduleId.put(scheduleId, activation);
+    scheduleWakeUp();
   }
 
   /**
-   * Called regularly, do not block!
+   * Makes sure the manager wakes up when the first schedule is due.
    */
-  @Override
-  public void run() {
-    LOG.debug("Checking for repair schedules...");
-    long lastId = -1;
-    try {
-      Collection<RepairSchedule> schedules = context.storage.getAllRepairSchedules();
-      boolean anyRunStarted = false;
-      for (RepairSchedule schedule : schedules) {
-        lastId = schedule.getId();
-        boolean runStarted = manageSchedule(schedule);
-        if (runStarted) {
-          anyRunStarted = true;
+  private void scheduleWakeUp() {
+    assert Thread.holdsLock(this);
+    if (activations.isEmpty()) {
+      return;
+    }
+    long time = Math.max(activations.first().time, lastWakeUpTime + minWakeUpIntervalMillis);
+    if (null != wakeUp) {
+      if (wakeUpTime <= time) {
+        return;
+      }
+      wakeUp.cancel(false);
+    }
+    LOG.debug("next repair schedule activation is '{}' for schedule id '{}'",
+              new DateTime(activations.first().time), activations.first().scheduleId);
+    wakeUpTime = time;
+    wakeUp = executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        wakeUp();
+      }
+    }, Math.max(0, time - DateTimeUtils.currentTimeMillis()), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Hands the schedules that are due over to the worker of their cluster.
+   */
+  private void wakeUp() {
+    List<Long> dueScheduleIds = Lists.newArrayList();
+    synchronized (this) {
+      wakeUp = null;
+      lastWakeUpTime = DateTimeUtils.currentTimeMillis();
+      while (!activations.isEmpty() && activations.first().time <= lastWakeUpTime) {
+        Activation due = activations.pollFirst();
+        activationsByScheduleId.remove(due.scheduleId);
+        dueScheduleIds.add(due.scheduleId);
+      }
+    }
+    LOG.debug("Checking {} due repair schedules...", dueScheduleIds.size());
+    for (long scheduleId : dueScheduleIds) {
+      try {
+        Optional<RepairSchedule> schedule = context.storage.getRepairSchedule(scheduleId);
+        if (schedule.isPresent()) {
+          RepairUnit repairUnit =
+              context.storage.getRepairUnit(schedule.get().getRepairUnitId()).get();
+          submit(repairUnit.getClusterName(), scheduleId);
         }
+      } catch (Exception ex) {
+        LOG.error("failed managing schedule for run with id: {}", scheduleId);
+        LOG.error("catch exception", ex);
+        retryLater(scheduleId);
       }
-      if (!anyRunStarted && nextActivatedSchedule != null) {
-        LOG.debug("not scheduling new repairs yet, next activation is '{}' for schedule id '{}'",
-                  nextActivatedSchedule.getNextActivation(), nextActivatedSchedule.getId());
+    }
+    synchronized (this) {
+      scheduleWakeUp();
+    }
+  }
+
+  private void retryLater(long scheduleId) {
+    enqueue(scheduleId, DateTimeUtils.currentTimeMillis() + RETRY_DELAY_MILLIS);
+  }
+
+  /**
+   * Manages the schedule on the worker of its cluster, so that a cluster that is slow to reach
+   * only delays its own schedules. The following activation of the schedule is queued once it's
+   * managed, or a retry if it failed or waited for the worker longer than the run creation
+   * timeout. Once started, managing the schedule isn't interrupted, as that could leave a new
+   * repair run registered without its segments.
+   */
+  private void submit(String clusterName, final long scheduleId) {
+    // set by whichever comes first, the worker starting to manage or the timeout
+    final AtomicBoolean claimed = new AtomicBoolean();
+    final Future<?> managing;
+    try {
+      managing = clusterWorker(clusterName).submit(new Runnable() {
+        @Override
+        public void run() {
+          if (!claimed.compareAndSet(false, true)) {
+            return;
+          }
+          try {
+            // read again, the schedule may have been managed by a timed out attempt meanwhile
+            Optional<RepairSchedule> schedule = context.storage.getRepairSchedule(scheduleId);
+            if (schedule.isPresent()) {
+              RepairSchedule managed = manageSchedule(schedule.get());
+              enqueue(scheduleId, managed.getNextActivation().getMillis());
+            }
+          } catch (Exception ex) {
+            LOG.error("failed managing schedule for run with id: {}", scheduleId);
+            LOG.error("catch exception", ex);
+            retryLater(scheduleId);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOG.warn("too many repair schedules waiting for cluster {}, retrying schedule {} later",
+               clusterName, scheduleId);
+      retryLater(scheduleId);
+      return;
+    }
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (claimed.compareAndSet(false, true)) {
+          managing.cancel(false);
+          LOG.error("managing repair schedule {} timed out, retrying later", scheduleId);
+          retryLater(scheduleId);
+        } else if (!managing.isDone()) {
+          LOG.warn("managing repair schedule {} is taking longer than {} ms", scheduleId,
+                   runCreationTimeoutMillis);
+        }
       }
-    } catch (Exception ex) {
-      LOG.error("failed managing schedule for run with id: {}", lastId);
-      LOG.error("catch exception", ex);
+    }, runCreationTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the single thread worker of the given cluster, with a bounded queue. Its thread stops
+   * when idle.
+   */
+  private synchronized ThreadPoolExecutor clusterWorker(String clusterName) {
+    ThreadPoolExecutor worker = clusterWorkers.get(clusterName);
+    if (null == worker) {
+      worker = new ThreadPoolExecutor(
+          1, 1, WORKER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(MAX_PENDING_SCHEDULES_PER_CLUSTER),
+          new NamedThreadFactory("SchedulingManager:" + clusterName));
+      worker.allowCoreThreadTimeOut(true);
+      clusterWorkers.put(clusterName, worker);
     }
+    return worker;
   }
 
   /**
    * Manage, i.e. check whether a new repair run should be started with this schedule.
    * @param schedule The schedule to be checked for activation.
-   * @return boolean indicating whether a new RepairRun instance was created and started.
+   * @return the schedule, with its next activation moved forward if it was due.
    * @throws ReaperException
    */
-  private boolean manageSchedule(RepairSchedule schedule) throws ReaperException {
+  private RepairSchedule manageSchedule(RepairSchedule schedule) throws ReaperException {
     boolean startNewRun = false;
+    RepairSchedule managedSchedule = schedule;
     if (schedule.getNextActivation().isBeforeNow()) {
       startNewRun = true;
       LOG.info("repair unit '{}' should be repaired based on RepairSchedule with id '{}'",
@@ -130,25 +336,20 @@ public class SchedulingManager extends TimerTask {
         RepairRun startedRun = startNewRunForUnit(schedule, repairUnit);
         ImmutableList<Long> newRunHistory = new ImmutableList.Builder<Long>()
             .addAll(schedule.getRunHistory()).add(startedRun.getId()).build();
-        context.storage.updateRepairSchedule(schedule.with()
-                                                 .runHistory(newRunHistory)
-                                                 .nextActivation(schedule.getFollowingActivation())
-                                                 .build(schedule.getId()));
+        managedSchedule = schedule.with()
+            .runHistory(newRunHistory)
+            .nextActivation(schedule.getFollowingActivation())
+            .build(schedule.getId());
       } else {
         LOG.warn("skip scheduling, next activation for repair schedule '{}' will be: {}",
                  schedule.getId(), schedule.getFollowingActivation());
-        context.storage.updateRepairSchedule(schedule.with()
-                                                 .nextActivation(schedule.getFollowingActivation())
-                                                 .build(schedule.getId()));
-      }
-    } else {
-      if (nextActivatedSchedule == null) {
-        nextActivatedSchedule = schedule;
-      } else if (nextActivatedSchedule.getNextActivation().isAfter(schedule.getNextActivation())) {
-        nextActivatedSchedule = schedule;
+        managedSchedule = schedule.with()
+            .nextActivation(schedule.getFollowingActivation())
+            .build(schedule.getId());
       }
+      context.storage.updateRepairSchedule(managedSchedule);
     }
-    return startNewRun;
+    return managedSchedule;
   }
 
   private RepairRun startNewRunForUnit(RepairSchedule schedule, RepairUnit repairUnit)
@@ -162,4 +363,35 @@ public class SchedulingManager extends TimerTask {
     return newRepairRun;
   }
 
+  /**
+   * When a schedule is due next.
+   */
+  private static final class Activation implements Comparable<Activation> {
+
+    private final long time;
+    private final long scheduleId;
+
+    private Activation(long time, long scheduleId) {
+      this.time = time;
+      this.scheduleId = scheduleId;
+    }
+
+    @Override
+    public int compareTo(Activation other) {
+      return ComparisonChain.start()
+          .compare(time, other.time)
+          .compare(scheduleId, other.scheduleId)
+          .result();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Activation && 0 == compareTo((Activation) other);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(time, scheduleId);
+    }
+  }
 }
@@ -15,6 +15,7 @@ package com.spotify.reaper.service;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedLongs;
 
 import com.spotify.reaper.ReaperException;
 
@@ -31,10 +32,17 @@ public class SegmentGenerator {
 
   private static final Logger LOG = LoggerFactory.getLogger(SegmentGenerator.class);
 
+  private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
   private final String partitioner;
+  // Murmur3Partitioner tokens span the whole range of a long, so its ring arithmetic can be done
+  // with longs wrapping around modulo 2^64.
+  private final boolean longTokens;
   private BigInteger RANGE_MIN;
   private BigInteger RANGE_MAX;
   private BigInteger RANGE_SIZE;
+  // RANGE_SIZE, for adding up the spans of segments without allocating
+  private final Token ringSize;
 
   public SegmentGenerator(String partitioner) throws ReaperException {
     if (partitioner.endsWith("RandomPartitioner")) {
@@ -47,7 +55,10 @@ public class SegmentGenerator {
       throw new ReaperException("Unsupported partitioner " + partitioner);
     }
     RANGE_SIZE = RANGE_MAX.subtract(RANGE_MIN).add(BigInteger.ONE);
+    // computed from the bounds, as 2^127 doesn't fit in a signed token
+    ringSize = Token.of(RANGE_MAX).add(Token.of(1L)).subtract(Token.of(RANGE_MIN));
     this.partitioner = partitioner;
+    this.longTokens = partitioner.endsWith("Murmur3Partitioner");
   }
 
   @VisibleForTesting
@@ -91,6 +102,24 @@ public class SegmentGenerator {
    */
   public List<RingRange> generateSegments(int totalSegmentCount, List<BigInteger> ringTokens)
       throws ReaperException {
+    List<RingRange> repairSegments;
+    if (longTokens && ringTokens.size() > 1) {
+      repairSegments = generateLongSegments(totalSegmentCount, ringTokens);
+    } else {
+      repairSegments = generateBigIntegerSegments(totalSegmentCount, ringTokens);
+    }
+    checkWholeRingRepaired(repairSegments);
+    return repairSegments;
+  }
+
+  /**
+   * Same as {@link #generateSegments(int, List)}, computing with BigIntegers for any partitioner
+   * and ring, without checking that the segments cover the whole ring.
+   */
+  @VisibleForTesting
+  public List<RingRange> generateBigIntegerSegments(int totalSegmentCount,
+                                                    List<BigInteger> ringTokens)
+      throws ReaperException {
     int tokenRangeCount = ringTokens.size();
 
     List<RingRange> repairSegments = Lists.newArrayList();
@@ -143,16 +172,81 @@ public class SegmentGenerator {
       }
     }
 
-    // verify that the whole range is repaired
-    BigInteger total = BigInteger.ZERO;
+    return repairSegments;
+  }
+
+  /**
+   * Same as {@link #generateBigIntegerSegments(int, List)}, but computing with longs instead of
+   * BigIntegers. Only valid for Murmur3Partitioner rings with more than one token, where no token
+   * range spans the whole ring.
+   */
+  private List<RingRange> generateLongSegments(int totalSegmentCount, List<BigInteger> ringTokens)
+      throws ReaperException {
+    int tokenRangeCount = ringTokens.size();
+    long[] tokens = new long[tokenRangeCount];
+    for (int i = 0; i < tokenRangeCount; i++) {
+      BigInteger token = ringTokens.get(i);
+      if (!inRange(token)) {
+        throw new ReaperException(String.format("Token %s not in range of %s",
+                                                token, partitioner));
+      }
+      tokens[i] = token.longValue();
+    }
+
+    List<RingRange> repairSegments = Lists.newArrayList();
+    for (int i = 0; i < tokenRangeCount; i++) {
+      long start = tokens[i];
+      long stop = tokens[(i + 1) % tokenRangeCount];
+      if (start == stop) {
+        throw new ReaperException(String.format("Tokens (%s,%s): two nodes have the same token",
+                                                start, stop));
+      }
+
+      // unsigned, wrapping around the ring if stop is lower than start
+      long rangeSize = stop - start;
+
+      // segmentCount = ceiling((rangeSize / 2^64) * totalSegmentCount), computing the 96 bits
+      // wide product in two halves
+      long lowProduct = (rangeSize & LOW_32_BITS) * totalSegmentCount;
+      long highProduct = (rangeSize >>> 32) * totalSegmentCount + (lowProduct >>> 32);
+      long remainder = (highProduct << 32) | (lowProduct & LOW_32_BITS);
+      int segmentCount = (int) (highProduct >>> 32) + (remainder == 0 ? 0 : 1);
+
+      LOG.info("Dividing token range [{},{}) into {} segments", start, stop, segmentCount);
+
+      // offset(j) = floor(rangeSize * j / segmentCount), with rangeSize split into a quotient and
+      // a remainder by segmentCount so nothing overflows
+      long quotient = UnsignedLongs.divide(rangeSize, segmentCount);
+      long rest = UnsignedLongs.remainder(rangeSize, segmentCount);
+      Token segmentStart = Token.of(start);
+      for (int j = 1; j <= segmentCount; j++) {
+        long offset = quotient * j + rest * j / segmentCount;
+        Token segmentEnd = Token.of(start + offset);
+        repairSegments.add(new RingRange(segmentStart, segmentEnd));
+        LOG.debug("Segment #{}: [{},{})", j, segmentStart, segmentEnd);
+        segmentStart = segmentEnd;
+      }
+    }
+
+    return repairSegments;
+  }
+
+  /**
+   * Verifies that the segments cover the whole ring: their spans must add up to exactly the size
+   * of the ring. No correct total gets anywhere near overflowing 128 bits.
+   */
+  private void checkWholeRingRepaired(List<RingRange> repairSegments) throws ReaperException {
+    Token total = Token.of(0L);
     for (RingRange segment : repairSegments) {
-      BigInteger size = segment.span(RANGE_SIZE);
-      total = total.add(size);
+      Token newTotal = total.add(segment.span(ringSize));
+      if (newTotal.compareUnsigned(total) <= 0) {
+        throw new ReaperException("Not entire ring would get repaired");
+      }
+      total = newTotal;
     }
-    if (!total.equals(RANGE_SIZE)) {
+    if (!total.equals(ringSize)) {
       throw new ReaperException("Not entire ring would get repaired");
     }
-    return repairSegments;
   }
 
   protected boolean inRange(BigInteger token) {
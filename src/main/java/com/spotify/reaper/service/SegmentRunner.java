@@ -13,12 +13,17 @@
  */
 package com.spotify.reaper.service;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.HostLoad;
 import com.spotify.reaper.cassandra.JmxProxy;
 import com.spotify.reaper.cassandra.RepairStatusHandler;
 import com.spotify.reaper.core.RepairRun;
@@ -26,7 +31,6 @@ import com.spotify.reaper.core.RepairSegment;
 import com.spotify.reaper.core.RepairUnit;
 
 import org.apache.cassandra.service.ActiveRepairService;
-import org.apache.cassandra.utils.SimpleCondition;
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
 import org.slf4j.Logger;
@@ -34,18 +38,39 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
 
 public final class SegmentRunner implements RepairStatusHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(SegmentRunner.class);
   private static final int MAX_PENDING_COMPACTIONS = 20;
 
+  // reasons of postponing a segment, counted separately
+  private static final String COORDINATOR_UNREACHABLE = "coordinator-unreachable";
+  private static final String REPLICAS_UNREACHABLE = "replicas-unreachable";
+  private static final String PENDING_COMPACTIONS = "pending-compactions";
+  private static final String HOST_ALREADY_REPAIRING = "host-already-repairing";
+  private static final String TRIGGER_FAILED = "trigger-failed";
+  private static final String SESSION_FAILED = "session-failed";
+
   private final AppContext context;
   private final long segmentId;
-  private final Condition condition = new SimpleCondition();
+  private final SettableFuture<RepairSegment.State> result = SettableFuture.create();
   private int commandId;
+  // Both guarded by this, and only set while a repair command is outstanding.
+  private JmxProxy coordinator;
+  private ScheduledFuture<?> timeout;
+  // Guarded by this. Whether the coordinator reported the repair command as started, as opposed to
+  // the segment only being claimed for it.
+  private boolean repairStarted;
+  // set once the repair is triggered
+  private RepairUnit repairUnit;
 
   // Caching all active SegmentRunners.
   @VisibleForTesting
@@ -57,17 +82,58 @@ public final class SegmentRunner implements RepairStatusHandler {
   }
 
   /**
-   * Triggers a repair for a segment. Is blocking call.
+   * Triggers a repair for a segment. Returns as soon as the repair command has been sent to the
+   * coordinator, without waiting for the repair itself.
+   *
+   * @return a future completed with the state of the segment once the repair is over, either
+   * because the coordinator reported its outcome or because it timed out.
    */
-  public static void triggerRepair(AppContext context, long segmentId,
-                                   Collection<String> potentialCoordinators, long timeoutMillis)
-      throws ReaperException {
+  public static ListenableFuture<RepairSegment.State> triggerRepair(
+      AppContext context, long segmentId, Collection<String> potentialCoordinators,
+      long timeoutMillis) throws ReaperException {
     if (segmentRunners.containsKey(segmentId)) {
       throw new ReaperException("SegmentRunner already exists for segment with ID: " + segmentId);
     }
     SegmentRunner newSegmentRunner = new SegmentRunner(context, segmentId);
     segmentRunners.put(segmentId, newSegmentRunner);
     newSegmentRunner.runRepair(potentialCoordinators, timeoutMillis);
+    return newSegmentRunner.result;
+  }
+
+  /**
+   * Follows the repair of a segment that was triggered before a restart of Reaper, and is still
+   * running on its coordinator. The segment is timed out the same way as a newly triggered one,
+   * counting from the start of its repair.
+   *
+   * @return a future completed with the state of the segment once the repair is over.
+   */
+  public static ListenableFuture<RepairSegment.State> adopt(
+      AppContext context, RepairSegment segment, JmxProxy coordinator, long timeoutMillis)
+      throws ReaperException {
+    assert null != segment.getRepairCommandId() : "no repair command to adopt";
+    if (segmentRunners.containsKey(segment.getId())) {
+      throw new ReaperException(
+          "SegmentRunner already exists for segment with ID: " + segment.getId());
+    }
+    SegmentRunner newSegmentRunner = new SegmentRunner(context, segment.getId());
+    segmentRunners.put(segment.getId(), newSegmentRunner);
+    long remainingMillis = timeoutMillis;
+    if (null != segment.getStartTime()) {
+      remainingMillis = Math.max(
+          0, segment.getStartTime().getMillis() + timeoutMillis - DateTime.now().getMillis());
+    }
+    synchronized (newSegmentRunner) {
+      newSegmentRunner.commandId = segment.getRepairCommandId();
+      // the command is already running on the coordinator, so a timeout must cancel it
+      newSegmentRunner.repairStarted = true;
+      coordinator.addRepairStatusHandler(newSegmentRunner.commandId, newSegmentRunner);
+      newSegmentRunner.awaitOutcome(
+          coordinator, context.storage.getRepairUnit(segment.getRepairUnitId()).get(),
+          remainingMillis);
+    }
+    LOG.info("Adopted repair command {} of segment {} on coordinator {}",
+             segment.getRepairCommandId(), segment.getId(), coordinator.getHost());
+    return newSegmentRunner.result;
   }
 
   public static void postpone(AppContext context, RepairSegment segment) {
@@ -97,95 +163,252 @@ public final class SegmentRunner implements RepairStatusHandler {
   private void runRepair(Collection<String> potentialCoordinators, long timeoutMillis) {
     final RepairSegment segment = context.storage.getRepairSegment(segmentId).get();
     final RepairRun repairRun = context.storage.getRepairRun(segment.getRunId()).get();
-    try (JmxProxy coordinator = context.jmxConnectionFactory
-        .connectAny(Optional.<RepairStatusHandler>of(this), potentialCoordinators)) {
-      RepairUnit repairUnit = context.storage.getRepairUnit(segment.getRepairUnitId()).get();
-      String keyspace = repairUnit.getKeyspaceName();
+    JmxProxy coordinator;
+    try {
+      coordinator = context.jmxConnectionFactory.connectAnyPooled(potentialCoordinators);
+    } catch (ReaperException e) {
+      LOG.warn("Failed to connect to a coordinator node for segment {}", segmentId);
+      String msg = String.format("Postponed because couldn't any of the coordinators");
+      context.lastEvents.record(repairRun.getId(), msg);
+      countPostponement(COORDINATOR_UNREACHABLE);
+      postpone(segment);
+      result.set(RepairSegment.State.NOT_STARTED);
+      return;
+    }
+
+    synchronized (this) {
+      try {
+        RepairUnit repairUnit = context.storage.getRepairUnit(segment.getRepairUnitId()).get();
+        String keyspace = repairUnit.getKeyspaceName();
+
+        if (!canRepair(segment, repairUnit, coordinator)) {
+          postpone(segment);
+          result.set(RepairSegment.State.NOT_STARTED);
+          return;
+        }
 
-      if (!canRepair(segment, keyspace, coordinator)) {
+        commandId = coordinator.triggerRepair(segment.getStartToken(), segment.getEndToken(),
+                                              keyspace, repairRun.getRepairParallelism(),
+                                              repairUnit.getColumnFamilies(), this);
+      } catch (ReaperException e) {
+        LOG.warn("Failed to connect to the replicas of segment {}", segmentId);
+        countPostponement(REPLICAS_UNREACHABLE);
+        postpone(segment);
+        result.set(RepairSegment.State.NOT_STARTED);
+        return;
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to trigger repair of segment {}", segmentId);
+        countPostponement(TRIGGER_FAILED);
         postpone(segment);
+        result.setException(e);
         return;
       }
+      LOG.debug("Triggered repair with command id {}", commandId);
+      context.storage.updateRepairSegment(segment.with()
+                                              .coordinatorHost(coordinator.getHost())
+                                              .repairCommandId(commandId)
+                                              .build(segmentId));
+      String eventMsg = String.format("Triggered repair of segment %d via host %s",
+                                      segment.getId(), coordinator.getHost());
+      context.lastEvents.record(repairRun.getId(), eventMsg);
+      awaitOutcome(coordinator, repairUnit, timeoutMillis);
+    }
+  }
 
-      synchronized (condition) {
-        commandId = coordinator.triggerRepair(segment.getStartToken(), segment.getEndToken(),
-                                              keyspace, repairRun.getRepairParallelism(),
-                                              repairUnit.getColumnFamilies());
-        LOG.debug("Triggered repair with command id {}", commandId);
-        context.storage.updateRepairSegment(segment.with()
-                                                .coordinatorHost(coordinator.getHost())
-                                                .repairCommandId(commandId)
-                                                .build(segmentId));
-        String eventMsg = String.format("Triggered repair of segment %d via host %s",
-                                        segment.getId(), coordinator.getHost());
-        context.storage.updateRepairRun(
-            repairRun.with().lastEvent(eventMsg).build(repairRun.getId()));
-        LOG.info("Repair for segment {} started, status wait will timeout in {} millis", segmentId,
-                 timeoutMillis);
-        try {
-          condition.await(timeoutMillis, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-          LOG.warn("Repair command {} on segment {} interrupted", commandId, segmentId);
-        } finally {
-          RepairSegment resultingSegment = context.storage.getRepairSegment(segmentId).get();
-          LOG.info("Repair command {} on segment {} returned with state {}", commandId, segmentId,
-                   resultingSegment.getState());
-          if (resultingSegment.getState().equals(RepairSegment.State.RUNNING)) {
-            LOG.info("Repair command {} on segment {} has been cancelled while running", commandId,
-                     segmentId);
-            abort(resultingSegment, coordinator);
-          } else if (resultingSegment.getState().equals(RepairSegment.State.DONE)) {
-            LOG.debug("Repair segment with id '{}' was repaired in {} seconds",
-                      resultingSegment.getId(),
-                      Seconds.secondsBetween(
-                          resultingSegment.getStartTime(),
-                          resultingSegment.getEndTime()).getSeconds());
-            segmentRunners.remove(resultingSegment.getId());
-          }
-        }
+  /**
+   * Waits for the coordinator to report the outcome of the repair command, at most the given time.
+   */
+  private void awaitOutcome(JmxProxy coordinator, RepairUnit repairUnit, long timeoutMillis) {
+    assert Thread.holdsLock(this);
+    this.coordinator = coordinator;
+    this.repairUnit = repairUnit;
+    LOG.info("Repair for segment {} started, status wait will timeout in {} millis", segmentId,
+             timeoutMillis);
+    timeout = context.repairManager.scheduleTimeout(new Runnable() {
+      @Override
+      public void run() {
+        onTimeout();
       }
-    } catch (ReaperException e) {
-      LOG.warn("Failed to connect to a coordinator node for segment {}", segmentId);
-      String msg = String.format("Postponed because couldn't any of the coordinators");
-      context.storage.updateRepairRun(repairRun.with().lastEvent(msg).build(repairRun.getId()));
-      postpone(segment);
+    }, timeoutMillis);
+  }
+
+  /**
+   * Called when the coordinator hasn't reported the outcome of the repair in time.
+   */
+  private synchronized void onTimeout() {
+    if (coordinator == null) {
+      // the repair completed just before the timeout fired
+      return;
+    }
+    LOG.warn("Repair command {} on segment {} timed out", commandId, segmentId);
+    context.metricRegistry.counter(MetricRegistry.name(SegmentRunner.class, "timeouts")).inc();
+    RepairSegment resultingSegment = context.storage.getRepairSegment(segmentId).get();
+    if (!repairStarted) {
+      // the segment is RUNNING from the moment it is claimed, but the command may never have
+      // started, so there is nothing of ours to cancel on the coordinator
+      LOG.info("Repair command {} on segment {} never reported starting, postponing it",
+               commandId, segmentId);
+      postpone(resultingSegment);
+    } else if (resultingSegment.getState().equals(RepairSegment.State.RUNNING)) {
+      LOG.info("Repair command {} on segment {} has been cancelled while running", commandId,
+               segmentId);
+      abort(resultingSegment, coordinator);
+    } else {
+      segmentRunners.remove(segmentId);
+    }
+    complete();
+  }
+
+  /**
+   * Stops listening to the coordinator of a repair that is over, and publishes the resulting
+   * segment state.
+   */
+  private void complete() {
+    assert Thread.holdsLock(this);
+    if (timeout != null) {
+      timeout.cancel(false);
+      timeout = null;
+    }
+    coordinator.removeRepairStatusHandler(commandId);
+    coordinator = null;
+    RepairSegment resultingSegment = context.storage.getRepairSegment(segmentId).get();
+    LOG.info("Repair command {} on segment {} returned with state {}", commandId, segmentId,
+             resultingSegment.getState());
+    if (resultingSegment.getState().equals(RepairSegment.State.DONE)) {
+      LOG.debug("Repair segment with id '{}' was repaired in {} seconds",
+                resultingSegment.getId(),
+                Seconds.secondsBetween(
+                    resultingSegment.getStartTime(),
+                    resultingSegment.getEndTime()).getSeconds());
+      // in milliseconds, per cluster and keyspace
+      String durationName = MetricRegistry.name(SegmentRunner.class, "duration",
+                                                repairUnit.getClusterName(),
+                                                repairUnit.getKeyspaceName());
+      context.metricRegistry.histogram(durationName).update(
+          resultingSegment.getEndTime().getMillis() - resultingSegment.getStartTime().getMillis());
+      segmentRunners.remove(resultingSegment.getId());
     }
+    result.set(resultingSegment.getState());
   }
 
-  boolean canRepair(RepairSegment segment, String keyspace, JmxProxy coordinator)
+  /**
+   * Probes all replicas of the segment concurrently, and declines the segment as soon as one of
+   * them is too busy to be repaired. Each replica is given the probe timeout of the repair manager,
+   * counted from when its probe starts running, or was submitted if it is still waiting for a
+   * thread.
+   *
+   * @throws ReaperException if a replica can't be reached, fails to be probed, or doesn't answer
+   * in time.
+   */
+  boolean canRepair(RepairSegment segment, RepairUnit repairUnit, JmxProxy coordinator)
       throws ReaperException {
-    Collection<String> allHosts =
-        coordinator.tokenRangeToEndpoint(keyspace, segment.getTokenRange());
-    for (String hostName : allHosts) {
-      LOG.debug("checking host '{}' for pending compactions and other repairs (can repair?)"
-          + " Run id '{}'", hostName, segment.getRunId());
-      try (JmxProxy hostProxy = context.jmxConnectionFactory.connect(hostName)) {
-        int pendingCompactions = hostProxy.getPendingCompactions();
-        if (pendingCompactions > MAX_PENDING_COMPACTIONS) {
-          LOG.warn("SegmentRunner declined to repair segment {} because of too many pending "
-                   + "compactions (> {}) on host \"{}\"", segmentId, MAX_PENDING_COMPACTIONS,
-                   hostProxy.getHost());
-          String msg = String.format("Postponed due to pending compactions (%d)",
-                                     pendingCompactions);
-          RepairRun repairRun = context.storage.getRepairRun(segment.getRunId()).get();
-          context.storage.updateRepairRun(repairRun.with().lastEvent(msg).build(repairRun.getId()));
-          return false;
+    Collection<String> allHosts = context.ringSnapshots.tokenRangeToEndpoint(
+        repairUnit.getClusterName(), repairUnit.getKeyspaceName(), coordinator,
+        segment.getTokenRange());
+    CompletionService<Optional<String>> probes =
+        new ExecutorCompletionService<>(context.repairManager.getProbeExecutor());
+    Map<Future<Optional<String>>, HostProbe> pending = Maps.newHashMap();
+    long timeoutNanos =
+        TimeUnit.MILLISECONDS.toNanos(context.repairManager.getProbeTimeoutMillis());
+    try {
+      for (String hostName : allHosts) {
+        HostProbe probe = new HostProbe(segment, repairUnit.getClusterName(), hostName);
+        pending.put(probes.submit(probe), probe);
+      }
+      while (!pending.isEmpty()) {
+        long firstDeadline = Long.MAX_VALUE;
+        for (HostProbe probe : pending.values()) {
+          long remaining = probe.startNanos + timeoutNanos - System.nanoTime();
+          if (remaining <= 0) {
+            throw new ReaperException("Timed out probing host " + probe.hostName
+                                      + " for segment " + segmentId);
+          }
+          firstDeadline = Math.min(firstDeadline, remaining);
+        }
+        Future<Optional<String>> probed = probes.poll(firstDeadline, TimeUnit.NANOSECONDS);
+        if (probed == null) {
+          continue;
         }
-        if (hostProxy.isRepairRunning()) {
-          LOG.warn("SegmentRunner declined to repair segment {} because one of the hosts ({}) was "
-                   + "already involved in a repair", segmentId, hostProxy.getHost());
-          String msg = String.format("Postponed due to affected hosts already doing repairs");
-          RepairRun repairRun = context.storage.getRepairRun(segment.getRunId()).get();
-          context.storage.updateRepairRun(repairRun.with().lastEvent(msg).build(repairRun.getId()));
+        HostProbe probe = pending.remove(probed);
+        Optional<String> postponementReason;
+        try {
+          postponementReason = probed.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), Error.class);
+          throw new ReaperException("Failed probing host " + probe.hostName + " for segment "
+                                    + segmentId, (Exception) e.getCause());
+        }
+        if (postponementReason.isPresent()) {
+          countPostponement(postponementReason.get());
           return false;
         }
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ReaperException(e);
+    } finally {
+      for (Future<Optional<String>> probe : pending.keySet()) {
+        probe.cancel(true);
+      }
     }
     LOG.info("It is ok to repair segment '{}' om repair run with id '{}'",
              segment.getId(), segment.getRunId());
     return true;
   }
 
+  /**
+   * Probes one replica, telling why the segment should be postponed, if it should. The load of the
+   * replica is read from the shared cache.
+   */
+  private final class HostProbe implements Callable<Optional<String>> {
+
+    private final RepairSegment segment;
+    private final String clusterName;
+    private final String hostName;
+    // when the probe was submitted, and then when it started running
+    private volatile long startNanos = System.nanoTime();
+
+    private HostProbe(RepairSegment segment, String clusterName, String hostName) {
+      this.segment = segment;
+      this.clusterName = clusterName;
+      this.hostName = hostName;
+    }
+
+    @Override
+    public Optional<String> call() throws ReaperException {
+      startNanos = System.nanoTime();
+      LOG.debug("checking host '{}' for pending compactions and other repairs (can repair?)"
+          + " Run id '{}'", hostName, segment.getRunId());
+      HostLoad load =
+          context.hostLoads.get(clusterName, hostName, context.jmxConnectionFactory);
+      int pendingCompactions = load.getPendingCompactions();
+      if (pendingCompactions > MAX_PENDING_COMPACTIONS) {
+        LOG.warn("SegmentRunner declined to repair segment {} because of too many pending "
+                 + "compactions (> {}) on host \"{}\"", segmentId, MAX_PENDING_COMPACTIONS,
+                 hostName);
+        String msg = String.format("Postponed due to pending compactions (%d)",
+                                   pendingCompactions);
+        context.lastEvents.record(segment.getRunId(), msg);
+        return Optional.of(PENDING_COMPACTIONS);
+      }
+      // the repairs of other segments on the host, started by Reaper, are expected
+      if (load.isRepairRunning()
+          && context.hostSessions.getSessions(clusterName, hostName) <= 1) {
+        LOG.warn("SegmentRunner declined to repair segment {} because one of the hosts ({}) "
+                 + "was already involved in a repair", segmentId, hostName);
+        String msg = String.format("Postponed due to affected hosts already doing repairs");
+        context.lastEvents.record(segment.getRunId(), msg);
+        return Optional.of(HOST_ALREADY_REPAIRING);
+      }
+      return Optional.absent();
+    }
+  }
+
+  private void countPostponement(String reason) {
+    context.metricRegistry.counter(
+        MetricRegistry.name(SegmentRunner.class, "postponed", reason)).inc();
+  }
+
   private void postpone(RepairSegment segment) {
     postpone(context, segment);
   }
@@ -204,11 +427,11 @@ public final class SegmentRunner implements RepairStatusHandler {
    */
   @Override
   public void handle(int repairNumber, ActiveRepairService.Status status, String message) {
-    synchronized (condition) {
+    synchronized (this) {
       LOG.debug(
           "handle called for repairCommandId {}, outcome {} and message: {}",
           repairNumber, status, message);
-      if (repairNumber != commandId) {
+      if (repairNumber != commandId || coordinator == null) {
         LOG.debug("Handler for command id {} not handling message with number {}",
                   commandId, repairNumber);
         return;
@@ -218,6 +441,7 @@ public final class SegmentRunner implements RepairStatusHandler {
       // See status explanations from: https://wiki.apache.org/cassandra/RepairAsyncAPI
       switch (status) {
         case STARTED:
+          repairStarted = true;
           DateTime now = DateTime.now();
           context.storage.updateRepairSegment(currentSegment.with()
                                                   .state(RepairSegment.State.RUNNING)
@@ -227,8 +451,9 @@ public final class SegmentRunner implements RepairStatusHandler {
         case SESSION_FAILED:
           LOG.warn("repair session failed for segment with id '{}' and repair number '{}'",
                    segmentId, repairNumber);
+          countPostponement(SESSION_FAILED);
           postpone(currentSegment);
-          condition.signalAll();
+          complete();
           break;
         case SESSION_SUCCESS:
           // Do nothing, wait for FINISHED.
@@ -238,7 +463,7 @@ public final class SegmentRunner implements RepairStatusHandler {
                                                   .state(RepairSegment.State.DONE)
                                                   .endTime(DateTime.now())
                                                   .build(segmentId));
-          condition.signalAll();
+          complete();
           break;
       }
     }
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.service;
+
+import com.google.common.primitives.UnsignedLongs;
+
+import java.math.BigInteger;
+
+/**
+ * A token on the Cassandra ring, held as a signed 128-bit integer in two longs. This is wide
+ * enough for both Murmur3Partitioner (which only uses the low long) and RandomPartitioner
+ * tokens, and lets tokens be compared without allocating.
+ */
+public final class Token implements Comparable<Token> {
+
+  private static final BigInteger TWO_POW_64 = BigInteger.ONE.shiftLeft(64);
+
+  // hi is signed, lo holds the unsigned lower 64 bits
+  private final long hi;
+  private final long lo;
+
+  private Token(long hi, long lo) {
+    this.hi = hi;
+    this.lo = lo;
+  }
+
+  public static Token of(long value) {
+    return new Token(value < 0 ? -1L : 0L, value);
+  }
+
+  public static Token of(BigInteger value) {
+    if (value.bitLength() > 127) {
+      throw new IllegalArgumentException("Token " + value + " doesn't fit in 128 bits");
+    }
+    return new Token(value.shiftRight(64).longValue(), value.longValue());
+  }
+
+  public static Token parse(String value) {
+    try {
+      return of(Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return of(new BigInteger(value));
+    }
+  }
+
+  /**
+   * @return true if the token fits in a long, as all Murmur3Partitioner tokens do.
+   */
+  public boolean isLong() {
+    return hi == (lo < 0 ? -1L : 0L);
+  }
+
+  /**
+   * @return the token as a long. Only valid if {@link #isLong()}.
+   */
+  public long longValue() {
+    assert isLong() : "token " + this + " doesn't fit in a long";
+    return lo;
+  }
+
+  public BigInteger toBigInteger() {
+    if (isLong()) {
+      return BigInteger.valueOf(lo);
+    }
+    BigInteger low = BigInteger.valueOf(lo);
+    if (lo < 0) {
+      low = low.add(TWO_POW_64);
+    }
+    return BigInteger.valueOf(hi).shiftLeft(64).add(low);
+  }
+
+  /**
+   * @return the sum of both tokens, wrapping around modulo 2^128 like long arithmetic does modulo
+   * 2^64.
+   */
+  public Token add(Token other) {
+    long sumLo = lo + other.lo;
+    long carry = UnsignedLongs.compare(sumLo, lo) < 0 ? 1L : 0L;
+    return new Token(hi + other.hi + carry, sumLo);
+  }
+
+  /**
+   * @return this token minus the given one, wrapping around modulo 2^128.
+   */
+  public Token subtract(Token other) {
+    long borrow = UnsignedLongs.compare(lo, other.lo) < 0 ? 1L : 0L;
+    return new Token(hi - other.hi - borrow, lo - other.lo);
+  }
+
+  /**
+   * Compares both tokens as unsigned 128-bit integers, as spans of the ring are.
+   */
+  public int compareUnsigned(Token other) {
+    if (hi != other.hi) {
+      return UnsignedLongs.compare(hi, other.hi);
+    }
+    return UnsignedLongs.compare(lo, other.lo);
+  }
+
+  @Override
+  public int compareTo(Token other) {
+    if (hi != other.hi) {
+      return hi < other.hi ? -1 : 1;
+    }
+    return UnsignedLongs.compare(lo, other.lo);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Token)) {
+      return false;
+    }
+    Token that = (Token) other;
+    return hi == that.hi && lo == that.lo;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (hi ^ (hi >>> 32) ^ lo ^ (lo >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return isLong() ? Long.toString(lo) : toBigInteger().toString();
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSchedule;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wraps another storage, keeping the most recently used clusters, repair units and repair
+ * schedules in memory. Writes go through to the wrapped storage, and the cached copy of a
+ * cluster or schedule is dropped when it's updated. Repair units never change once added.
+ *
+ * Absent values aren't cached, so something added directly to the wrapped storage is still found.
+ */
+public class CachingStorage implements IStorage {
+
+  public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+  private final IStorage storage;
+
+  private final Cache<String, Cluster> clusters;
+  private final Cache<Long, RepairUnit> repairUnits;
+  private final Cache<MemoryStorage.RepairUnitKey, RepairUnit> repairUnitsByKey;
+  private final Cache<Long, RepairSchedule> repairSchedules;
+
+  public CachingStorage(IStorage storage) {
+    this(storage, DEFAULT_MAXIMUM_SIZE);
+  }
+
+  public CachingStorage(IStorage storage, long maximumSize) {
+    this.storage = storage;
+    clusters = newCache(maximumSize);
+    repairUnits = newCache(maximumSize);
+    repairUnitsByKey = newCache(maximumSize);
+    repairSchedules = newCache(maximumSize);
+  }
+
+  private static <K, V> Cache<K, V> newCache(long maximumSize) {
+    return CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+  }
+
+  /**
+   * Registers the hit ratio of each cache as a gauge.
+   */
+  public void setMetricRegistry(MetricRegistry metricRegistry) {
+    registerHitRatio(metricRegistry, "clusters", clusters);
+    registerHitRatio(metricRegistry, "repair-units", repairUnits);
+    registerHitRatio(metricRegistry, "repair-units-by-key", repairUnitsByKey);
+    registerHitRatio(metricRegistry, "repair-schedules", repairSchedules);
+  }
+
+  private static void registerHitRatio(MetricRegistry metricRegistry, String name,
+                                       final Cache<?, ?> cache) {
+    metricRegistry.register(MetricRegistry.name(CachingStorage.class, name, "hit-ratio"),
+                            new RatioGauge() {
+                              @Override
+                              protected Ratio getRatio() {
+                                CacheStats stats = cache.stats();
+                                return Ratio.of(stats.hitCount(), stats.requestCount());
+                              }
+                            });
+  }
+
+  @Override
+  public boolean isStorageConnected() {
+    return storage.isStorageConnected();
+  }
+
+  @Override
+  public Collection<Cluster> getClusters() {
+    return storage.getClusters();
+  }
+
+  @Override
+  public boolean addCluster(Cluster cluster) {
+    synchronized (clusters) {
+      boolean added = storage.addCluster(cluster);
+      if (added) {
+        clusters.put(cluster.getName(), cluster);
+      }
+      return added;
+    }
+  }
+
+  @Override
+  public boolean updateCluster(Cluster newCluster) {
+    // synchronized with cache misses, so that a concurrent miss can't cache the previous value
+    synchronized (clusters) {
+      clusters.invalidate(newCluster.getName());
+      return storage.updateCluster(newCluster);
+    }
+  }
+
+  @Override
+  public Optional<Cluster> getCluster(String clusterName) {
+    Cluster cluster = clusters.getIfPresent(clusterName);
+    if (null != cluster) {
+      return Optional.of(cluster);
+    }
+    synchronized (clusters) {
+      Optional<Cluster> stored = storage.getCluster(clusterName);
+      if (stored.isPresent()) {
+        clusters.put(clusterName, stored.get());
+      }
+      return stored;
+    }
+  }
+
+  @Override
+  public RepairRun addRepairRun(RepairRun.Builder repairRun) {
+    return storage.addRepairRun(repairRun);
+  }
+
+  @Override
+  public boolean updateRepairRun(RepairRun repairRun) {
+    return storage.updateRepairRun(repairRun);
+  }
+
+  @Override
+  public Optional<RepairRun> getRepairRun(long id) {
+    return storage.getRepairRun(id);
+  }
+
+  @Override
+  public void updateRepairRunLastEvents(Map<Long, String> lastEvents) {
+    storage.updateRepairRunLastEvents(lastEvents);
+  }
+
+  @Override
+  public Collection<RepairRun> getRepairRunsForCluster(String clusterName) {
+    return storage.getRepairRunsForCluster(clusterName);
+  }
+
+  @Override
+  public Collection<RepairRun> getRepairRunsForUnit(RepairUnit repairUnit) {
+    return storage.getRepairRunsForUnit(repairUnit);
+  }
+
+  @Override
+  public Collection<RepairRun> getRepairRunsWithState(RepairRun.RunState runState) {
+    return storage.getRepairRunsWithState(runState);
+  }
+
+  @Override
+  public Collection<RepairRunSummary> getRepairRunSummaries(Optional<String> clusterName,
+      Set<RepairRun.RunState> runStates, int offset, int limit) {
+    return storage.getRepairRunSummaries(clusterName, runStates, offset, limit);
+  }
+
+  @Override
+  public RepairUnit addRepairUnit(RepairUnit.Builder newRepairUnit) {
+    RepairUnit repairUnit = storage.addRepairUnit(newRepairUnit);
+    repairUnits.put(repairUnit.getId(), repairUnit);
+    return repairUnit;
+  }
+
+  @Override
+  public Optional<RepairUnit> getRepairUnit(long id) {
+    RepairUnit repairUnit = repairUnits.getIfPresent(id);
+    if (null != repairUnit) {
+      return Optional.of(repairUnit);
+    }
+    Optional<RepairUnit> stored = storage.getRepairUnit(id);
+    if (stored.isPresent()) {
+      repairUnits.put(id, stored.get());
+    }
+    return stored;
+  }
+
+  @Override
+  public Optional<RepairUnit> getRepairUnit(String cluster, String keyspace,
+                                            Set<String> columnFamilyNames) {
+    MemoryStorage.RepairUnitKey key =
+        new MemoryStorage.RepairUnitKey(cluster, keyspace, ImmutableSet.copyOf(columnFamilyNames));
+    RepairUnit repairUnit = repairUnitsByKey.getIfPresent(key);
+    if (null != repairUnit) {
+      return Optional.of(repairUnit);
+    }
+    Optional<RepairUnit> stored = storage.getRepairUnit(cluster, keyspace, columnFamilyNames);
+    if (stored.isPresent()) {
+      repairUnitsByKey.put(key, stored.get());
+    }
+    return stored;
+  }
+
+  @Override
+  public void addRepairSegments(Collection<RepairSegment.Builder> newSegments, long runId) {
+    storage.addRepairSegments(newSegments, runId);
+  }
+
+  @Override
+  public boolean updateRepairSegment(RepairSegment newRepairSegment) {
+    return storage.updateRepairSegment(newRepairSegment);
+  }
+
+  @Override
+  public Optional<RepairSegment> getRepairSegment(long id) {
+    return storage.getRepairSegment(id);
+  }
+
+  @Override
+  public Optional<RepairSegment> getNextFreeSegment(long runId) {
+    return storage.getNextFreeSegment(runId);
+  }
+
+  @Override
+  public Optional<RepairSegment> getNextFreeSegmentInRange(long runId, RingRange range) {
+    return storage.getNextFreeSegmentInRange(runId, range);
+  }
+
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegment(long runId) {
+    return storage.claimNextFreeSegment(runId);
+  }
+
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegmentInRange(long runId, RingRange range) {
+    return storage.claimNextFreeSegmentInRange(runId, range);
+  }
+
+  @Override
+  public Collection<RepairSegment> getSegmentsWithState(long runId,
+                                                        RepairSegment.State segmentState) {
+    return storage.getSegmentsWithState(runId, segmentState);
+  }
+
+  @Override
+  public Collection<Long> getRepairRunIdsForCluster(String clusterName) {
+    return storage.getRepairRunIdsForCluster(clusterName);
+  }
+
+  @Override
+  public int getSegmentAmountForRepairRun(long runId, RepairSegment.State state) {
+    return storage.getSegmentAmountForRepairRun(runId, state);
+  }
+
+  @Override
+  public RepairSchedule addRepairSchedule(RepairSchedule.Builder repairSchedule) {
+    RepairSchedule newRepairSchedule = storage.addRepairSchedule(repairSchedule);
+    repairSchedules.put(newRepairSchedule.getId(), newRepairSchedule);
+    return newRepairSchedule;
+  }
+
+  @Override
+  public Optional<RepairSchedule> getRepairSchedule(long repairScheduleId) {
+    RepairSchedule repairSchedule = repairSchedules.getIfPresent(repairScheduleId);
+    if (null != repairSchedule) {
+      return Optional.of(repairSchedule);
+    }
+    synchronized (repairSchedules) {
+      Optional<RepairSchedule> stored = storage.getRepairSchedule(repairScheduleId);
+      if (stored.isPresent()) {
+        repairSchedules.put(repairScheduleId, stored.get());
+      }
+      return stored;
+    }
+  }
+
+  @Override
+  public Collection<RepairSchedule> getRepairSchedulesForCluster(String clusterName) {
+    return storage.getRepairSchedulesForCluster(clusterName);
+  }
+
+  @Override
+  public Collection<RepairSchedule> getAllRepairSchedules() {
+    return storage.getAllRepairSchedules();
+  }
+
+  @Override
+  public boolean updateRepairSchedule(RepairSchedule newRepairSchedule) {
+    // synchronized with cache misses, so that a concurrent miss can't cache the previous value
+    synchronized (repairSchedules) {
+      repairSchedules.invalidate(newRepairSchedule.getId());
+      return storage.updateRepairSchedule(newRepairSchedule);
+    }
+  }
+}
@@ -0,0 +1,725 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSchedule;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Implements the StorageAPI using the transient MemoryStorage, persisted in a local directory.
+ * Every change is appended to a journal file before it's applied in memory, so a change failing
+ * to be journaled isn't visible either. Once the journal grows long, it's set aside and a new one
+ * is started, while the whole storage is written into a snapshot in the background. On start, the
+ * snapshot, the journals set aside and then the current journal are replayed.
+ *
+ * The journal is synced to disk on every new entity and every change of the state of a repair run
+ * or segment. Other changes, like the last events of repair runs, are only written to the OS, so
+ * a crash of the OS (not just of Reaper) may lose the latest of them.
+ *
+ * Records are JSON documents, one per line, holding the full new state of the changed entity, so
+ * replaying a record twice is harmless.
+ */
+public class EmbeddedStorage extends MemoryStorage {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EmbeddedStorage.class);
+
+  static final String SNAPSHOT_FILE = "snapshot.json";
+  static final String JOURNAL_FILE = "journal.json";
+  // journals set aside for compaction, numbered in the order they were written
+  private static final Pattern OLD_JOURNAL_FILE = Pattern.compile("journal\\.(\\d+)\\.json");
+
+  private static final int DEFAULT_MAX_JOURNAL_RECORDS = 100000;
+
+  private static final String CLUSTER = "cluster";
+  private static final String REPAIR_RUN = "run";
+  private static final String REPAIR_UNIT = "unit";
+  private static final String REPAIR_SEGMENT = "segment";
+  private static final String REPAIR_SCHEDULE = "schedule";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final File directory;
+  private final int maxJournalRecords;
+  private final ExecutorService compactor =
+      Executors.newSingleThreadExecutor(new NamedThreadFactory("EmbeddedStorageCompactor"));
+
+  // guarded by this, as are all the changes to the storage so they're journaled in order
+  private Writer journal;
+  private FileOutputStream journalStream;
+  private int journalRecords;
+  private int lastOldJournal;
+  private boolean compacting;
+
+  public EmbeddedStorage(File directory) throws ReaperException {
+    this(directory, DEFAULT_MAX_JOURNAL_RECORDS);
+  }
+
+  public EmbeddedStorage(File directory, int maxJournalRecords) throws ReaperException {
+    this.directory = directory;
+    this.maxJournalRecords = maxJournalRecords;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new ReaperException("cannot create storage directory " + directory);
+    }
+    try {
+      replay(new File(directory, SNAPSHOT_FILE), false);
+      for (int number : oldJournals()) {
+        replay(oldJournal(number), true);
+        lastOldJournal = number;
+      }
+      replay(new File(directory, JOURNAL_FILE), true);
+      // starts a new journal, which also keeps any partially written record at the end of the
+      // old one from being followed by new records
+      Snapshot snapshot;
+      synchronized (this) {
+        snapshot = rotateJournal();
+      }
+      snapshot.run();
+    } catch (IOException ex) {
+      LOG.error("failed restoring storage from {}", directory, ex);
+      throw new ReaperException(ex);
+    }
+  }
+
+  @Override
+  public synchronized boolean isStorageConnected() {
+    return journal != null;
+  }
+
+  @Override
+  public synchronized boolean addCluster(Cluster cluster) {
+    if (getCluster(cluster.getName()).isPresent()) {
+      return false;
+    }
+    append(CLUSTER, encode(cluster));
+    return super.addCluster(cluster);
+  }
+
+  @Override
+  public synchronized boolean updateCluster(Cluster newCluster) {
+    if (!getCluster(newCluster.getName()).isPresent()) {
+      return false;
+    }
+    append(CLUSTER, encode(newCluster), false);
+    return super.updateCluster(newCluster);
+  }
+
+  @Override
+  public synchronized RepairRun addRepairRun(RepairRun.Builder repairRun) {
+    RepairRun newRepairRun = repairRun.build(nextRepairRunId());
+    append(REPAIR_RUN, encode(newRepairRun));
+    restoreRepairRun(newRepairRun);
+    return newRepairRun;
+  }
+
+  @Override
+  public synchronized boolean updateRepairRun(RepairRun repairRun) {
+    Optional<RepairRun> previous = getRepairRun(repairRun.getId());
+    if (!previous.isPresent()) {
+      return false;
+    }
+    append(REPAIR_RUN, encode(repairRun),
+           previous.get().getRunState() != repairRun.getRunState());
+    return super.updateRepairRun(repairRun);
+  }
+
+  @Override
+  public synchronized void updateRepairRunLastEvents(Map<Long, String> lastEvents) {
+    for (Map.Entry<Long, String> lastEvent : lastEvents.entrySet()) {
+      Optional<RepairRun> repairRun = getRepairRun(lastEvent.getKey());
+      if (repairRun.isPresent()) {
+        write(REPAIR_RUN, encode(repairRun.get().with()
+                                     .lastEvent(lastEvent.getValue())
+                                     .build(repairRun.get().getId())));
+      }
+    }
+    flushJournal(false);
+    super.updateRepairRunLastEvents(lastEvents);
+  }
+
+  @Override
+  public synchronized RepairUnit addRepairUnit(RepairUnit.Builder repairUnit) {
+    Optional<RepairUnit> existing =
+        getRepairUnit(repairUnit.clusterName, repairUnit.keyspaceName, repairUnit.columnFamilies);
+    if (existing.isPresent()) {
+      return existing.get();
+    }
+    RepairUnit newRepairUnit = repairUnit.build(nextRepairUnitId());
+    append(REPAIR_UNIT, encode(newRepairUnit));
+    restoreRepairUnit(newRepairUnit);
+    return newRepairUnit;
+  }
+
+  @Override
+  public synchronized void addRepairSegments(Collection<RepairSegment.Builder> segments,
+                                             long runId) {
+    List<RepairSegment> newSegments = Lists.newArrayListWithCapacity(segments.size());
+    for (RepairSegment.Builder segment : segments) {
+      RepairSegment newSegment = segment.build(nextRepairSegmentId());
+      write(REPAIR_SEGMENT, encode(newSegment));
+      newSegments.add(newSegment);
+    }
+    flushJournal(true);
+    for (RepairSegment newSegment : newSegments) {
+      restoreRepairSegment(newSegment);
+    }
+  }
+
+  @Override
+  public synchronized boolean updateRepairSegment(RepairSegment newRepairSegment) {
+    Optional<RepairSegment> previous = getRepairSegment(newRepairSegment.getId());
+    if (!previous.isPresent()) {
+      return false;
+    }
+    append(REPAIR_SEGMENT, encode(newRepairSegment),
+           previous.get().getState() != newRepairSegment.getState());
+    return super.updateRepairSegment(newRepairSegment);
+  }
+
+  @Override
+  public synchronized Optional<RepairSegment> claimNextFreeSegment(long runId) {
+    return claim(getNextFreeSegment(runId));
+  }
+
+  @Override
+  public synchronized Optional<RepairSegment> claimNextFreeSegmentInRange(long runId,
+                                                                          RingRange range) {
+    return claim(getNextFreeSegmentInRange(runId, range));
+  }
+
+  /**
+   * Claims the free segment like MemoryStorage does, which no other change can take in between,
+   * as they all hold the lock of this storage.
+   */
+  private Optional<RepairSegment> claim(Optional<RepairSegment> free) {
+    if (!free.isPresent()) {
+      return free;
+    }
+    RepairSegment claimed = free.get().with()
+        .state(RepairSegment.State.RUNNING)
+        .startTime(DateTime.now())
+        .build(free.get().getId());
+    append(REPAIR_SEGMENT, encode(claimed));
+    super.updateRepairSegment(claimed);
+    return Optional.of(claimed);
+  }
+
+  @Override
+  public synchronized RepairSchedule addRepairSchedule(RepairSchedule.Builder repairSchedule) {
+    RepairSchedule newRepairSchedule = repairSchedule.build(nextRepairScheduleId());
+    append(REPAIR_SCHEDULE, encode(newRepairSchedule));
+    restoreRepairSchedule(newRepairSchedule);
+    return newRepairSchedule;
+  }
+
+  @Override
+  public synchronized boolean updateRepairSchedule(RepairSchedule newRepairSchedule) {
+    Optional<RepairSchedule> previous = getRepairSchedule(newRepairSchedule.getId());
+    if (!previous.isPresent()) {
+      return false;
+    }
+    append(REPAIR_SCHEDULE, encode(newRepairSchedule),
+           previous.get().getState() != newRepairSchedule.getState());
+    return super.updateRepairSchedule(newRepairSchedule);
+  }
+
+  /**
+   * Waits for a running compaction to finish, and closes the journal.
+   */
+  public void close() throws IOException {
+    // not holding the lock, which the compaction takes once done
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (journal != null) {
+        journal.close();
+        journal = null;
+        journalStream = null;
+      }
+    }
+  }
+
+  private void append(String type, ObjectNode value) {
+    append(type, value, true);
+  }
+
+  /**
+   * @param sync whether to wait for the record to be on disk, rather than only in the OS.
+   */
+  private void append(String type, ObjectNode value, boolean sync) {
+    write(type, value);
+    flushJournal(sync);
+  }
+
+  private void write(String type, ObjectNode value) {
+    try {
+      if (journal == null) {
+        // the journal failed before, so try again with a new one
+        compactInBackground();
+      }
+      writeRecord(journal, type, value);
+      journalRecords++;
+    } catch (IOException ex) {
+      throw journalFailed(ex);
+    }
+  }
+
+  private void flushJournal(boolean sync) {
+    if (journal == null) {
+      // nothing written since the journal failed
+      return;
+    }
+    try {
+      journal.flush();
+      if (sync) {
+        journalStream.getChannel().force(false);
+      }
+    } catch (IOException ex) {
+      throw journalFailed(ex);
+    }
+    if (journalRecords >= maxJournalRecords && !compacting) {
+      try {
+        compactInBackground();
+      } catch (IOException ex) {
+        // the change is journaled already, and the next one will try with a new journal
+        LOG.error("failed starting a new storage journal in {}", directory, ex);
+        closeQuietly();
+      }
+    }
+  }
+
+  /**
+   * Drops the journal, which may end with a partial record, so that no later record follows it.
+   * The change being journaled is not applied in memory, though if only the sync failed, it may
+   * still be found on disk after a restart.
+   */
+  private IllegalStateException journalFailed(IOException ex) {
+    LOG.error("failed writing storage journal in {}", directory, ex);
+    closeQuietly();
+    return new IllegalStateException("failed writing storage journal", ex);
+  }
+
+  private void closeQuietly() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        LOG.warn("failed closing storage journal in {}", directory, ex);
+      }
+      journal = null;
+      journalStream = null;
+    }
+  }
+
+  private void compactInBackground() throws IOException {
+    Snapshot snapshot = rotateJournal();
+    try {
+      compactor.execute(snapshot);
+    } catch (RejectedExecutionException ex) {
+      // closing, so the journals set aside are replayed on the next start instead
+      compacting = false;
+    }
+  }
+
+  /**
+   * Sets the current journal aside, and starts an empty one. Only the entities are collected
+   * while holding the lock, the snapshot holding them is written by running the returned task.
+   */
+  private Snapshot rotateJournal() throws IOException {
+    assert Thread.holdsLock(this);
+    closeQuietly();
+    File current = new File(directory, JOURNAL_FILE);
+    if (current.exists()) {
+      lastOldJournal++;
+      Files.move(current.toPath(), oldJournal(lastOldJournal).toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    journalStream = new FileOutputStream(current, false);
+    journal = new BufferedWriter(new OutputStreamWriter(journalStream, Charsets.UTF_8));
+    journalRecords = 0;
+    compacting = true;
+    return new Snapshot(lastOldJournal);
+  }
+
+  private File oldJournal(int number) {
+    return new File(directory, "journal." + number + ".json");
+  }
+
+  /**
+   * @return the numbers of the journals set aside, in the order they were written.
+   */
+  private List<Integer> oldJournals() {
+    List<Integer> numbers = Lists.newArrayList();
+    String[] names = directory.list();
+    if (names != null) {
+      for (String name : names) {
+        Matcher matcher = OLD_JOURNAL_FILE.matcher(name);
+        if (matcher.matches()) {
+          numbers.add(Integer.valueOf(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * The whole storage as it was when the journal was set aside. Once written, it replaces the
+   * journals set aside, which are deleted oldest first. Crashing in between leaves some of them,
+   * whose records are all older than the snapshot, to be replayed on top of it in order, leading
+   * to the same state.
+   */
+  private final class Snapshot implements Runnable {
+
+    private final int lastJournal;
+    private final List<Cluster> clusters;
+    private final List<RepairUnit> repairUnits;
+    private final List<RepairRun> repairRuns;
+    private final List<RepairSegment> repairSegments = Lists.newArrayList();
+    private final List<RepairSchedule> repairSchedules;
+
+    private Snapshot(int lastJournal) {
+      this.lastJournal = lastJournal;
+      clusters = Lists.newArrayList(getClusters());
+      repairUnits = Lists.newArrayList(getAllRepairUnits());
+      repairRuns = Lists.newArrayList(getAllRepairRuns());
+      for (RepairRun repairRun : repairRuns) {
+        repairSegments.addAll(getAllRepairSegments(repairRun.getId()));
+      }
+      repairSchedules = Lists.newArrayList(getAllRepairSchedules());
+    }
+
+    @Override
+    public void run() {
+      try {
+        write();
+        for (int number : oldJournals()) {
+          if (number <= lastJournal) {
+            Files.delete(oldJournal(number).toPath());
+          }
+        }
+      } catch (IOException ex) {
+        // the journals set aside are kept, and replaced by the next snapshot
+        LOG.error("failed compacting storage journal in {}", directory, ex);
+      } finally {
+        synchronized (EmbeddedStorage.this) {
+          compacting = false;
+        }
+      }
+    }
+
+    private void write() throws IOException {
+      LOG.debug("compacting storage journals up to number {} in {}", lastJournal, directory);
+      File snapshot = new File(directory, SNAPSHOT_FILE);
+      File newSnapshot = new File(directory, SNAPSHOT_FILE + ".tmp");
+      FileOutputStream snapshotStream = new FileOutputStream(newSnapshot);
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(snapshotStream,
+                                                                     Charsets.UTF_8))) {
+        for (Cluster cluster : clusters) {
+          writeRecord(writer, CLUSTER, encode(cluster));
+        }
+        for (RepairUnit repairUnit : repairUnits) {
+          writeRecord(writer, REPAIR_UNIT, encode(repairUnit));
+        }
+        for (RepairRun repairRun : repairRuns) {
+          writeRecord(writer, REPAIR_RUN, encode(repairRun));
+        }
+        for (RepairSegment segment : repairSegments) {
+          writeRecord(writer, REPAIR_SEGMENT, encode(segment));
+        }
+        for (RepairSchedule repairSchedule : repairSchedules) {
+          writeRecord(writer, REPAIR_SCHEDULE, encode(repairSchedule));
+        }
+        writer.flush();
+        snapshotStream.getFD().sync();
+      }
+      Files.move(newSnapshot.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                 StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void replay(File file, boolean allowTornTail) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    LOG.info("restoring storage from {}", file);
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))) {
+      String line = reader.readLine();
+      while (line != null) {
+        String next = reader.readLine();
+        try {
+          restore(mapper.readTree(line));
+        } catch (IOException | RuntimeException ex) {
+          // a crash may leave the last record of the journal partially written
+          if (next == null && allowTornTail) {
+            LOG.warn("ignoring incomplete last record of {}", file);
+          } else {
+            throw new IOException("invalid record in " + file + ": " + line, ex);
+          }
+        }
+        line = next;
+      }
+    }
+  }
+
+  private void restore(JsonNode record) {
+    String type = record.get("type").asText();
+    JsonNode value = record.get("value");
+    switch (type) {
+      case CLUSTER:
+        restoreCluster(decodeCluster(value));
+        break;
+      case REPAIR_RUN:
+        restoreRepairRun(decodeRepairRun(value));
+        break;
+      case REPAIR_UNIT:
+        restoreRepairUnit(decodeRepairUnit(value));
+        break;
+      case REPAIR_SEGMENT:
+        restoreRepairSegment(decodeRepairSegment(value));
+        break;
+      case REPAIR_SCHEDULE:
+        restoreRepairSchedule(decodeRepairSchedule(value));
+        break;
+      default:
+        throw new IllegalArgumentException("unknown record type: " + type);
+    }
+  }
+
+  private void writeRecord(Writer writer, String type, ObjectNode value) throws IOException {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", type);
+    record.set("value", value);
+    writer.write(mapper.writeValueAsString(record));
+    writer.write('\n');
+  }
+
+  private ObjectNode encode(Cluster cluster) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("name", cluster.getName());
+    node.put("partitioner", cluster.getPartitioner());
+    node.set("seedHosts", encode(cluster.getSeedHosts()));
+    return node;
+  }
+
+  private static Cluster decodeCluster(JsonNode node) {
+    return new Cluster(node.get("name").asText(), text(node, "partitioner"),
+                       decodeStrings(node.get("seedHosts")));
+  }
+
+  private ObjectNode encode(RepairRun repairRun) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("id", repairRun.getId());
+    node.put("clusterName", repairRun.getClusterName());
+    node.put("repairUnitId", repairRun.getRepairUnitId());
+    node.put("runState", repairRun.getRunState().name());
+    putTime(node, "creationTime", repairRun.getCreationTime());
+    node.put("intensity", repairRun.getIntensity());
+    node.put("segmentCount", repairRun.getSegmentCount());
+    node.put("repairParallelism", repairRun.getRepairParallelism().name());
+    node.put("cause", repairRun.getCause());
+    node.put("owner", repairRun.getOwner());
+    putTime(node, "startTime", repairRun.getStartTime());
+    putTime(node, "endTime", repairRun.getEndTime());
+    putTime(node, "pauseTime", repairRun.getPauseTime());
+    node.put("lastEvent", repairRun.getLastEvent());
+    return node;
+  }
+
+  private static RepairRun decodeRepairRun(JsonNode node) {
+    return new RepairRun.Builder(
+        node.get("clusterName").asText(),
+        node.get("repairUnitId").asLong(),
+        time(node, "creationTime"),
+        node.get("intensity").asDouble(),
+        node.get("segmentCount").asInt(),
+        RepairParallelism.valueOf(node.get("repairParallelism").asText()))
+        .runState(RepairRun.RunState.valueOf(node.get("runState").asText()))
+        .cause(text(node, "cause"))
+        .owner(text(node, "owner"))
+        .startTime(time(node, "startTime"))
+        .endTime(time(node, "endTime"))
+        .pauseTime(time(node, "pauseTime"))
+        .lastEvent(text(node, "lastEvent"))
+        .build(node.get("id").asLong());
+  }
+
+  private ObjectNode encode(RepairUnit repairUnit) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("id", repairUnit.getId());
+    node.put("clusterName", repairUnit.getClusterName());
+    node.put("keyspaceName", repairUnit.getKeyspaceName());
+    node.set("columnFamilies", encode(repairUnit.getColumnFamilies()));
+    return node;
+  }
+
+  private static RepairUnit decodeRepairUnit(JsonNode node) {
+    return new RepairUnit.Builder(node.get("clusterName").asText(),
+                                  node.get("keyspaceName").asText(),
+                                  decodeStrings(node.get("columnFamilies")))
+        .build(node.get("id").asLong());
+  }
+
+  private ObjectNode encode(RepairSegment segment) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("id", segment.getId());
+    node.put("runId", segment.getRunId());
+    node.put("repairUnitId", segment.getRepairUnitId());
+    node.put("startToken", segment.getStartToken().toString());
+    node.put("endToken", segment.getEndToken().toString());
+    node.put("failCount", segment.getFailCount());
+    node.put("state", segment.getState().name());
+    node.put("coordinatorHost", segment.getCoordinatorHost());
+    node.put("repairCommandId", segment.getRepairCommandId());
+    putTime(node, "startTime", segment.getStartTime());
+    putTime(node, "endTime", segment.getEndTime());
+    return node;
+  }
+
+  private static RepairSegment decodeRepairSegment(JsonNode node) {
+    RingRange range = new RingRange(new BigInteger(node.get("startToken").asText()),
+                                    new BigInteger(node.get("endToken").asText()));
+    JsonNode repairCommandId = node.get("repairCommandId");
+    return new RepairSegment.Builder(node.get("runId").asLong(), range,
+                                     node.get("repairUnitId").asLong())
+        .failCount(node.get("failCount").asInt())
+        .state(RepairSegment.State.valueOf(node.get("state").asText()))
+        .coordinatorHost(text(node, "coordinatorHost"))
+        .repairCommandId(repairCommandId == null || repairCommandId.isNull()
+                         ? null : repairCommandId.asInt())
+        .startTime(time(node, "startTime"))
+        .endTime(time(node, "endTime"))
+        .build(node.get("id").asLong());
+  }
+
+  private ObjectNode encode(RepairSchedule repairSchedule) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("id", repairSchedule.getId());
+    node.put("repairUnitId", repairSchedule.getRepairUnitId());
+    node.put("state", repairSchedule.getState().name());
+    node.put("daysBetween", repairSchedule.getDaysBetween());
+    putTime(node, "nextActivation", repairSchedule.getNextActivation());
+    ArrayNode runHistory = node.putArray("runHistory");
+    for (Long runId : repairSchedule.getRunHistory()) {
+      runHistory.add(runId);
+    }
+    node.put("segmentCount", repairSchedule.getSegmentCount());
+    node.put("repairParallelism", repairSchedule.getRepairParallelism().name());
+    node.put("intensity", repairSchedule.getIntensity());
+    putTime(node, "creationTime", repairSchedule.getCreationTime());
+    node.put("owner", repairSchedule.getOwner());
+    putTime(node, "pauseTime", repairSchedule.getPauseTime());
+    return node;
+  }
+
+  private static RepairSchedule decodeRepairSchedule(JsonNode node) {
+    ImmutableList.Builder<Long> runHistory = ImmutableList.builder();
+    for (JsonNode runId : node.get("runHistory")) {
+      runHistory.add(runId.asLong());
+    }
+    return new RepairSchedule.Builder(
+        node.get("repairUnitId").asLong(),
+        RepairSchedule.State.valueOf(node.get("state").asText()),
+        node.get("daysBetween").asInt(),
+        time(node, "nextActivation"),
+        runHistory.build(),
+        node.get("segmentCount").asInt(),
+        RepairParallelism.valueOf(node.get("repairParallelism").asText()),
+        node.get("intensity").asDouble(),
+        time(node, "creationTime"))
+        .owner(text(node, "owner"))
+        .pauseTime(time(node, "pauseTime"))
+        .build(node.get("id").asLong());
+  }
+
+  private ArrayNode encode(Collection<String> strings) {
+    ArrayNode array = mapper.createArrayNode();
+    for (String string : strings) {
+      array.add(string);
+    }
+    return array;
+  }
+
+  private static Set<String> decodeStrings(JsonNode array) {
+    Set<String> strings = Sets.newHashSet();
+    for (JsonNode string : array) {
+      strings.add(string.asText());
+    }
+    return strings;
+  }
+
+  private static void putTime(ObjectNode node, String field, DateTime time) {
+    if (time != null) {
+      node.put(field, time.getMillis());
+    }
+  }
+
+  private static DateTime time(JsonNode node, String field) {
+    JsonNode value = node.get(field);
+    return value == null || value.isNull() ? null : new DateTime(value.asLong());
+  }
+
+  private static String text(JsonNode node, String field) {
+    JsonNode value = node.get(field);
+    return value == null || value.isNull() ? null : value.asText();
+  }
+}
@@ -24,6 +24,7 @@ import com.spotify.reaper.service.RingRange;
 import com.spotify.reaper.service.SchedulingManager;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -47,12 +48,31 @@ public interface IStorage {
 
   Optional<RepairRun> getRepairRun(long id);
 
+  /**
+   * Changes only the last event of the given repair runs, leaving the rest of them as they are.
+   *
+   * @param lastEvents Latest event by repair run id. Runs that don't exist are ignored.
+   */
+  void updateRepairRunLastEvents(Map<Long, String> lastEvents);
+
   Collection<RepairRun> getRepairRunsForCluster(String clusterName);
 
   Collection<RepairRun> getRepairRunsForUnit(RepairUnit repairUnit);
 
   Collection<RepairRun> getRepairRunsWithState(RepairRun.RunState runState);
 
+  /**
+   * Lists repair runs together with their repair unit and amount of repaired segments, newest run
+   * first, without a separate lookup per run. Runs whose repair unit doesn't exist are left out.
+   *
+   * @param clusterName Only runs of this cluster if present.
+   * @param runStates   Only runs in one of these states, or runs in any state if empty.
+   * @param offset      Amount of matching runs to skip.
+   * @param limit       Maximum amount of runs to return.
+   */
+  Collection<RepairRunSummary> getRepairRunSummaries(Optional<String> clusterName,
+      Set<RepairRun.RunState> runStates, int offset, int limit);
+
   RepairUnit addRepairUnit(RepairUnit.Builder newRepairUnit);
 
   Optional<RepairUnit> getRepairUnit(long id);
@@ -78,6 +98,19 @@ public interface IStorage {
 
   Optional<RepairSegment> getNextFreeSegmentInRange(long runId, RingRange range);
 
+  /**
+   * Atomically takes the next free segment of the given run, in the same order as
+   * getNextFreeSegment, and moves it to the RUNNING state so that no other runner can take it.
+   *
+   * @return the claimed segment, already in the RUNNING state, or absent if no segment is free.
+   */
+  Optional<RepairSegment> claimNextFreeSegment(long runId);
+
+  /**
+   * Like claimNextFreeSegment, but only considers segments enclosed in the given range.
+   */
+  Optional<RepairSegment> claimNextFreeSegmentInRange(long runId, RingRange range);
+
   Collection<RepairSegment> getSegmentsWithState(long runId, RepairSegment.State segmentState);
 
   Collection<Long> getRepairRunIdsForCluster(String clusterName);
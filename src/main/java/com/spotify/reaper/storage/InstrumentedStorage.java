@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Joiner;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every call to a storage, per IStorage method, and keeps a histogram of the amount of
+ * rows returned by the methods returning collections. Calls slower than the given threshold are
+ * logged with the sizes of their collection arguments.
+ *
+ * Metrics are named after IStorage and the method, like "com.spotify.reaper.storage.IStorage
+ * .getRepairRun" and "com.spotify.reaper.storage.IStorage.getSegmentsWithState.rows".
+ * Overloaded methods get their parameter types appended to the name.
+ */
+public final class InstrumentedStorage implements InvocationHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InstrumentedStorage.class);
+
+  public static final long DEFAULT_SLOW_CALL_THRESHOLD_MILLIS = 1000;
+
+  private final IStorage storage;
+  private final Map<Method, Timer> timers;
+  private final Map<Method, Histogram> rows;
+  private final long slowCallThresholdNanos;
+
+  private InstrumentedStorage(IStorage storage, MetricRegistry metricRegistry,
+                              long slowCallThresholdMillis) {
+    this.storage = storage;
+    this.slowCallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowCallThresholdMillis);
+
+    Multiset<String> methodNames = HashMultiset.create();
+    for (Method method : IStorage.class.getMethods()) {
+      methodNames.add(method.getName());
+    }
+    ImmutableMap.Builder<Method, Timer> timers = ImmutableMap.builder();
+    ImmutableMap.Builder<Method, Histogram> rows = ImmutableMap.builder();
+    for (Method method : IStorage.class.getMethods()) {
+      String name = metricName(method, methodNames.count(method.getName()) > 1);
+      timers.put(method, metricRegistry.timer(name));
+      if (Collection.class.isAssignableFrom(method.getReturnType())) {
+        rows.put(method, metricRegistry.histogram(MetricRegistry.name(name, "rows")));
+      }
+    }
+    this.timers = timers.build();
+    this.rows = rows.build();
+  }
+
+  private static String metricName(Method method, boolean overloaded) {
+    if (!overloaded) {
+      return MetricRegistry.name(IStorage.class, method.getName());
+    }
+    List<String> parameterTypes = new ArrayList<>();
+    for (Class<?> parameterType : method.getParameterTypes()) {
+      parameterTypes.add(parameterType.getSimpleName());
+    }
+    return MetricRegistry.name(IStorage.class, method.getName(),
+                               Joiner.on('-').join(parameterTypes));
+  }
+
+  /**
+   * @param slowCallThresholdMillis calls taking longer are logged, or none if negative.
+   * @return the given storage, with all calls to it instrumented.
+   */
+  public static IStorage instrument(IStorage storage, MetricRegistry metricRegistry,
+                                    long slowCallThresholdMillis) {
+    return (IStorage) Proxy.newProxyInstance(
+        IStorage.class.getClassLoader(), new Class<?>[]{IStorage.class},
+        new InstrumentedStorage(storage, metricRegistry, slowCallThresholdMillis));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Timer timer = timers.get(method);
+    if (null == timer) {
+      // one of the Object methods
+      return method.invoke(storage, args);
+    }
+    long start = System.nanoTime();
+    Object result;
+    try {
+      result = method.invoke(storage, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      timer.update(elapsed, TimeUnit.NANOSECONDS);
+      if (slowCallThresholdNanos >= 0 && elapsed > slowCallThresholdNanos) {
+        LOG.warn("slow storage call {}{} took {} ms", method.getName(), argumentSizes(args),
+                 TimeUnit.NANOSECONDS.toMillis(elapsed));
+      }
+    }
+    Histogram histogram = rows.get(method);
+    if (null != histogram && null != result) {
+      histogram.update(((Collection<?>) result).size());
+    }
+    return result;
+  }
+
+  /**
+   * Describes only the sizes of the collection and map arguments, as the arguments themselves can
+   * be huge, like all the segments of a new repair run.
+   */
+  private static String argumentSizes(Object[] args) {
+    List<Integer> sizes = new ArrayList<>();
+    if (null != args) {
+      for (Object arg : args) {
+        if (arg instanceof Collection) {
+          sizes.add(((Collection<?>) arg).size());
+        } else if (arg instanceof Map) {
+          sizes.add(((Map<?, ?>) arg).size());
+        }
+      }
+    }
+    return sizes.isEmpty() ? "" : " with arguments of sizes " + sizes;
+  }
+}
@@ -16,6 +16,7 @@ package com.spotify.reaper.storage;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import com.spotify.reaper.core.Cluster;
 import com.spotify.reaper.core.RepairRun;
@@ -23,15 +24,25 @@ import com.spotify.reaper.core.RepairSchedule;
 import com.spotify.reaper.core.RepairSegment;
 import com.spotify.reaper.core.RepairUnit;
 import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.Token;
+
+import org.joda.time.DateTime;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -49,10 +60,16 @@ public class MemoryStorage implements IStorage {
   private final ConcurrentMap<Long, RepairUnit> repairUnits = Maps.newConcurrentMap();
   private final ConcurrentMap<RepairUnitKey, RepairUnit> repairUnitsByKey = Maps.newConcurrentMap();
   private final ConcurrentMap<Long, RepairSegment> repairSegments = Maps.newConcurrentMap();
-  private final ConcurrentMap<Long, LinkedHashMap<Long, RepairSegment>> repairSegmentsByRunId =
-      Maps.newConcurrentMap();
+  private final ConcurrentMap<Long, RunSegments> repairSegmentsByRunId = Maps.newConcurrentMap();
   private final ConcurrentMap<Long, RepairSchedule> repairSchedules = Maps.newConcurrentMap();
 
+  // Secondary indexes of the repair runs, holding run ids. Cluster names are lower cased, as they
+  // are looked up case-insensitively. The cluster and unit of a run never change.
+  private final ConcurrentMap<String, Set<Long>> repairRunIdsByCluster = Maps.newConcurrentMap();
+  private final ConcurrentMap<Long, Set<Long>> repairRunIdsByUnit = Maps.newConcurrentMap();
+  private final ConcurrentMap<RepairRun.RunState, Set<Long>> repairRunIdsByState =
+      Maps.newConcurrentMap();
+
   @Override
   public boolean isStorageConnected() {
     // Just assuming the MemoryStorage is always functional when instantiated.
@@ -87,8 +104,8 @@ public class MemoryStorage implements IStorage {
 
   @Override
   public RepairRun addRepairRun(RepairRun.Builder repairRun) {
-    RepairRun newRepairRun = repairRun.build(REPAIR_RUN_ID.incrementAndGet());
-    repairRuns.put(newRepairRun.getId(), newRepairRun);
+    RepairRun newRepairRun = repairRun.build(nextRepairRunId());
+    putRepairRun(newRepairRun);
     return newRepairRun;
   }
 
@@ -97,11 +114,40 @@ public class MemoryStorage implements IStorage {
     if (!getRepairRun(repairRun.getId()).isPresent()) {
       return false;
     } else {
-      repairRuns.put(repairRun.getId(), repairRun);
+      putRepairRun(repairRun);
       return true;
     }
   }
 
+  private void putRepairRun(RepairRun repairRun) {
+    // serialized with other run updates so that the state index can't be left pointing a run at
+    // a state it doesn't have
+    synchronized (repairRunIdsByState) {
+      RepairRun previous = repairRuns.put(repairRun.getId(), repairRun);
+      if (null == previous) {
+        indexFor(repairRunIdsByState, repairRun.getRunState()).add(repairRun.getId());
+        indexFor(repairRunIdsByCluster, repairRun.getClusterName().toLowerCase())
+            .add(repairRun.getId());
+        indexFor(repairRunIdsByUnit, repairRun.getRepairUnitId()).add(repairRun.getId());
+      } else if (previous.getRunState() != repairRun.getRunState()) {
+        indexFor(repairRunIdsByState, repairRun.getRunState()).add(repairRun.getId());
+        indexFor(repairRunIdsByState, previous.getRunState()).remove(repairRun.getId());
+      }
+    }
+  }
+
+  @Override
+  public void updateRepairRunLastEvents(Map<Long, String> lastEvents) {
+    synchronized (repairRunIdsByState) {
+      for (Map.Entry<Long, String> lastEvent : lastEvents.entrySet()) {
+        RepairRun repairRun = repairRuns.get(lastEvent.getKey());
+        if (null != repairRun) {
+          putRepairRun(repairRun.with().lastEvent(lastEvent.getValue()).build(repairRun.getId()));
+        }
+      }
+    }
+  }
+
   @Override
   public Optional<RepairRun> getRepairRun(long id) {
     return Optional.fromNullable(repairRuns.get(id));
@@ -109,20 +155,20 @@ public class MemoryStorage implements IStorage {
 
   @Override
   public List<RepairRun> getRepairRunsForCluster(String clusterName) {
-    List<RepairRun> foundRepairRuns = new ArrayList<>();
-    for (RepairRun repairRun : repairRuns.values()) {
-      if (repairRun.getClusterName().equalsIgnoreCase(clusterName)) {
-        foundRepairRuns.add(repairRun);
-      }
-    }
-    return foundRepairRuns;
+    return getRepairRuns(repairRunIdsByCluster.get(clusterName.toLowerCase()));
   }
 
   @Override
   public Collection<RepairRun> getRepairRunsForUnit(RepairUnit repairUnit) {
+    return getRepairRuns(repairRunIdsByUnit.get(repairUnit.getId()));
+  }
+
+  @Override
+  public Collection<RepairRun> getRepairRunsWithState(RepairRun.RunState runState) {
     List<RepairRun> foundRepairRuns = new ArrayList<>();
-    for (RepairRun repairRun : repairRuns.values()) {
-      if (repairRun.getRepairUnitId() == repairUnit.getId()) {
+    // the index may briefly still list a run that was just moved to another state
+    for (RepairRun repairRun : getRepairRuns(repairRunIdsByState.get(runState))) {
+      if (repairRun.getRunState() == runState) {
         foundRepairRuns.add(repairRun);
       }
     }
@@ -130,16 +176,71 @@ public class MemoryStorage implements IStorage {
   }
 
   @Override
-  public Collection<RepairRun> getRepairRunsWithState(RepairRun.RunState runState) {
+  public Collection<RepairRunSummary> getRepairRunSummaries(Optional<String> clusterName,
+      Set<RepairRun.RunState> runStates, int offset, int limit) {
+    Set<RepairRun.RunState> states = runStates.isEmpty()
+        ? EnumSet.allOf(RepairRun.RunState.class) : runStates;
+    NavigableSet<Long> repairRunIds = Sets.newTreeSet(Collections.reverseOrder());
+    for (RepairRun.RunState state : states) {
+      Set<Long> ids = repairRunIdsByState.get(state);
+      if (null != ids) {
+        repairRunIds.addAll(ids);
+      }
+    }
+    if (clusterName.isPresent()) {
+      Set<Long> ids = repairRunIdsByCluster.get(clusterName.get().toLowerCase());
+      repairRunIds.retainAll(null == ids ? Collections.<Long>emptySet() : ids);
+    }
+
+    List<RepairRunSummary> summaries = new ArrayList<>();
+    int skipped = 0;
+    for (Long repairRunId : repairRunIds) {
+      if (summaries.size() >= limit) {
+        break;
+      }
+      RepairRun repairRun = repairRuns.get(repairRunId);
+      // the state index may briefly still list a run that was just moved to another state
+      if (null == repairRun || !states.contains(repairRun.getRunState())) {
+        continue;
+      }
+      if (skipped < offset) {
+        skipped++;
+        continue;
+      }
+      RepairUnit repairUnit = repairUnits.get(repairRun.getRepairUnitId());
+      if (null != repairUnit) {
+        summaries.add(new RepairRunSummary(repairRun, repairUnit, getSegmentAmountForRepairRun(
+            repairRunId, RepairSegment.State.DONE)));
+      }
+    }
+    return summaries;
+  }
+
+  private List<RepairRun> getRepairRuns(Set<Long> repairRunIds) {
     List<RepairRun> foundRepairRuns = new ArrayList<>();
-    for (RepairRun repairRun : repairRuns.values()) {
-      if (repairRun.getRunState() == runState) {
-        foundRepairRuns.add(repairRun);
+    if (null != repairRunIds) {
+      for (Long repairRunId : repairRunIds) {
+        RepairRun repairRun = repairRuns.get(repairRunId);
+        if (null != repairRun) {
+          foundRepairRuns.add(repairRun);
+        }
       }
     }
     return foundRepairRuns;
   }
 
+  private static <K> Set<Long> indexFor(ConcurrentMap<K, Set<Long>> index, K key) {
+    Set<Long> ids = index.get(key);
+    if (null == ids) {
+      Set<Long> newIds = new ConcurrentSkipListSet<>();
+      ids = index.putIfAbsent(key, newIds);
+      if (null == ids) {
+        ids = newIds;
+      }
+    }
+    return ids;
+  }
+
   @Override
   public RepairUnit addRepairUnit(RepairUnit.Builder repairUnit) {
     Optional<RepairUnit> existing =
@@ -147,16 +248,20 @@ public class MemoryStorage implements IStorage {
     if (existing.isPresent()) {
       return existing.get();
     } else {
-      RepairUnit newRepairUnit = repairUnit.build(REPAIR_UNIT_ID.incrementAndGet());
-      repairUnits.put(newRepairUnit.getId(), newRepairUnit);
-      RepairUnitKey unitTables = new RepairUnitKey(newRepairUnit.getClusterName(),
-                                                   newRepairUnit.getKeyspaceName(),
-                                                   newRepairUnit.getColumnFamilies());
-      repairUnitsByKey.put(unitTables, newRepairUnit);
+      RepairUnit newRepairUnit = repairUnit.build(nextRepairUnitId());
+      putRepairUnit(newRepairUnit);
       return newRepairUnit;
     }
   }
 
+  private void putRepairUnit(RepairUnit repairUnit) {
+    repairUnits.put(repairUnit.getId(), repairUnit);
+    RepairUnitKey unitTables = new RepairUnitKey(repairUnit.getClusterName(),
+                                                 repairUnit.getKeyspaceName(),
+                                                 repairUnit.getColumnFamilies());
+    repairUnitsByKey.put(unitTables, repairUnit);
+  }
+
   @Override
   public Optional<RepairUnit> getRepairUnit(long id) {
     return Optional.fromNullable(repairUnits.get(id));
@@ -170,24 +275,38 @@ public class MemoryStorage implements IStorage {
 
   @Override
   public void addRepairSegments(Collection<RepairSegment.Builder> segments, long runId) {
-    LinkedHashMap<Long, RepairSegment> newSegments = Maps.newLinkedHashMap();
+    RunSegments newSegments = new RunSegments();
     for (RepairSegment.Builder segment : segments) {
-      RepairSegment newRepairSegment = segment.build(SEGMENT_ID.incrementAndGet());
+      RepairSegment newRepairSegment = segment.build(nextRepairSegmentId());
       repairSegments.put(newRepairSegment.getId(), newRepairSegment);
-      newSegments.put(newRepairSegment.getId(), newRepairSegment);
+      newSegments.put(newRepairSegment);
     }
     repairSegmentsByRunId.put(runId, newSegments);
   }
 
+  private void putRepairSegment(RepairSegment repairSegment) {
+    RunSegments runSegments = repairSegmentsByRunId.get(repairSegment.getRunId());
+    if (null == runSegments) {
+      RunSegments newSegments = new RunSegments();
+      runSegments = repairSegmentsByRunId.putIfAbsent(repairSegment.getRunId(), newSegments);
+      if (null == runSegments) {
+        runSegments = newSegments;
+      }
+    }
+    // both under the run's lock, so that concurrent updates of the same segment leave the same
+    // version in the run's indexes and in the map of all segments
+    synchronized (runSegments) {
+      runSegments.put(repairSegment);
+      repairSegments.put(repairSegment.getId(), repairSegment);
+    }
+  }
+
   @Override
   public boolean updateRepairSegment(RepairSegment newRepairSegment) {
-    if (getRepairSegment(newRepairSegment.getId()) == null) {
+    if (!getRepairSegment(newRepairSegment.getId()).isPresent()) {
       return false;
     } else {
-      repairSegments.put(newRepairSegment.getId(), newRepairSegment);
-      LinkedHashMap<Long, RepairSegment> updatedSegment =
-          repairSegmentsByRunId.get(newRepairSegment.getRunId());
-      updatedSegment.put(newRepairSegment.getId(), newRepairSegment);
+      putRepairSegment(newRepairSegment);
       return true;
     }
   }
@@ -199,66 +318,72 @@ public class MemoryStorage implements IStorage {
 
   @Override
   public Optional<RepairSegment> getNextFreeSegment(long runId) {
-    for (RepairSegment segment : repairSegmentsByRunId.get(runId).values()) {
-      if (segment.getState() == RepairSegment.State.NOT_STARTED) {
-        return Optional.of(segment);
-      }
-    }
-    return Optional.absent();
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments ? Optional.<RepairSegment>absent() : segments.getNextFree();
   }
 
   @Override
   public Optional<RepairSegment> getNextFreeSegmentInRange(long runId, RingRange range) {
-    for (RepairSegment segment : repairSegmentsByRunId.get(runId).values()) {
-      if (segment.getState() == RepairSegment.State.NOT_STARTED &&
-          range.encloses(segment.getTokenRange())) {
-        return Optional.of(segment);
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments
+           ? Optional.<RepairSegment>absent() : segments.getNextFreeInRange(range);
+  }
+
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegment(long runId) {
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments
+           ? Optional.<RepairSegment>absent() : claim(segments, Optional.<RingRange>absent());
+  }
+
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegmentInRange(long runId, RingRange range) {
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments
+           ? Optional.<RepairSegment>absent() : claim(segments, Optional.of(range));
+  }
+
+  private Optional<RepairSegment> claim(RunSegments segments, Optional<RingRange> range) {
+    // holding the run's lock, no other claim or update can take the segment in between
+    synchronized (segments) {
+      Optional<RepairSegment> free =
+          range.isPresent() ? segments.getNextFreeInRange(range.get()) : segments.getNextFree();
+      if (!free.isPresent()) {
+        return free;
       }
+      RepairSegment claimed = free.get().with()
+          .state(RepairSegment.State.RUNNING)
+          .startTime(DateTime.now())
+          .build(free.get().getId());
+      putRepairSegment(claimed);
+      return Optional.of(claimed);
     }
-    return Optional.absent();
   }
 
   @Override
   public Collection<RepairSegment> getSegmentsWithState(long runId,
                                                         RepairSegment.State segmentState) {
-    List<RepairSegment> segments = Lists.newArrayList();
-    for (RepairSegment segment : repairSegmentsByRunId.get(runId).values()) {
-      if (segment.getState() == segmentState) {
-        segments.add(segment);
-      }
-    }
-    return segments;
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments
+           ? new ArrayList<RepairSegment>() : segments.getWithState(segmentState);
   }
 
   @Override
   public Collection<Long> getRepairRunIdsForCluster(String clusterName) {
-    Collection<Long> repairRunIds = new HashSet<>();
-    for (RepairRun repairRun : repairRuns.values()) {
-      if (repairRun.getClusterName().equalsIgnoreCase(clusterName)) {
-        repairRunIds.add(repairRun.getId());
-      }
-    }
-    return repairRunIds;
+    Set<Long> repairRunIds = repairRunIdsByCluster.get(clusterName.toLowerCase());
+    return null == repairRunIds ? new HashSet<Long>() : new HashSet<>(repairRunIds);
   }
 
   @Override
   public int getSegmentAmountForRepairRun(long runId, RepairSegment.State state) {
-    Map<Long, RepairSegment> segmentsMap = repairSegmentsByRunId.get(runId);
-    int amount = 0;
-    if (null != segmentsMap) {
-      for (RepairSegment segment : segmentsMap.values()) {
-        if (segment.getState() == state) {
-          amount += 1;
-        }
-      }
-    }
-    return amount;
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments ? 0 : segments.countWithState(state);
   }
 
 
   @Override
   public RepairSchedule addRepairSchedule(RepairSchedule.Builder repairSchedule) {
-    RepairSchedule newRepairSchedule = repairSchedule.build(REPAIR_SCHEDULE_ID.incrementAndGet());
+    RepairSchedule newRepairSchedule = repairSchedule.build(nextRepairScheduleId());
     repairSchedules.put(newRepairSchedule.getId(), newRepairSchedule);
     return newRepairSchedule;
   }
@@ -295,6 +420,182 @@ public class MemoryStorage implements IStorage {
     }
   }
 
+  /**
+   * @return all repair runs, for subclasses persisting the storage.
+   */
+  protected Collection<RepairRun> getAllRepairRuns() {
+    return repairRuns.values();
+  }
+
+  /**
+   * @return all repair units, for subclasses persisting the storage.
+   */
+  protected Collection<RepairUnit> getAllRepairUnits() {
+    return repairUnits.values();
+  }
+
+  /**
+   * @return all segments of the given repair run, for subclasses persisting the storage.
+   */
+  protected Collection<RepairSegment> getAllRepairSegments(long runId) {
+    RunSegments segments = repairSegmentsByRunId.get(runId);
+    return null == segments ? new ArrayList<RepairSegment>() : segments.getAll();
+  }
+
+  /**
+   * The next id methods hand out the ids of new entities, for subclasses persisting an entity
+   * before adding it with a restore method.
+   */
+  protected long nextRepairRunId() {
+    return REPAIR_RUN_ID.incrementAndGet();
+  }
+
+  protected long nextRepairUnitId() {
+    return REPAIR_UNIT_ID.incrementAndGet();
+  }
+
+  protected long nextRepairSegmentId() {
+    return SEGMENT_ID.incrementAndGet();
+  }
+
+  protected long nextRepairScheduleId() {
+    return REPAIR_SCHEDULE_ID.incrementAndGet();
+  }
+
+  /**
+   * The restore methods add or replace entities read back from a persisted copy of the storage,
+   * keeping their ids. Unlike the IStorage methods, subclasses are not expected to override them.
+   */
+  protected void restoreCluster(Cluster cluster) {
+    clusters.put(cluster.getName(), cluster);
+  }
+
+  protected void restoreRepairRun(RepairRun repairRun) {
+    advanceId(REPAIR_RUN_ID, repairRun.getId());
+    putRepairRun(repairRun);
+  }
+
+  protected void restoreRepairUnit(RepairUnit repairUnit) {
+    advanceId(REPAIR_UNIT_ID, repairUnit.getId());
+    putRepairUnit(repairUnit);
+  }
+
+  protected void restoreRepairSegment(RepairSegment repairSegment) {
+    advanceId(SEGMENT_ID, repairSegment.getId());
+    putRepairSegment(repairSegment);
+  }
+
+  protected void restoreRepairSchedule(RepairSchedule repairSchedule) {
+    advanceId(REPAIR_SCHEDULE_ID, repairSchedule.getId());
+    repairSchedules.put(repairSchedule.getId(), repairSchedule);
+  }
+
+  private static void advanceId(AtomicInteger counter, long id) {
+    int current = counter.get();
+    while (current < id && !counter.compareAndSet(current, (int) id)) {
+      current = counter.get();
+    }
+  }
+
+  /**
+   * Comparator ordering the free segments in the order they are to be repaired, like the
+   * next free segment queries of the PostgreSQL storage.
+   */
+  private static final Comparator<RepairSegment> FREE_SEGMENT_ORDER =
+      new Comparator<RepairSegment>() {
+        @Override
+        public int compare(RepairSegment a, RepairSegment b) {
+          if (a.getFailCount() != b.getFailCount()) {
+            return a.getFailCount() < b.getFailCount() ? -1 : 1;
+          }
+          int tokenOrder = a.getTokenRange().getStartToken()
+              .compareTo(b.getTokenRange().getStartToken());
+          if (tokenOrder != 0) {
+            return tokenOrder;
+          }
+          return Long.compare(a.getId(), b.getId());
+        }
+      };
+
+  /**
+   * The segments of a repair run, indexed by state so that the queries of the repair runners
+   * don't need to walk through all the segments. Segments of a run don't overlap, so their start
+   * tokens are unique within the run.
+   */
+  private static final class RunSegments {
+
+    private final Map<RepairSegment.State, LinkedHashMap<Long, RepairSegment>> byState =
+        new EnumMap<>(RepairSegment.State.class);
+    private final NavigableSet<RepairSegment> free = Sets.newTreeSet(FREE_SEGMENT_ORDER);
+    private final NavigableMap<Token, RepairSegment> freeByStartToken = Maps.newTreeMap();
+    // Current version of each segment, to find it in the indexes when it's updated.
+    private final Map<Long, RepairSegment> segments = Maps.newHashMap();
+
+    private RunSegments() {
+      for (RepairSegment.State state : RepairSegment.State.values()) {
+        byState.put(state, Maps.<Long, RepairSegment>newLinkedHashMap());
+      }
+    }
+
+    synchronized void put(RepairSegment segment) {
+      RepairSegment previous = segments.put(segment.getId(), segment);
+      if (previous != null) {
+        byState.get(previous.getState()).remove(previous.getId());
+        if (previous.getState() == RepairSegment.State.NOT_STARTED) {
+          free.remove(previous);
+          freeByStartToken.remove(previous.getTokenRange().getStartToken());
+        }
+      }
+      byState.get(segment.getState()).put(segment.getId(), segment);
+      if (segment.getState() == RepairSegment.State.NOT_STARTED) {
+        free.add(segment);
+        freeByStartToken.put(segment.getTokenRange().getStartToken(), segment);
+      }
+    }
+
+    synchronized Optional<RepairSegment> getNextFree() {
+      return free.isEmpty() ? Optional.<RepairSegment>absent() : Optional.of(free.first());
+    }
+
+    synchronized Optional<RepairSegment> getNextFreeInRange(RingRange range) {
+      Token start = range.getStartToken();
+      Token end = range.getEndToken();
+      RepairSegment next = null;
+      if (range.isWrapping()) {
+        next = nextFreeInRange(range, freeByStartToken.tailMap(start, true).values(), next);
+        next = nextFreeInRange(range, freeByStartToken.headMap(end, false).values(), next);
+      } else {
+        next = nextFreeInRange(range, freeByStartToken.subMap(start, true, end, false).values(),
+                               next);
+      }
+      return Optional.fromNullable(next);
+    }
+
+    private static RepairSegment nextFreeInRange(RingRange range,
+                                                 Collection<RepairSegment> candidates,
+                                                 RepairSegment next) {
+      for (RepairSegment candidate : candidates) {
+        if (range.encloses(candidate.getTokenRange())
+            && (next == null || FREE_SEGMENT_ORDER.compare(candidate, next) < 0)) {
+          next = candidate;
+        }
+      }
+      return next;
+    }
+
+    synchronized List<RepairSegment> getAll() {
+      return Lists.newArrayList(segments.values());
+    }
+
+    synchronized List<RepairSegment> getWithState(RepairSegment.State state) {
+      return Lists.newArrayList(byState.get(state).values());
+    }
+
+    synchronized int countWithState(RepairSegment.State state) {
+      return byState.get(state).size();
+    }
+  }
+
   public static class RepairUnitKey {
 
     public final String cluster;
@@ -13,6 +13,7 @@
  */
 package com.spotify.reaper.storage;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 
@@ -29,6 +30,7 @@ import com.spotify.reaper.storage.postgresql.IStoragePostgreSQL;
 import com.spotify.reaper.storage.postgresql.LongCollectionSQLTypeArgumentFactory;
 import com.spotify.reaper.storage.postgresql.PostgresArrayArgumentFactory;
 import com.spotify.reaper.storage.postgresql.RepairParallelismArgumentFactory;
+import com.spotify.reaper.storage.postgresql.RepairSegmentCopier;
 import com.spotify.reaper.storage.postgresql.RunStateArgumentFactory;
 import com.spotify.reaper.storage.postgresql.ScheduleStateArgumentFactory;
 import com.spotify.reaper.storage.postgresql.StateArgumentFactory;
@@ -38,10 +40,15 @@ import org.skife.jdbi.v2.Handle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import io.dropwizard.jdbi.DBIFactory;
 import io.dropwizard.setup.Environment;
@@ -66,6 +73,11 @@ public class PostgresStorage implements IStorage {
     }
   }
 
+  @VisibleForTesting
+  PostgresStorage(DBI jdbi) {
+    this.jdbi = jdbi;
+  }
+
   private static IStoragePostgreSQL getPostgresStorage(Handle h) {
     h.registerArgumentFactory(new LongCollectionSQLTypeArgumentFactory());
     h.registerArgumentFactory(new PostgresArrayArgumentFactory());
@@ -135,6 +147,20 @@ public class PostgresStorage implements IStorage {
     return result;
   }
 
+  @Override
+  public void updateRepairRunLastEvents(Map<Long, String> lastEvents) {
+    List<Long> repairRunIds = new ArrayList<>(lastEvents.size());
+    List<String> events = new ArrayList<>(lastEvents.size());
+    // ordered by id, so that concurrent batches lock the rows in the same order
+    for (Map.Entry<Long, String> lastEvent : new TreeMap<>(lastEvents).entrySet()) {
+      repairRunIds.add(lastEvent.getKey());
+      events.add(lastEvent.getValue());
+    }
+    try (Handle h = jdbi.open()) {
+      getPostgresStorage(h).updateRepairRunLastEvents(repairRunIds, events);
+    }
+  }
+
   @Override
   public Optional<RepairRun> getRepairRun(long id) {
     RepairRun result;
@@ -162,6 +188,22 @@ public class PostgresStorage implements IStorage {
     return result == null ? Lists.<RepairRun>newArrayList() : result;
   }
 
+  @Override
+  public Collection<RepairRunSummary> getRepairRunSummaries(Optional<String> clusterName,
+      Set<RepairRun.RunState> runStates, int offset, int limit) {
+    List<String> states = new ArrayList<>();
+    for (RepairRun.RunState runState : runStates.isEmpty()
+        ? EnumSet.allOf(RepairRun.RunState.class) : runStates) {
+      states.add(runState.name());
+    }
+    Collection<RepairRunSummary> result;
+    try (Handle h = jdbi.open()) {
+      result = getPostgresStorage(h).getRepairRunSummaries(clusterName.orNull(), states, offset,
+                                                           limit);
+    }
+    return result == null ? Lists.<RepairRunSummary>newArrayList() : result;
+  }
+
   @Override
   public Collection<RepairRun> getRepairRunsWithState(RepairRun.RunState runState) {
     Collection<RepairRun> result;
@@ -224,25 +266,104 @@ public class PostgresStorage implements IStorage {
     return Optional.fromNullable(result);
   }
 
+  /**
+   * Streams the segments through the COPY protocol, in a single transaction. Falls back to
+   * inserting them in batches if the copy fails.
+   */
   @Override
   public void addRepairSegments(Collection<RepairSegment.Builder> newSegments, long runId) {
-    List<RepairSegment> insertableSegments = new ArrayList<>();
+    List<RepairSegment> insertableSegments = buildInsertableSegments(newSegments);
+    try (Handle h = jdbi.open()) {
+      h.begin();
+      try {
+        RepairSegmentCopier.copy(h.getConnection(), insertableSegments);
+        addToSegmentAmounts(getPostgresStorage(h), runId, countByState(insertableSegments));
+        h.commit();
+        return;
+      } catch (SQLException ex) {
+        LOG.warn("failed copying segments of repair run {}, inserting them in batches instead",
+                 runId, ex);
+        h.rollback();
+      }
+      insertInBatches(h, insertableSegments, runId);
+    }
+  }
+
+  @VisibleForTesting
+  void addRepairSegmentsInBatches(Collection<RepairSegment.Builder> newSegments,
+                                         long runId) {
+    List<RepairSegment> insertableSegments = buildInsertableSegments(newSegments);
+    try (Handle h = jdbi.open()) {
+      insertInBatches(h, insertableSegments, runId);
+    }
+  }
+
+  private void insertInBatches(Handle h, List<RepairSegment> insertableSegments, long runId) {
+    h.begin();
+    IStoragePostgreSQL storage = getPostgresStorage(h);
+    storage.insertRepairSegments(insertableSegments.iterator());
+    addToSegmentAmounts(storage, runId, countByState(insertableSegments));
+    h.commit();
+  }
+
+  private static List<RepairSegment> buildInsertableSegments(
+      Collection<RepairSegment.Builder> newSegments) {
+    List<RepairSegment> insertableSegments = new ArrayList<>(newSegments.size());
     for (RepairSegment.Builder segment : newSegments) {
       insertableSegments.add(segment.build(-1));
     }
-    try (Handle h = jdbi.open()) {
-      getPostgresStorage(h).insertRepairSegments(insertableSegments.iterator());
+    return insertableSegments;
+  }
+
+  private static Map<RepairSegment.State, Integer> countByState(
+      Collection<RepairSegment> segments) {
+    Map<RepairSegment.State, Integer> amounts = new EnumMap<>(RepairSegment.State.class);
+    for (RepairSegment segment : segments) {
+      Integer amount = amounts.get(segment.getState());
+      amounts.put(segment.getState(), null == amount ? 1 : amount + 1);
+    }
+    return amounts;
+  }
+
+  /**
+   * Keeps the per state segment amounts of a run up to date, in the transaction that changes the
+   * segments. The counters are always changed in state order, so that concurrent transactions
+   * can't deadlock on them.
+   */
+  private static void addToSegmentAmounts(IStoragePostgreSQL storage, long runId,
+                                          Map<RepairSegment.State, Integer> amounts) {
+    for (Map.Entry<RepairSegment.State, Integer> amount : amounts.entrySet()) {
+      if (amount.getValue() != 0) {
+        storage.addToSegmentAmountForRepairRun(runId, amount.getKey(), amount.getValue());
+      }
+    }
+  }
+
+  private static Map<RepairSegment.State, Integer> stateChange(RepairSegment.State from,
+                                                               RepairSegment.State to) {
+    Map<RepairSegment.State, Integer> amounts = new EnumMap<>(RepairSegment.State.class);
+    if (from != to) {
+      amounts.put(from, -1);
+      amounts.put(to, 1);
     }
+    return amounts;
   }
 
   @Override
   public boolean updateRepairSegment(RepairSegment repairSegment) {
     boolean result = false;
     try (Handle h = jdbi.open()) {
-      int rowsAdded = getPostgresStorage(h).updateRepairSegment(repairSegment);
-      if (rowsAdded < 1) {
+      h.begin();
+      IStoragePostgreSQL storage = getPostgresStorage(h);
+      Integer previousState = storage.getRepairSegmentStateForUpdate(repairSegment.getId());
+      int rowsAdded = storage.updateRepairSegment(repairSegment);
+      if (null == previousState || rowsAdded < 1) {
         LOG.warn("failed updating repair segment with id: {}", repairSegment.getId());
+        h.rollback();
       } else {
+        addToSegmentAmounts(storage, repairSegment.getRunId(), stateChange(
+            RepairSegment.State.values()[previousState], repairSegment.getState()));
+        h.commit();
         result = true;
       }
     }
@@ -272,11 +393,55 @@ public class PostgresStorage implements IStorage {
     RepairSegment result;
     try (Handle h = jdbi.open()) {
       IStoragePostgreSQL storage = getPostgresStorage(h);
-      result = storage.getNextFreeRepairSegmentOnRange(runId, range.getStart(), range.getEnd());
+      if (!range.isWrapping()) {
+        result = storage.getNextFreeRepairSegmentOnRange(runId, range.getStart(), range.getEnd());
+      } else {
+        result = storage.getNextFreeRepairSegmentOnWrappingRange(runId, range.getStart(),
+                                                                 range.getEnd());
+      }
+    }
+    return Optional.fromNullable(result);
+  }
+
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegment(long runId) {
+    RepairSegment result;
+    try (Handle h = jdbi.open()) {
+      h.begin();
+      IStoragePostgreSQL storage = getPostgresStorage(h);
+      result = storage.claimNextFreeRepairSegment(runId);
+      countClaim(storage, runId, result);
+      h.commit();
     }
     return Optional.fromNullable(result);
   }
 
+  @Override
+  public Optional<RepairSegment> claimNextFreeSegmentInRange(long runId, RingRange range) {
+    RepairSegment result;
+    try (Handle h = jdbi.open()) {
+      h.begin();
+      IStoragePostgreSQL storage = getPostgresStorage(h);
+      if (!range.isWrapping()) {
+        result = storage.claimNextFreeRepairSegmentOnRange(runId, range.getStart(),
+                                                           range.getEnd());
+      } else {
+        result = storage.claimNextFreeRepairSegmentOnWrappingRange(runId, range.getStart(),
+                                                                   range.getEnd());
+      }
+      countClaim(storage, runId, result);
+      h.commit();
+    }
+    return Optional.fromNullable(result);
+  }
+
+  private static void countClaim(IStoragePostgreSQL storage, long runId, RepairSegment claimed) {
+    if (null != claimed) {
+      addToSegmentAmounts(storage, runId, stateChange(RepairSegment.State.NOT_STARTED,
+                                                      RepairSegment.State.RUNNING));
+    }
+  }
+
   @Override
   public Collection<RepairSegment> getSegmentsWithState(long runId,
                                                         RepairSegment.State segmentState) {
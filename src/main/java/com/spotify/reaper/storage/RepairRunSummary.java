@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage;
+
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairUnit;
+
+/**
+ * A repair run together with its repair unit and amount of repaired segments, as listed by
+ * {@link IStorage#getRepairRunSummaries}.
+ */
+public class RepairRunSummary {
+
+  private final RepairRun repairRun;
+  private final RepairUnit repairUnit;
+  private final int segmentsRepaired;
+
+  public RepairRunSummary(RepairRun repairRun, RepairUnit repairUnit, int segmentsRepaired) {
+    this.repairRun = repairRun;
+    this.repairUnit = repairUnit;
+    this.segmentsRepaired = segmentsRepaired;
+  }
+
+  public RepairRun getRepairRun() {
+    return repairRun;
+  }
+
+  public RepairUnit getRepairUnit() {
+    return repairUnit;
+  }
+
+  public int getSegmentsRepaired() {
+    return segmentsRepaired;
+  }
+}
@@ -18,6 +18,7 @@ import com.spotify.reaper.core.RepairRun;
 import com.spotify.reaper.core.RepairSchedule;
 import com.spotify.reaper.core.RepairSegment;
 import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.storage.RepairRunSummary;
 
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
@@ -69,6 +70,8 @@ public interface IStoragePostgreSQL {
       + "start_time = :startTime, end_time = :endTime, pause_time = :pauseTime, "
       + "intensity = :intensity, last_event = :lastEvent, segment_count = :segmentCount, "
       + "repair_parallelism = :repairParallelism WHERE id = :id";
+  static final String SQL_UPDATE_REPAIR_RUN_LAST_EVENT =
+      "UPDATE repair_run SET last_event = :lastEvent WHERE id = :id";
   static final String SQL_GET_REPAIR_RUN =
       "SELECT " + SQL_REPAIR_RUN_ALL_FIELDS + " FROM repair_run WHERE id = :id";
   static final String SQL_GET_REPAIR_RUNS_FOR_CLUSTER =
@@ -77,6 +80,17 @@ public interface IStoragePostgreSQL {
       "SELECT " + SQL_REPAIR_RUN_ALL_FIELDS + " FROM repair_run WHERE state = :state";
   static final String SQL_GET_REPAIR_RUNS_FOR_UNIT =
       "SELECT " + SQL_REPAIR_RUN_ALL_FIELDS + " FROM repair_run WHERE repair_unit_id = :unitId";
+  static final String SQL_GET_REPAIR_RUN_SUMMARIES =
+      "SELECT repair_run.id, repair_run.cluster_name, repair_unit_id, cause, owner, "
+      + "repair_run.state, creation_time, start_time, end_time, pause_time, intensity, "
+      + "last_event, segment_count, repair_parallelism, keyspace_name, column_families, "
+      + "COALESCE((SELECT amount FROM repair_segment_count "
+      + "WHERE repair_segment_count.run_id = repair_run.id AND repair_segment_count.state = 2), "
+      + "0) AS segments_repaired "
+      + "FROM repair_run JOIN repair_unit ON repair_unit.id = repair_run.repair_unit_id "
+      + "WHERE (CAST(:clusterName AS TEXT) IS NULL OR repair_run.cluster_name = :clusterName) "
+      + "AND repair_run.state = ANY(:states) "
+      + "ORDER BY repair_run.id DESC LIMIT :limit OFFSET :offset";
 
   // RepairUnit
   //
@@ -97,19 +111,21 @@ public interface IStoragePostgreSQL {
   // RepairSegment
   //
   static final String SQL_REPAIR_SEGMENT_ALL_FIELDS_NO_ID =
-      "repair_unit_id, run_id, start_token, end_token, state, coordinator_host, start_time, "
-      + "end_time, fail_count";
+      "repair_unit_id, run_id, start_token, end_token, state, coordinator_host, "
+      + "repair_command_id, start_time, end_time, fail_count";
   static final String SQL_REPAIR_SEGMENT_ALL_FIELDS =
       "repair_segment.id, " + SQL_REPAIR_SEGMENT_ALL_FIELDS_NO_ID;
   static final String SQL_INSERT_REPAIR_SEGMENT =
       "INSERT INTO repair_segment (" + SQL_REPAIR_SEGMENT_ALL_FIELDS_NO_ID + ") VALUES "
-      + "(:repairUnitId, :runId, :startToken, :endToken, :state, :coordinatorHost, :startTime, "
-      + ":endTime, :failCount)";
+      + "(:repairUnitId, :runId, :startToken, :endToken, :state, :coordinatorHost, "
+      + ":repairCommandId, :startTime, :endTime, :failCount)";
   static final String SQL_UPDATE_REPAIR_SEGMENT =
       "UPDATE repair_segment SET repair_unit_id = :repairUnitId, run_id = :runId, "
       + "start_token = :startToken, end_token = :endToken, state = :state, "
-      + "coordinator_host = :coordinatorHost, start_time = :startTime, end_time = :endTime, "
-      + "fail_count = :failCount WHERE id = :id";
+      + "coordinator_host = :coordinatorHost, repair_command_id = :repairCommandId, "
+      + "start_time = :startTime, end_time = :endTime, fail_count = :failCount WHERE id = :id";
+  static final String SQL_GET_REPAIR_SEGMENT_STATE_FOR_UPDATE =
+      "SELECT state FROM repair_segment WHERE id = :id FOR UPDATE";
   static final String SQL_GET_REPAIR_SEGMENT =
       "SELECT " + SQL_REPAIR_SEGMENT_ALL_FIELDS + " FROM repair_segment WHERE id = :id";
   static final String SQL_GET_REPAIR_SEGMENT_FOR_RUN_WITH_STATE =
@@ -120,8 +136,41 @@ public interface IStoragePostgreSQL {
       + "AND state = 0 ORDER BY fail_count ASC, start_token ASC LIMIT 1";
   static final String SQL_GET_NEXT_FREE_REPAIR_SEGMENT_ON_RANGE =
       "SELECT " + SQL_REPAIR_SEGMENT_ALL_FIELDS + " FROM repair_segment WHERE "
-      + "run_id = :runId AND state = 0 AND start_token >= :startToken "
-      + "AND end_token < :endToken ORDER BY fail_count ASC, start_token ASC LIMIT 1";
+      + "run_id = :runId AND state = 0 AND start_token < end_token AND "
+      + "start_token >= :startToken AND end_token <= :endToken "
+      + "ORDER BY fail_count ASC, start_token ASC LIMIT 1";
+  static final String SQL_GET_NEXT_FREE_REPAIR_SEGMENT_ON_WRAPPING_RANGE =
+      "SELECT " + SQL_REPAIR_SEGMENT_ALL_FIELDS + " FROM repair_segment WHERE "
+      + "run_id = :runId AND state = 0 AND "
+      + "((start_token < end_token AND "
+      + "(start_token >= :startToken OR end_token <= :endToken)) OR "
+      + "(start_token >= end_token AND "
+      + "start_token >= :startToken AND end_token <= :endToken)) "
+      + "ORDER BY fail_count ASC, start_token ASC LIMIT 1";
+  // The claims lock the chosen row, skipping the rows locked by concurrent claims, and mark it
+  // as RUNNING (state 1) in the same statement.
+  static final String SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT =
+      "UPDATE repair_segment SET state = 1, start_time = now() WHERE id = ("
+      + "SELECT id FROM repair_segment WHERE run_id = :runId AND state = 0 "
+      + "ORDER BY fail_count ASC, start_token ASC LIMIT 1 FOR UPDATE SKIP LOCKED) "
+      + "RETURNING " + SQL_REPAIR_SEGMENT_ALL_FIELDS;
+  static final String SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT_ON_RANGE =
+      "UPDATE repair_segment SET state = 1, start_time = now() WHERE id = ("
+      + "SELECT id FROM repair_segment WHERE "
+      + "run_id = :runId AND state = 0 AND start_token < end_token AND "
+      + "start_token >= :startToken AND end_token <= :endToken "
+      + "ORDER BY fail_count ASC, start_token ASC LIMIT 1 FOR UPDATE SKIP LOCKED) "
+      + "RETURNING " + SQL_REPAIR_SEGMENT_ALL_FIELDS;
+  static final String SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT_ON_WRAPPING_RANGE =
+      "UPDATE repair_segment SET state = 1, start_time = now() WHERE id = ("
+      + "SELECT id FROM repair_segment WHERE "
+      + "run_id = :runId AND state = 0 AND "
+      + "((start_token < end_token AND "
+      + "(start_token >= :startToken OR end_token <= :endToken)) OR "
+      + "(start_token >= end_token AND "
+      + "start_token >= :startToken AND end_token <= :endToken)) "
+      + "ORDER BY fail_count ASC, start_token ASC LIMIT 1 FOR UPDATE SKIP LOCKED) "
+      + "RETURNING " + SQL_REPAIR_SEGMENT_ALL_FIELDS;
 
   // RepairSchedule
   //
@@ -153,7 +202,12 @@ public interface IStoragePostgreSQL {
   static final String SQL_GET_REPAIR_RUN_IDS_FOR_CLUSTER =
       "SELECT id FROM repair_run WHERE cluster_name = :clusterName";
   static final String SQL_SEGMENTS_AMOUNT_FOR_REPAIR_RUN =
-      "SELECT count(*) FROM repair_segment WHERE run_id = :runId AND state = :state";
+      "SELECT COALESCE((SELECT amount FROM repair_segment_count "
+      + "WHERE run_id = :runId AND state = :state), 0)";
+  static final String SQL_ADD_TO_SEGMENT_AMOUNT_FOR_REPAIR_RUN =
+      "INSERT INTO repair_segment_count (run_id, state, amount) VALUES (:runId, :state, :amount) "
+      + "ON CONFLICT (run_id, state) DO UPDATE SET amount = repair_segment_count.amount + "
+      + "EXCLUDED.amount";
 
   @SqlQuery("SELECT version()")
   public String getVersion();
@@ -176,6 +230,10 @@ public interface IStoragePostgreSQL {
   @Mapper(RepairRunMapper.class)
   public RepairRun getRepairRun(@Bind("id") long repairRunId);
 
+  @SqlBatch(SQL_UPDATE_REPAIR_RUN_LAST_EVENT)
+  public void updateRepairRunLastEvents(@Bind("id") Iterable<Long> repairRunIds,
+                                        @Bind("lastEvent") Iterable<String> lastEvents);
+
   @SqlQuery(SQL_GET_REPAIR_RUNS_FOR_CLUSTER)
   @Mapper(RepairRunMapper.class)
   public Collection<RepairRun> getRepairRunsForCluster(@Bind("clusterName") String clusterName);
@@ -188,6 +246,14 @@ public interface IStoragePostgreSQL {
   @Mapper(RepairRunMapper.class)
   public Collection<RepairRun> getRepairRunsForUnit(@Bind("unitId") long unitId);
 
+  @SqlQuery(SQL_GET_REPAIR_RUN_SUMMARIES)
+  @Mapper(RepairRunSummaryMapper.class)
+  public Collection<RepairRunSummary> getRepairRunSummaries(
+      @Bind("clusterName") String clusterName,
+      @Bind("states") Collection<String> states,
+      @Bind("offset") int offset,
+      @Bind("limit") int limit);
+
   @SqlUpdate(SQL_INSERT_REPAIR_RUN)
   @GetGeneratedKeys
   public long insertRepairRun(@BindBean RepairRun newRepairRun);
@@ -216,6 +282,9 @@ public interface IStoragePostgreSQL {
   @SqlUpdate(SQL_UPDATE_REPAIR_SEGMENT)
   public int updateRepairSegment(@BindBean RepairSegment newRepairSegment);
 
+  @SqlQuery(SQL_GET_REPAIR_SEGMENT_STATE_FOR_UPDATE)
+  public Integer getRepairSegmentStateForUpdate(@Bind("id") long repairSegmentId);
+
   @SqlQuery(SQL_GET_REPAIR_SEGMENT)
   @Mapper(RepairSegmentMapper.class)
   public RepairSegment getRepairSegment(@Bind("id") long repairSegmentId);
@@ -236,6 +305,32 @@ public interface IStoragePostgreSQL {
                                                        @Bind("startToken") BigInteger startToken,
                                                        @Bind("endToken") BigInteger endToken);
 
+  @SqlQuery(SQL_GET_NEXT_FREE_REPAIR_SEGMENT_ON_WRAPPING_RANGE)
+  @Mapper(RepairSegmentMapper.class)
+  public RepairSegment getNextFreeRepairSegmentOnWrappingRange(@Bind("runId") long runId,
+                                                               @Bind("startToken")
+                                                               BigInteger startToken,
+                                                               @Bind("endToken")
+                                                               BigInteger endToken);
+
+  @SqlQuery(SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT)
+  @Mapper(RepairSegmentMapper.class)
+  public RepairSegment claimNextFreeRepairSegment(@Bind("runId") long runId);
+
+  @SqlQuery(SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT_ON_RANGE)
+  @Mapper(RepairSegmentMapper.class)
+  public RepairSegment claimNextFreeRepairSegmentOnRange(@Bind("runId") long runId,
+                                                         @Bind("startToken") BigInteger startToken,
+                                                         @Bind("endToken") BigInteger endToken);
+
+  @SqlQuery(SQL_CLAIM_NEXT_FREE_REPAIR_SEGMENT_ON_WRAPPING_RANGE)
+  @Mapper(RepairSegmentMapper.class)
+  public RepairSegment claimNextFreeRepairSegmentOnWrappingRange(@Bind("runId") long runId,
+                                                                 @Bind("startToken")
+                                                                 BigInteger startToken,
+                                                                 @Bind("endToken")
+                                                                 BigInteger endToken);
+
   @SqlQuery(SQL_GET_REPAIR_SCHEDULE)
   @Mapper(RepairScheduleMapper.class)
   public RepairSchedule getRepairSchedule(@Bind("id") long repairScheduleId);
@@ -265,4 +360,10 @@ public interface IStoragePostgreSQL {
       @Bind("runId") long runId,
       @Bind("state") RepairSegment.State state);
 
+  @SqlUpdate(SQL_ADD_TO_SEGMENT_AMOUNT_FOR_REPAIR_RUN)
+  int addToSegmentAmountForRepairRun(
+      @Bind("runId") long runId,
+      @Bind("state") RepairSegment.State state,
+      @Bind("amount") int amount);
+
 }
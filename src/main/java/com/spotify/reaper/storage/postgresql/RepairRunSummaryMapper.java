@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.storage.postgresql;
+
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.storage.RepairRunSummary;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps a repair run joined with its repair unit and its amount of repaired segments.
+ */
+public class RepairRunSummaryMapper implements ResultSetMapper<RepairRunSummary> {
+
+  private final RepairRunMapper repairRunMapper = new RepairRunMapper();
+
+  public RepairRunSummary map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+    RepairRun repairRun = repairRunMapper.map(index, r, ctx);
+    String[] columnFamilies = (String[]) r.getArray("column_families").getArray();
+    RepairUnit repairUnit = new RepairUnit.Builder(r.getString("cluster_name"),
+                                                   r.getString("keyspace_name"),
+                                                   Sets.newHashSet(columnFamilies))
+        .build(r.getLong("repair_unit_id"));
+    return new RepairRunSummary(repairRun, repairUnit, r.getInt("segments_repaired"));
+  }
+
+}
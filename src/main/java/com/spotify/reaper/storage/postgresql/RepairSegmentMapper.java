@@ -32,6 +32,7 @@ public class RepairSegmentMapper implements ResultSetMapper<RepairSegment> {
     return repairSegmentBuilder
         .state(RepairSegment.State.values()[r.getInt("state")])
         .coordinatorHost(r.getString("coordinator_host"))
+        .repairCommandId((Integer) r.getObject("repair_command_id"))
         .startTime(RepairRunMapper.getDateTimeOrNull(r, "start_time"))
         .endTime(RepairRunMapper.getDateTimeOrNull(r, "end_time"))
         .failCount(r.getInt("fail_count"))
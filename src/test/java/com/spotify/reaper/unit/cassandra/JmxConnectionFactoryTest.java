@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.spotify.reaper.unit.cassandra;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.JmxConnectionFactory;
+import com.spotify.reaper.cassandra.JmxProxy;
+import com.spotify.reaper.cassandra.RepairStatusHandler;
+
+import org.joda.time.DateTimeUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JmxConnectionFactoryTest {
+
+  private final AtomicInteger connectCount = new AtomicInteger();
+  private MetricRegistry metricRegistry;
+  private JmxConnectionFactory factory;
+
+  @Before
+  public void setUp() {
+    metricRegistry = new MetricRegistry();
+    factory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        connectCount.incrementAndGet();
+        JmxProxy proxy = mock(JmxProxy.class);
+        when(proxy.getHost()).thenReturn(host);
+        when(proxy.isConnectionAlive()).thenReturn(true);
+        return proxy;
+      }
+    };
+    factory.setMetricRegistry(metricRegistry);
+  }
+
+  @Test
+  public void testPooledConnectionIsReused() throws ReaperException {
+    JmxProxy first = factory.connectPooled("127.0.0.1");
+    JmxProxy second = factory.connectPooled("127.0.0.1");
+    JmxProxy other = factory.connectPooled("127.0.0.2");
+
+    assertSame(first, second);
+    assertNotSame(first, other);
+    assertEquals(2, connectCount.get());
+    assertEquals(1, counter("pool-hits"));
+    assertEquals(2, counter("pool-misses"));
+    assertEquals(2, metricRegistry.getTimers()
+        .get(MetricRegistry.name(JmxConnectionFactory.class, "connect")).getCount());
+  }
+
+  @Test
+  public void testDeadPooledConnectionIsReplaced() throws ReaperException {
+    JmxProxy first = factory.connectPooled("127.0.0.1");
+    when(first.isConnectionAlive()).thenReturn(false);
+
+    JmxProxy second = factory.connectPooled("127.0.0.1");
+
+    assertNotSame(first, second);
+    verify(first).close();
+    assertEquals(2, connectCount.get());
+    assertEquals(0, counter("pool-hits"));
+    assertEquals(2, counter("pool-misses"));
+  }
+
+  @Test
+  public void testDeadPooledConnectionFailsItsRepairs() throws ReaperException {
+    JmxProxy first = factory.connectPooled("127.0.0.1");
+    when(first.isConnectionAlive()).thenReturn(false);
+
+    factory.connectPooled("127.0.0.1");
+
+    verify(first).failRepairStatusHandlers(anyString());
+  }
+
+  @Test
+  public void testConnectionFollowingRepairsIsNotEvicted() throws ReaperException {
+    long start = DateTimeUtils.currentTimeMillis();
+    DateTimeUtils.setCurrentMillisFixed(start);
+    try {
+      JmxProxy coordinator = factory.connectPooled("127.0.0.1");
+      JmxProxy idle = factory.connectPooled("127.0.0.2");
+      when(coordinator.hasRepairStatusHandlers()).thenReturn(true);
+
+      DateTimeUtils.setCurrentMillisFixed(start + TimeUnit.MINUTES.toMillis(11));
+      factory.connectPooled("127.0.0.3");
+      verify(idle).close();
+      verify(coordinator, never()).close();
+      assertSame(coordinator, factory.connectPooled("127.0.0.1"));
+
+      // evicted once its repairs are over, and it's left idle long enough
+      when(coordinator.hasRepairStatusHandlers()).thenReturn(false);
+      DateTimeUtils.setCurrentMillisFixed(start + TimeUnit.MINUTES.toMillis(22));
+      factory.connectPooled("127.0.0.3");
+      verify(coordinator).close();
+    } finally {
+      DateTimeUtils.setCurrentMillisSystem();
+    }
+  }
+
+  private long counter(String name) {
+    return metricRegistry.getCounters()
+        .get(MetricRegistry.name(JmxConnectionFactory.class, name)).getCount();
+  }
+}
@@ -1,6 +1,7 @@
 package com.spotify.reaper.unit.resources;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -30,6 +31,7 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.net.URI;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -41,7 +43,6 @@ import javax.ws.rs.core.UriInfo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -94,8 +95,9 @@ public class RepairRunResourceTest {
     when(proxy.getTokens()).thenReturn(TOKENS);
     when(proxy.tableExists(anyString(), anyString())).thenReturn(Boolean.TRUE);
     when(proxy.isConnectionAlive()).thenReturn(Boolean.TRUE);
-    when(proxy.tokenRangeToEndpoint(anyString(), any(RingRange.class))).thenReturn(
-        Collections.singletonList(""));
+    when(proxy.getRangeToEndpointMap(anyString())).thenReturn(
+        Collections.<RingRange, List<String>>singletonMap(
+            new RingRange(BigInteger.ZERO, BigInteger.ZERO), Collections.singletonList("")));
     context.jmxConnectionFactory = new JmxConnectionFactory() {
       @Override
       public JmxProxy connect(Optional<RepairStatusHandler> handler, String host)
@@ -192,7 +194,8 @@ public class RepairRunResourceTest {
     Thread.sleep(50);
     RepairRunner repairRunner = context.repairManager.repairRunners.get(runId);
     SegmentRunner segmentRunner =
-        SegmentRunner.segmentRunners.get(repairRunner.getCurrentlyRunningSegmentId());
+        SegmentRunner.segmentRunners.get(
+            Iterables.getOnlyElement(repairRunner.getRunningSegmentIds()));
     segmentRunner.handle(segmentRunner.getCurrentCommandId(), ActiveRepairService.Status.STARTED,
                          "sent a STARTED event from a test");
     Thread.sleep(50);
@@ -283,7 +286,8 @@ public class RepairRunResourceTest {
     Thread.sleep(50);
     RepairRunner repairRunner = context.repairManager.repairRunners.get(runId);
     SegmentRunner segmentRunner =
-        SegmentRunner.segmentRunners.get(repairRunner.getCurrentlyRunningSegmentId());
+        SegmentRunner.segmentRunners.get(
+            Iterables.getOnlyElement(repairRunner.getRunningSegmentIds()));
     segmentRunner.handle(segmentRunner.getCurrentCommandId(), ActiveRepairService.Status.STARTED,
                          "sent a STARTED event from a test");
     Thread.sleep(50);
@@ -335,6 +339,37 @@ public class RepairRunResourceTest {
   }
 
 
+  @Test
+  public void testListRepairRunsWithOffsetAndLimit() {
+    RepairRunResource resource = new RepairRunResource(context);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(201, addDefaultRepairRun(resource).getStatus());
+    }
+    List<Long> runIds = Lists.newArrayList(context.storage.getRepairRunIdsForCluster(CLUSTER_NAME));
+    Collections.sort(runIds, Collections.reverseOrder());
+
+    Response response = resource.listRepairRuns(Optional.<String>absent(), Optional.of(1),
+                                                Optional.of(1));
+    assertEquals(200, response.getStatus());
+    RepairRunStatus status =
+        Iterables.getOnlyElement((Collection<RepairRunStatus>) response.getEntity());
+    assertEquals(runIds.get(1).longValue(), status.getId());
+
+    response = resource.listRepairRuns(Optional.of("NOT_STARTED"), Optional.<Integer>absent(),
+                                       Optional.of(2));
+    Collection<RepairRunStatus> newest = (Collection<RepairRunStatus>) response.getEntity();
+    assertEquals(2, newest.size());
+    assertEquals(runIds.get(0).longValue(), newest.iterator().next().getId());
+
+    response = resource.listRepairRuns(Optional.of("RUNNING"), Optional.<Integer>absent(),
+                                       Optional.<Integer>absent());
+    assertTrue(((Collection<RepairRunStatus>) response.getEntity()).isEmpty());
+
+    response = resource.listRepairRuns(Optional.<String>absent(), Optional.of(-1),
+                                       Optional.<Integer>absent());
+    assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+  }
+
   @Test
   public void testSplitStateParam() {
     RepairRunResource resource = new RepairRunResource(context);
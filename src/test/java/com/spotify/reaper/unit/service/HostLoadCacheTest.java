@@ -0,0 +1,107 @@
+package com.spotify.reaper.unit.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+
+import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.HostLoad;
+import com.spotify.reaper.cassandra.JmxConnectionFactory;
+import com.spotify.reaper.cassandra.JmxProxy;
+import com.spotify.reaper.cassandra.RepairStatusHandler;
+import com.spotify.reaper.service.HostLoadCache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HostLoadCacheTest {
+
+  private AtomicInteger fetches;
+  private JmxConnectionFactory jmxConnectionFactory;
+
+  @Before
+  public void setUp() throws Exception {
+    fetches = new AtomicInteger();
+    jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        JmxProxy jmx = mock(JmxProxy.class);
+        when(jmx.isConnectionAlive()).thenReturn(true);
+        // every fetch reports one more pending compaction
+        when(jmx.getLoad()).then(new Answer<HostLoad>() {
+          @Override
+          public HostLoad answer(InvocationOnMock invocation) throws Throwable {
+            return new HostLoad(fetches.incrementAndGet(), false);
+          }
+        });
+        return jmx;
+      }
+    };
+  }
+
+  @Test
+  public void testSharesLoadsWithinTimeToLive() throws Exception {
+    HostLoadCache hostLoads = new HostLoadCache(60000);
+    assertEquals(1, hostLoads.get("cluster", "host1", jmxConnectionFactory)
+        .getPendingCompactions());
+    assertEquals(1, hostLoads.get("cluster", "host1", jmxConnectionFactory)
+        .getPendingCompactions());
+    assertEquals(2, hostLoads.get("cluster", "host2", jmxConnectionFactory)
+        .getPendingCompactions());
+    assertEquals(2, fetches.get());
+    hostLoads.close();
+  }
+
+  @Test
+  public void testPollsAskedHostsInBackground() throws Exception {
+    HostLoadCache hostLoads = new HostLoadCache(200);
+    assertEquals(1, hostLoads.get("cluster", "host1", jmxConnectionFactory)
+        .getPendingCompactions());
+    Thread.sleep(300);
+    assertEquals("the host should have been polled once in the background", 2, fetches.get());
+    // read from the cache, without fetching
+    assertEquals(2, hostLoads.get("cluster", "host1", jmxConnectionFactory)
+        .getPendingCompactions());
+    assertEquals(2, fetches.get());
+    Thread.sleep(800);
+    // polled once more after the read, and no longer once the host isn't asked for
+    assertEquals(3, fetches.get());
+    hostLoads.close();
+  }
+
+  @Test
+  public void testTimesOnlyFetches() throws Exception {
+    HostLoadCache hostLoads = new HostLoadCache(60000);
+    MetricRegistry metricRegistry = new MetricRegistry();
+    hostLoads.setMetricRegistry(metricRegistry);
+    hostLoads.get("cluster", "host1", jmxConnectionFactory);
+    hostLoads.get("cluster", "host1", jmxConnectionFactory);
+    hostLoads.close();
+    assertEquals(1, metricRegistry.timer(
+        MetricRegistry.name(HostLoadCache.class, "fetch", "host1")).getCount());
+  }
+
+  @Test
+  public void testStopsPollingWhenClosed() throws Exception {
+    HostLoadCache hostLoads = new HostLoadCache(100);
+    hostLoads.get("cluster", "host1", jmxConnectionFactory);
+    hostLoads.close();
+    // let a poll that was already running finish
+    Thread.sleep(50);
+    int fetched = fetches.get();
+    Thread.sleep(300);
+    assertEquals(fetched, fetches.get());
+    // loads are still fetched directly
+    hostLoads.get("other", "host2", jmxConnectionFactory);
+    assertEquals(fetched + 1, fetches.get());
+  }
+}
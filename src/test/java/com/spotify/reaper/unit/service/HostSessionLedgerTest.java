@@ -0,0 +1,54 @@
+package com.spotify.reaper.unit.service;
+
+import com.google.common.collect.Lists;
+
+import com.spotify.reaper.service.HostSessionLedger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostSessionLedgerTest {
+
+  private HostSessionLedger ledger;
+
+  @Before
+  public void setUp() throws Exception {
+    ledger = new HostSessionLedger();
+  }
+
+  @Test
+  public void testTakesAllHostsOrNone() throws Exception {
+    assertTrue(ledger.tryAcquire("cluster", Lists.newArrayList("host1", "host2")));
+    assertFalse(ledger.isAvailable("cluster", Lists.newArrayList("host2", "host3")));
+    assertFalse(ledger.tryAcquire("cluster", Lists.newArrayList("host2", "host3")));
+    assertEquals(0, ledger.getSessions("cluster", "host3"));
+
+    assertTrue(ledger.tryAcquire("cluster", Lists.newArrayList("host3")));
+    ledger.release("cluster", Lists.newArrayList("host1", "host2"));
+    assertTrue(ledger.tryAcquire("cluster", Lists.newArrayList("host1", "host2")));
+  }
+
+  @Test
+  public void testCountsHostsPerCluster() throws Exception {
+    assertTrue(ledger.tryAcquire("cluster1", Lists.newArrayList("host1")));
+    assertTrue(ledger.tryAcquire("cluster2", Lists.newArrayList("host1")));
+    assertEquals(1, ledger.getSessions("cluster1", "host1"));
+  }
+
+  @Test
+  public void testAllowsConfiguredSessionsPerHost() throws Exception {
+    ledger.setMaxSessionsPerHost(2);
+    assertTrue(ledger.tryAcquire("cluster", Lists.newArrayList("host1", "host2")));
+    assertTrue(ledger.tryAcquire("cluster", Lists.newArrayList("host1")));
+    assertFalse(ledger.tryAcquire("cluster", Lists.newArrayList("host1", "host2")));
+    assertEquals(2, ledger.getSessions("cluster", "host1"));
+
+    // an adopted session is counted even beyond the maximum
+    ledger.acquire("cluster", Lists.newArrayList("host1"));
+    assertEquals(3, ledger.getSessions("cluster", "host1"));
+  }
+}
@@ -0,0 +1,43 @@
+package com.spotify.reaper.unit.service;
+
+import com.spotify.reaper.service.IntensityController;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntensityControllerTest {
+
+  private static final double DELTA = 0.0001;
+
+  @Test
+  public void testStartsWithinBounds() throws Exception {
+    assertEquals(0.5, new IntensityController(0.1, 0.5, 0.9).getIntensity(), DELTA);
+    assertEquals(0.9, new IntensityController(1.0, 0.5, 0.9).getIntensity(), DELTA);
+    assertEquals(0.7, new IntensityController(0.7, 0.5, 0.9).getIntensity(), DELTA);
+  }
+
+  @Test
+  public void testRaisesSlowlyWhenIdle() throws Exception {
+    IntensityController controller = new IntensityController(0.7, 0.5, 0.8);
+    assertEquals(0.75, controller.update(0), DELTA);
+    assertEquals(0.8, controller.update(5), DELTA);
+    assertEquals(0.8, controller.update(0), DELTA);
+  }
+
+  @Test
+  public void testHoldsUnderModerateLoad() throws Exception {
+    IntensityController controller = new IntensityController(0.7, 0.5, 0.8);
+    assertEquals(0.7, controller.update(10), DELTA);
+    assertEquals(0.7, controller.update(15), DELTA);
+  }
+
+  @Test
+  public void testBacksOffFastUnderLoad() throws Exception {
+    IntensityController controller = new IntensityController(0.8, 0.1, 0.8);
+    assertEquals(0.4, controller.update(16), DELTA);
+    assertEquals(0.2, controller.update(100), DELTA);
+    assertEquals(0.1, controller.update(100), DELTA);
+    assertEquals(0.15, controller.update(0), DELTA);
+  }
+}
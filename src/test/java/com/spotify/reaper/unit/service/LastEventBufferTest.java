@@ -0,0 +1,63 @@
+package com.spotify.reaper.unit.service;
+
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.service.LastEventBuffer;
+import com.spotify.reaper.storage.MemoryStorage;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LastEventBufferTest {
+
+  private MemoryStorage storage;
+  private LastEventBuffer lastEvents;
+  private RepairRun run;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new MemoryStorage();
+    lastEvents = new LastEventBuffer();
+    run = storage.addRepairRun(new RepairRun.Builder(
+        "cluster", 1, DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL).lastEvent("created"));
+  }
+
+  private String storedEvent() {
+    return storage.getRepairRun(run.getId()).get().getLastEvent();
+  }
+
+  @Test
+  public void testCoalescesEventsUntilFlushed() throws Exception {
+    lastEvents.record(run.getId(), "first");
+    lastEvents.record(run.getId(), "second");
+    assertEquals("created", storedEvent());
+    assertEquals("second", lastEvents.withPendingEvent(run).getLastEvent());
+
+    lastEvents.flush(storage);
+    assertEquals("second", storedEvent());
+    assertEquals("second", lastEvents.withPendingEvent(storage.getRepairRun(run.getId()).get())
+        .getLastEvent());
+  }
+
+  @Test
+  public void testFlushKeepsTheRestOfTheRun() throws Exception {
+    lastEvents.record(run.getId(), "postponed");
+    storage.updateRepairRun(run.with().runState(RepairRun.RunState.PAUSED).build(run.getId()));
+    lastEvents.flush(storage);
+
+    RepairRun stored = storage.getRepairRun(run.getId()).get();
+    assertEquals(RepairRun.RunState.PAUSED, stored.getRunState());
+    assertEquals("postponed", stored.getLastEvent());
+  }
+
+  @Test
+  public void testDiscardedEventIsNotStored() throws Exception {
+    lastEvents.record(run.getId(), "waiting");
+    lastEvents.discard(run.getId());
+    lastEvents.flush(storage);
+    assertEquals("created", storedEvent());
+  }
+}
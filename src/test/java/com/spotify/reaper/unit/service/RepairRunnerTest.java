@@ -15,10 +15,12 @@ package com.spotify.reaper.unit.service;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.HostLoad;
 import com.spotify.reaper.cassandra.JmxConnectionFactory;
 import com.spotify.reaper.cassandra.JmxProxy;
 import com.spotify.reaper.cassandra.RepairStatusHandler;
@@ -43,17 +45,31 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.math.BigInteger;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RepairRunnerTest {
@@ -144,15 +160,21 @@ public class RepairRunnerTest {
         final JmxProxy jmx = mock(JmxProxy.class);
         when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
         when(jmx.isConnectionAlive()).thenReturn(true);
-        when(jmx.tokenRangeToEndpoint(anyString(), any(RingRange.class)))
-            .thenReturn(Lists.newArrayList(""));
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
         when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
                                Matchers.<RepairParallelism>any(),
-                               Sets.newHashSet(anyString()))).then(
+                               Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class))).then(
             new Answer<Integer>() {
               @Override
               public Integer answer(InvocationOnMock invocation) throws Throwable {
-                assertEquals(RepairSegment.State.NOT_STARTED,
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
+                // claimed by the runner before the repair is triggered
+                assertEquals(RepairSegment.State.RUNNING,
                              storage.getRepairSegment(SEGMENT_ID).get().getState());
 
                 final int repairNumber = repairAttempts.getAndIncrement();
@@ -161,7 +183,7 @@ public class RepairRunnerTest {
                     new Thread() {
                       @Override
                       public void run() {
-                        handler.get()
+                        repairStatusHandler
                             .handle(repairNumber, ActiveRepairService.Status.STARTED, null);
                         assertEquals(RepairSegment.State.RUNNING,
                                      storage.getRepairSegment(SEGMENT_ID).get().getState());
@@ -172,15 +194,15 @@ public class RepairRunnerTest {
                     new Thread() {
                       @Override
                       public void run() {
-                        handler.get()
+                        repairStatusHandler
                             .handle(repairNumber, ActiveRepairService.Status.STARTED, null);
                         assertEquals(RepairSegment.State.RUNNING,
                                      storage.getRepairSegment(SEGMENT_ID).get().getState());
-                        handler.get()
+                        repairStatusHandler
                             .handle(repairNumber, ActiveRepairService.Status.SESSION_SUCCESS, null);
                         assertEquals(RepairSegment.State.RUNNING,
                                      storage.getRepairSegment(SEGMENT_ID).get().getState());
-                        handler.get()
+                        repairStatusHandler
                             .handle(repairNumber, ActiveRepairService.Status.FINISHED, null);
                       }
                     }.start();
@@ -242,22 +264,29 @@ public class RepairRunnerTest {
         final JmxProxy jmx = mock(JmxProxy.class);
         when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
         when(jmx.isConnectionAlive()).thenReturn(true);
-        when(jmx.tokenRangeToEndpoint(anyString(), any(RingRange.class)))
-            .thenReturn(Lists.newArrayList(""));
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
         when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
                                Matchers.<RepairParallelism>any(),
-                               Sets.newHashSet(anyString()))).then(
+                               Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class))).then(
             new Answer<Integer>() {
               @Override
               public Integer answer(InvocationOnMock invocation) throws Throwable {
-                assertEquals(RepairSegment.State.NOT_STARTED,
-                             storage.getRepairSegment(SEGMENT_ID).get().getState());
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
+                // only the segment claimed for this repair is running
+                assertEquals(1, storage.getSegmentAmountForRepairRun(
+                    RUN_ID, RepairSegment.State.RUNNING));
                 new Thread() {
                   @Override
                   public void run() {
-                    handler.get().handle(1, ActiveRepairService.Status.STARTED, null);
-                    handler.get().handle(1, ActiveRepairService.Status.SESSION_SUCCESS, null);
-                    handler.get().handle(1, ActiveRepairService.Status.FINISHED, null);
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.STARTED, null);
+                    repairStatusHandler
+                        .handle(1, ActiveRepairService.Status.SESSION_SUCCESS, null);
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.FINISHED, null);
                   }
                 }.start();
                 return 1;
@@ -275,4 +304,344 @@ public class RepairRunnerTest {
     Thread.sleep(100);
     assertEquals(RepairRun.RunState.DONE, storage.getRepairRun(RUN_ID).get().getRunState());
   }
+
+  @Test
+  public void testResumeRepairAdoptsRunningCommand() throws Exception {
+    final String CLUSTER_NAME = "reaper";
+    final String KS_NAME = "reaper";
+    final Set<String> CF_NAMES = Sets.newHashSet("reaper");
+    final long TIME_RUN = 41l;
+    final double INTENSITY = 0.5f;
+
+    final IStorage storage = new MemoryStorage();
+    AppContext context = new AppContext();
+    context.storage = storage;
+    context.repairManager = new RepairManager();
+
+    storage.addCluster(new Cluster(CLUSTER_NAME, null, Collections.<String>singleton(null)));
+    long cf = storage.addRepairUnit(
+        new RepairUnit.Builder(CLUSTER_NAME, KS_NAME, CF_NAMES)).getId();
+    DateTimeUtils.setCurrentMillisFixed(TIME_RUN);
+    RepairRun run = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, cf, DateTime.now(), INTENSITY, 1,
+                              RepairParallelism.PARALLEL).runState(RepairRun.RunState.RUNNING));
+    storage.addRepairSegments(Lists.newArrayList(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ZERO, BigInteger.ONE), cf)
+            .state(RepairSegment.State.RUNNING).startTime(DateTime.now()).coordinatorHost("reaper")
+            .repairCommandId(1337),
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ONE, BigInteger.ZERO), cf)
+    ), run.getId());
+    final long RUN_ID = run.getId();
+    final long ADOPTED_SEGMENT_ID = storage.getSegmentsWithState(
+        RUN_ID, RepairSegment.State.RUNNING).iterator().next().getId();
+
+    context.repairManager.initializeThreadPool(1, 500, TimeUnit.MILLISECONDS, 1, TimeUnit.MILLISECONDS);
+
+    final AtomicReference<RepairStatusHandler> adoptedHandler = new AtomicReference<>();
+    final AtomicBoolean adoptedRunning = new AtomicBoolean(true);
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        final JmxProxy jmx = mock(JmxProxy.class);
+        when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
+        when(jmx.isConnectionAlive()).thenReturn(true);
+        when(jmx.isRepairRunning()).then(new Answer<Boolean>() {
+          @Override
+          public Boolean answer(InvocationOnMock invocation) throws Throwable {
+            return adoptedRunning.get();
+          }
+        });
+        // the coordinator has been running since before the adopted command started
+        when(jmx.getStartTime()).thenReturn(Optional.of(new DateTime(0)));
+        when(jmx.getLoad()).then(new Answer<HostLoad>() {
+          @Override
+          public HostLoad answer(InvocationOnMock invocation) throws Throwable {
+            return new HostLoad(0, adoptedRunning.get());
+          }
+        });
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
+        doAnswer(new Answer<Void>() {
+          @Override
+          public Void answer(InvocationOnMock invocation) throws Throwable {
+            assertEquals(1337, invocation.getArguments()[0]);
+            adoptedHandler.set((RepairStatusHandler) invocation.getArguments()[1]);
+            return null;
+          }
+        }).when(jmx).addRepairStatusHandler(anyInt(), any(RepairStatusHandler.class));
+        when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                               Matchers.<RepairParallelism>any(),
+                               Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class))).then(
+            new Answer<Integer>() {
+              @Override
+              public Integer answer(InvocationOnMock invocation) throws Throwable {
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
+                new Thread() {
+                  @Override
+                  public void run() {
+                    repairStatusHandler.handle(2, ActiveRepairService.Status.STARTED, null);
+                    repairStatusHandler.handle(2, ActiveRepairService.Status.FINISHED, null);
+                  }
+                }.start();
+                return 2;
+              }
+            });
+        return jmx;
+      }
+    };
+
+    context.repairManager.resumeRunningRepairRuns(context);
+    Thread.sleep(100);
+    // the adopted repair is still running, and the other segment waits for its replicas
+    RepairSegment adopted = storage.getRepairSegment(ADOPTED_SEGMENT_ID).get();
+    assertEquals(RepairSegment.State.RUNNING, adopted.getState());
+    assertEquals(0, adopted.getFailCount());
+    assertEquals(1, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.NOT_STARTED));
+
+    adoptedRunning.set(false);
+    adoptedHandler.get().handle(1337, ActiveRepairService.Status.FINISHED, null);
+    Thread.sleep(100);
+    assertEquals(RepairSegment.State.DONE,
+                 storage.getRepairSegment(ADOPTED_SEGMENT_ID).get().getState());
+    assertEquals(RepairRun.RunState.DONE, storage.getRepairRun(RUN_ID).get().getRunState());
+  }
+
+  @Test
+  public void testResumeRepairPostponesCommandOfRestartedCoordinator() throws Exception {
+    final String CLUSTER_NAME = "reaper";
+    final long TIME_RUN = 41l;
+
+    final IStorage storage = new MemoryStorage();
+    AppContext context = new AppContext();
+    context.storage = storage;
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.HOURS, 1, TimeUnit.HOURS);
+
+    storage.addCluster(new Cluster(CLUSTER_NAME, null, Collections.<String>singleton(null)));
+    long cf = storage.addRepairUnit(
+        new RepairUnit.Builder(CLUSTER_NAME, "reaper", Sets.newHashSet("reaper"))).getId();
+    DateTimeUtils.setCurrentMillisFixed(TIME_RUN);
+    RepairRun run = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, cf, DateTime.now(), 0.5, 1,
+                              RepairParallelism.PARALLEL).runState(RepairRun.RunState.RUNNING));
+    storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ZERO, BigInteger.ONE), cf)
+            .state(RepairSegment.State.RUNNING).startTime(DateTime.now()).coordinatorHost("reaper")
+            .repairCommandId(1337)), run.getId());
+    long segmentId = storage.getSegmentsWithState(run.getId(), RepairSegment.State.RUNNING)
+        .iterator().next().getId();
+
+    // the coordinator repairs, but restarted since the command was sent, so it isn't ours
+    final JmxProxy jmx = mock(JmxProxy.class);
+    when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
+    when(jmx.isConnectionAlive()).thenReturn(true);
+    when(jmx.isRepairRunning()).thenReturn(true);
+    when(jmx.getStartTime()).thenReturn(Optional.of(new DateTime(TIME_RUN + 1)));
+    when(jmx.getLoad()).thenReturn(new HostLoad(0, true));
+    when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+        Collections.<RingRange, List<String>>singletonMap(
+            new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(Optional<RepairStatusHandler> handler, String host) {
+        return jmx;
+      }
+    };
+
+    context.repairManager.resumeRunningRepairRuns(context);
+    // postponed, and maybe again by the resumed run, as its replicas are busy repairing
+    RepairSegment segment = storage.getRepairSegment(segmentId).get();
+    assertTrue(segment.getFailCount() >= 1);
+    assertNull(segment.getRepairCommandId());
+    verify(jmx, never()).addRepairStatusHandler(anyInt(), any(RepairStatusHandler.class));
+    verify(jmx, never()).cancelAllRepairs();
+  }
+
+  @Test
+  public void testParallelSegmentsHaveDisjointReplicas() throws Exception {
+    final String CLUSTER_NAME = "reaper";
+    final String KS_NAME = "reaper";
+    final Set<String> CF_NAMES = Sets.newHashSet("reaper");
+    final double INTENSITY = 0.5f;
+
+    final IStorage storage = spy(new MemoryStorage());
+    AppContext context = new AppContext();
+    context.storage = storage;
+    context.repairManager = new RepairManager();
+    context.repairManager.setMaxParallelSegmentsPerRun(2);
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.HOURS, 1, TimeUnit.MILLISECONDS);
+
+    storage.addCluster(new Cluster(CLUSTER_NAME, null, Collections.<String>singleton(null)));
+    long cf = storage.addRepairUnit(
+        new RepairUnit.Builder(CLUSTER_NAME, KS_NAME, CF_NAMES)).getId();
+    RepairRun run = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, cf, DateTime.now(), INTENSITY, 1,
+                              RepairParallelism.PARALLEL));
+    // three segments could run in parallel, the ranges from 400 on have no segment at all
+    final Map<RingRange, List<String>> ring = Maps.newLinkedHashMap();
+    ring.put(range(0, 100), Lists.newArrayList("a", "b"));
+    ring.put(range(100, 200), Lists.newArrayList("b", "c"));
+    ring.put(range(200, 300), Lists.newArrayList("c", "d"));
+    ring.put(range(300, 400), Lists.newArrayList("e", "f"));
+    ring.put(range(400, 500), Lists.newArrayList("g", "h"));
+    ring.put(range(500, 600), Lists.newArrayList("i", "j"));
+    ring.put(range(600, 0), Lists.newArrayList("k", "l"));
+    storage.addRepairSegments(Lists.newArrayList(
+        new RepairSegment.Builder(run.getId(), range(0, 100), cf),
+        new RepairSegment.Builder(run.getId(), range(100, 200), cf),
+        new RepairSegment.Builder(run.getId(), range(200, 300), cf),
+        new RepairSegment.Builder(run.getId(), range(300, 400), cf)
+    ), run.getId());
+    final long RUN_ID = run.getId();
+
+    final List<BigInteger> triggeredStarts = Collections.synchronizedList(
+        Lists.<BigInteger>newArrayList());
+    final AtomicInteger commandIds = new AtomicInteger(0);
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        final JmxProxy jmx = mock(JmxProxy.class);
+        when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
+        when(jmx.getHost()).thenReturn(host);
+        when(jmx.isConnectionAlive()).thenReturn(true);
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(ring);
+        when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                               Matchers.<RepairParallelism>any(),
+                               Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class))).then(
+            new Answer<Integer>() {
+              @Override
+              public Integer answer(InvocationOnMock invocation) throws Throwable {
+                // the repairs never finish, so that all of them keep running
+                triggeredStarts.add((BigInteger) invocation.getArguments()[0]);
+                return commandIds.incrementAndGet();
+              }
+            });
+        return jmx;
+      }
+    };
+
+    context.repairManager.startRepairRun(context, run);
+    Thread.sleep(200);
+
+    // capped at two segments, whose replicas don't overlap
+    assertEquals(Lists.newArrayList(BigInteger.valueOf(0), BigInteger.valueOf(200)),
+                 Lists.newArrayList(Sets.newTreeSet(triggeredStarts)));
+    Collection<Long> runningIds =
+        context.repairManager.repairRunners.get(RUN_ID).getRunningSegmentIds();
+    assertEquals(2, runningIds.size());
+    Set<String> replicas = Sets.newHashSet();
+    for (long segmentId : runningIds) {
+      RepairSegment segment = storage.getRepairSegment(segmentId).get();
+      assertEquals(RepairSegment.State.RUNNING, segment.getState());
+      for (Map.Entry<RingRange, List<String>> ringRange : ring.entrySet()) {
+        if (ringRange.getKey().encloses(segment.getTokenRange())) {
+          for (String replica : ringRange.getValue()) {
+            assertTrue("replica " + replica + " repaired twice", replicas.add(replica));
+          }
+        }
+      }
+    }
+    assertEquals(2, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.NOT_STARTED));
+    // only the free segments found are claimed by range, none of the ranges without segments
+    verify(storage, times(2)).claimNextFreeSegmentInRange(anyLong(), any(RingRange.class));
+  }
+
+  @Test
+  public void testRunSkipsSegmentsWithReplicasBusyInOtherRuns() throws Exception {
+    final String CLUSTER_NAME = "reaper";
+    final String KS_NAME = "reaper";
+    final Set<String> CF_NAMES = Sets.newHashSet("reaper");
+    final double INTENSITY = 0.5f;
+
+    final IStorage storage = spy(new MemoryStorage());
+    AppContext context = new AppContext();
+    context.storage = storage;
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.HOURS, 1, TimeUnit.MILLISECONDS);
+
+    storage.addCluster(new Cluster(CLUSTER_NAME, null, Collections.<String>singleton(null)));
+    long cf = storage.addRepairUnit(
+        new RepairUnit.Builder(CLUSTER_NAME, KS_NAME, CF_NAMES)).getId();
+    final Map<RingRange, List<String>> ring = Maps.newLinkedHashMap();
+    ring.put(range(0, 100), Lists.newArrayList("a", "b"));
+    ring.put(range(100, 200), Lists.newArrayList("b", "c"));
+    ring.put(range(200, 300), Lists.newArrayList("c", "d"));
+    ring.put(range(300, 0), Lists.newArrayList("e", "f"));
+    RepairRun first = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, cf, DateTime.now(), INTENSITY, 1,
+                              RepairParallelism.PARALLEL));
+    storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(first.getId(), range(0, 100), cf)), first.getId());
+    RepairRun second = storage.addRepairRun(
+        new RepairRun.Builder(CLUSTER_NAME, cf, DateTime.now(), INTENSITY, 1,
+                              RepairParallelism.PARALLEL));
+    storage.addRepairSegments(Lists.newArrayList(
+        new RepairSegment.Builder(second.getId(), range(0, 100), cf),
+        new RepairSegment.Builder(second.getId(), range(200, 300), cf)
+    ), second.getId());
+
+    final List<BigInteger> triggeredStarts = Collections.synchronizedList(
+        Lists.<BigInteger>newArrayList());
+    final AtomicInteger commandIds = new AtomicInteger(0);
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        final JmxProxy jmx = mock(JmxProxy.class);
+        when(jmx.getClusterName()).thenReturn(CLUSTER_NAME);
+        when(jmx.getHost()).thenReturn(host);
+        when(jmx.isConnectionAlive()).thenReturn(true);
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(ring);
+        when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                               Matchers.<RepairParallelism>any(),
+                               Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class))).then(
+            new Answer<Integer>() {
+              @Override
+              public Integer answer(InvocationOnMock invocation) throws Throwable {
+                // the repairs never finish, so that their replicas stay busy
+                triggeredStarts.add((BigInteger) invocation.getArguments()[0]);
+                return commandIds.incrementAndGet();
+              }
+            });
+        return jmx;
+      }
+    };
+
+    context.repairManager.startRepairRun(context, first);
+    Thread.sleep(200);
+    context.repairManager.startRepairRun(context, second);
+    Thread.sleep(200);
+
+    // the second run starts with the segment whose replicas are free, instead of waiting
+    assertEquals(Lists.newArrayList(BigInteger.valueOf(0), BigInteger.valueOf(200)),
+                 triggeredStarts);
+    Collection<Long> runningIds =
+        context.repairManager.repairRunners.get(second.getId()).getRunningSegmentIds();
+    assertEquals(1, runningIds.size());
+    RepairSegment running = storage.getRepairSegment(runningIds.iterator().next()).get();
+    assertEquals(BigInteger.valueOf(200), running.getStartToken());
+    // the segment with busy replicas is left as is, without claiming and giving it back
+    verify(storage, times(1)).claimNextFreeSegmentInRange(
+        Matchers.eq(second.getId()), any(RingRange.class));
+    for (RepairSegment segment : storage.getSegmentsWithState(
+        second.getId(), RepairSegment.State.NOT_STARTED)) {
+      assertEquals(BigInteger.valueOf(0), segment.getStartToken());
+      assertEquals(0, segment.getFailCount());
+    }
+    assertEquals(1, storage.getSegmentAmountForRepairRun(
+        second.getId(), RepairSegment.State.NOT_STARTED));
+  }
+
+  private static RingRange range(long start, long end) {
+    return new RingRange(BigInteger.valueOf(start), BigInteger.valueOf(end));
+  }
 }
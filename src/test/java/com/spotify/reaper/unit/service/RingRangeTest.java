@@ -1,6 +1,7 @@
 package com.spotify.reaper.unit.service;
 
 import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.Token;
 
 import org.junit.Test;
 
@@ -22,6 +23,20 @@ public class RingRangeTest {
     assertEquals(180, r_20_0.span(ringSize_200).intValue());
   }
 
+  @Test
+  public void testTokenSpan() throws Exception {
+    Token ringSize_200 = Token.of(200);
+    assertEquals(Token.of(20), new RingRange(Token.of(0), Token.of(20)).span(ringSize_200));
+    assertEquals(Token.of(180), new RingRange(Token.of(20), Token.of(0)).span(ringSize_200));
+    assertEquals(ringSize_200, new RingRange(Token.of(20), Token.of(20)).span(ringSize_200));
+
+    // a wrapping Murmur3Partitioner range, spanning more than a long
+    Token ringSize_2pow64 = Token.of(BigInteger.ONE.shiftLeft(64));
+    RingRange wrapping = new RingRange(Token.of(Long.MIN_VALUE + 1), Token.of(Long.MIN_VALUE));
+    assertEquals(wrapping.span(ringSize_2pow64.toBigInteger()),
+                 wrapping.span(ringSize_2pow64).toBigInteger());
+  }
+
   @Test
   public void testEncloses() throws Exception {
     RingRange r_0_20 = new RingRange(BigInteger.valueOf(0l), BigInteger.valueOf(20l));
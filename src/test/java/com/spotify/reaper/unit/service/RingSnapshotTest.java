@@ -0,0 +1,53 @@
+package com.spotify.reaper.unit.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.service.RingSnapshot;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingSnapshotTest {
+
+  private static RingRange range(long start, long end) {
+    return new RingRange(BigInteger.valueOf(start), BigInteger.valueOf(end));
+  }
+
+  @Test
+  public void testTokenRangeToEndpoint() throws Exception {
+    // ring of size 200 with a wrapping range (150,10]
+    Map<RingRange, List<String>> ring = ImmutableMap.<RingRange, List<String>>of(
+        range(10, 50), Lists.newArrayList("a", "b"),
+        range(50, 150), Lists.newArrayList("b", "c"),
+        range(150, 10), Lists.newArrayList("c", "a"));
+    RingSnapshot snapshot = new RingSnapshot(ring);
+
+    assertEquals(Lists.newArrayList("a", "b"), snapshot.tokenRangeToEndpoint(range(10, 20)));
+    assertEquals(Lists.newArrayList("a", "b"), snapshot.tokenRangeToEndpoint(range(40, 50)));
+    assertEquals(Lists.newArrayList("b", "c"), snapshot.tokenRangeToEndpoint(range(50, 150)));
+    assertEquals(Lists.newArrayList("c", "a"), snapshot.tokenRangeToEndpoint(range(160, 190)));
+    assertEquals(Lists.newArrayList("c", "a"), snapshot.tokenRangeToEndpoint(range(190, 5)));
+    assertEquals(Lists.newArrayList("c", "a"), snapshot.tokenRangeToEndpoint(range(0, 10)));
+
+    // segments spanning more than one range have no single set of replicas
+    assertTrue(snapshot.tokenRangeToEndpoint(range(40, 60)).isEmpty());
+    assertTrue(snapshot.tokenRangeToEndpoint(range(140, 20)).isEmpty());
+  }
+
+  @Test
+  public void testSingleRangeRing() throws Exception {
+    RingSnapshot snapshot = new RingSnapshot(ImmutableMap.<RingRange, List<String>>of(
+        range(0, 0), Lists.newArrayList("a")));
+
+    assertEquals(Lists.newArrayList("a"), snapshot.tokenRangeToEndpoint(range(0, 100)));
+    assertEquals(Lists.newArrayList("a"), snapshot.tokenRangeToEndpoint(range(100, 0)));
+  }
+}
@@ -0,0 +1,225 @@
+package com.spotify.reaper.unit.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.AppContext;
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSchedule;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.SchedulingManager;
+import com.spotify.reaper.storage.MemoryStorage;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SchedulingManagerTest {
+
+  private static final String PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+  private static final long AWAIT_MILLIS = 10000;
+  private static final long RUN_CREATION_TIMEOUT_MILLIS = 10000;
+
+  private AppContext context;
+  private RepairUnit unit;
+
+  @Before
+  public void setUp() throws Exception {
+    DateTimeUtils.setCurrentMillisSystem();
+    context = new AppContext();
+    context.storage = spy(new MemoryStorage());
+    unit = addRepairUnit("cluster");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    SchedulingManager.stop();
+  }
+
+  @Test
+  public void testSchedulesAreManagedInActivationOrder() throws Exception {
+    DateTime now = DateTime.now();
+    RepairSchedule last = addSchedule(unit, now.plusMillis(300));
+    RepairSchedule first = addSchedule(unit, now.plusMillis(100));
+    RepairSchedule second = addSchedule(unit, now.plusMillis(200));
+
+    SchedulingManager.start(context, 10, RUN_CREATION_TIMEOUT_MILLIS);
+    awaitManaged(last);
+    awaitManaged(first);
+    awaitManaged(second);
+
+    ArgumentCaptor<RepairSchedule> managed = ArgumentCaptor.forClass(RepairSchedule.class);
+    verify(context.storage, times(3)).updateRepairSchedule(managed.capture());
+    List<Long> managedIds = Lists.newArrayList();
+    for (RepairSchedule schedule : managed.getAllValues()) {
+      managedIds.add(schedule.getId());
+    }
+    assertEquals(Lists.newArrayList(first.getId(), second.getId(), last.getId()), managedIds);
+  }
+
+  @Test
+  public void testRescheduledScheduleIsNotManagedAtItsOldTime() throws Exception {
+    RepairSchedule schedule = addSchedule(unit, DateTime.now().plusMillis(200));
+    SchedulingManager.start(context, 10, RUN_CREATION_TIMEOUT_MILLIS);
+
+    RepairSchedule rescheduled = schedule.with()
+        .nextActivation(DateTime.now().plusDays(1))
+        .build(schedule.getId());
+    context.storage.updateRepairSchedule(rescheduled);
+    SchedulingManager.scheduleChanged(rescheduled);
+
+    Thread.sleep(500);
+    verify(context.storage, never()).getRepairSchedule(schedule.getId());
+  }
+
+  @Test
+  public void testResumedScheduleIsManagedAtItsNewTime() throws Exception {
+    // a running repair of the unit keeps the manager from starting new ones
+    RepairRun run = context.storage.addRepairRun(new RepairRun.Builder(
+        "cluster", unit.getId(), DateTime.now(), 0.5, 1, RepairParallelism.PARALLEL));
+    context.storage.updateRepairRun(
+        run.with().runState(RepairRun.RunState.RUNNING).build(run.getId()));
+    RepairSchedule schedule = addSchedule(unit, RepairSchedule.State.RUNNING,
+                                          DateTime.now().plusDays(1));
+    SchedulingManager.start(context, 10, RUN_CREATION_TIMEOUT_MILLIS);
+
+    SchedulingManager.pauseRepairSchedule(context, schedule);
+    RepairSchedule paused = context.storage.getRepairSchedule(schedule.getId()).get();
+    assertEquals(RepairSchedule.State.PAUSED, paused.getState());
+    RepairSchedule moved = paused.with()
+        .nextActivation(DateTime.now().plusMillis(100))
+        .build(schedule.getId());
+    context.storage.updateRepairSchedule(moved);
+    SchedulingManager.resumeRepairSchedule(context, moved);
+
+    RepairSchedule managed = awaitManaged(moved);
+    assertEquals(RepairSchedule.State.RUNNING, managed.getState());
+    assertTrue(managed.getRunHistory().isEmpty());
+    assertEquals(1, context.storage.getRepairRunsForUnit(unit).size());
+  }
+
+  @Test
+  public void testLateScheduleCatchesUpOnePeriodPerWakeUp() throws Exception {
+    RepairSchedule schedule = addSchedule(unit, DateTime.now().minusDays(5).plusHours(1));
+    long start = System.currentTimeMillis();
+    SchedulingManager.start(context, 100, RUN_CREATION_TIMEOUT_MILLIS);
+
+    long deadline = start + AWAIT_MILLIS;
+    while (!nextActivation(schedule).isAfterNow()) {
+      assertTrue("schedule didn't catch up in time", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    // five periods late, so managed five times, at least the minimum interval apart
+    assertTrue(System.currentTimeMillis() - start >= 400);
+    assertEquals(schedule.getNextActivation().plusDays(5).getMillis(),
+                 nextActivation(schedule).getMillis());
+
+    Thread.sleep(300);
+    verify(context.storage, times(5)).updateRepairSchedule(any(RepairSchedule.class));
+  }
+
+  @Test
+  public void testHangingClusterDoesNotDelayOtherClusters() throws Exception {
+    final RepairUnit slowUnit = addRepairUnit("slow");
+    RepairRun run = context.storage.addRepairRun(new RepairRun.Builder(
+        "slow", slowUnit.getId(), DateTime.now(), 0.5, 1, RepairParallelism.PARALLEL));
+    context.storage.updateRepairRun(
+        run.with().runState(RepairRun.RunState.RUNNING).build(run.getId()));
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    doAnswer(new Answer<Collection<RepairRun>>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public Collection<RepairRun> answer(InvocationOnMock invocation) throws Throwable {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          interrupted.set(true);
+        }
+        return (Collection<RepairRun>) invocation.callRealMethod();
+      }
+    }).when(context.storage).getRepairRunsForUnit(argThat(new ArgumentMatcher<RepairUnit>() {
+      @Override
+      public boolean matches(Object repairUnit) {
+        return ((RepairUnit) repairUnit).getId() == slowUnit.getId();
+      }
+    }));
+    DateTime now = DateTime.now();
+    RepairSchedule hanging = addSchedule(slowUnit, RepairSchedule.State.RUNNING,
+                                         now.plusMillis(50));
+    RepairSchedule other = addSchedule(unit, now.plusMillis(100));
+
+    SchedulingManager.start(context, 10, 100);
+    awaitManaged(other);
+    // let the run creation timeout pass while the slow cluster still hangs
+    Thread.sleep(300);
+    assertEquals(hanging.getNextActivation().getMillis(), nextActivation(hanging).getMillis());
+
+    release.countDown();
+    awaitManaged(hanging);
+    assertFalse(interrupted.get());
+    Thread.sleep(200);
+    verify(context.storage, times(1)).getRepairRunsForUnit(any(RepairUnit.class));
+  }
+
+  private RepairUnit addRepairUnit(String clusterName) {
+    context.storage.addCluster(
+        new Cluster(clusterName, PARTITIONER, Sets.newHashSet(clusterName + "-seed")));
+    return context.storage.addRepairUnit(
+        new RepairUnit.Builder(clusterName, "keyspace", Sets.newHashSet("table")));
+  }
+
+  private RepairSchedule addSchedule(RepairUnit repairUnit, DateTime nextActivation) {
+    return addSchedule(repairUnit, RepairSchedule.State.PAUSED, nextActivation);
+  }
+
+  private RepairSchedule addSchedule(RepairUnit repairUnit, RepairSchedule.State state,
+                                     DateTime nextActivation) {
+    return context.storage.addRepairSchedule(new RepairSchedule.Builder(
+        repairUnit.getId(), state, 1, nextActivation, ImmutableList.<Long>of(), 10,
+        RepairParallelism.PARALLEL, 0.9, DateTime.now()));
+  }
+
+  private DateTime nextActivation(RepairSchedule schedule) {
+    return context.storage.getRepairSchedule(schedule.getId()).get().getNextActivation();
+  }
+
+  /**
+   * Waits until the schedule's next activation has been moved forward by a period.
+   */
+  private RepairSchedule awaitManaged(RepairSchedule schedule) throws InterruptedException {
+    long following = schedule.getFollowingActivation().getMillis();
+    long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+    while (nextActivation(schedule).getMillis() != following) {
+      assertTrue("schedule " + schedule.getId() + " wasn't managed in time",
+                 System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    return context.storage.getRepairSchedule(schedule.getId()).get();
+  }
+}
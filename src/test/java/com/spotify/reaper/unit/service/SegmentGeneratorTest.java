@@ -15,15 +15,19 @@ package com.spotify.reaper.unit.service;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import com.spotify.reaper.ReaperException;
 import com.spotify.reaper.service.RingRange;
 import com.spotify.reaper.service.SegmentGenerator;
+import com.spotify.reaper.service.Token;
 
 import org.junit.Test;
 
 import java.math.BigInteger;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 import javax.annotation.Nullable;
 
@@ -149,6 +153,76 @@ public class SegmentGeneratorTest {
     // This is because the tokens were supplied out of order.
   }
 
+  @Test
+  public void testMurmur3Ring() throws Exception {
+    List<BigInteger> tokens = Lists.newArrayList(
+        BigInteger.valueOf(Long.MIN_VALUE), BigInteger.ZERO);
+
+    SegmentGenerator generator = new SegmentGenerator("foo.bar.Murmur3Partitioner");
+    List<RingRange> segments = generator.generateSegments(4, tokens);
+    assertEquals(4, segments.size());
+    assertEquals("(-9223372036854775808,-4611686018427387904]", segments.get(0).toString());
+    assertEquals("(-4611686018427387904,0]", segments.get(1).toString());
+    assertEquals("(0,4611686018427387904]", segments.get(2).toString());
+    assertEquals("(4611686018427387904,-9223372036854775808]", segments.get(3).toString());
+  }
+
+  @Test
+  public void testMurmur3UnevenRing() throws Exception {
+    List<BigInteger> tokens = Lists.newArrayList(
+        BigInteger.valueOf(-7), BigInteger.valueOf(3), BigInteger.valueOf(Long.MAX_VALUE));
+
+    SegmentGenerator generator = new SegmentGenerator("foo.bar.Murmur3Partitioner");
+    List<RingRange> segments = generator.generateSegments(5, tokens);
+    // (-7,3] gets a single segment, the two halves of the ring get three each
+    assertEquals(7, segments.size());
+    assertEquals("(-7,3]", segments.get(0).toString());
+    assertEquals(Token.of(Long.MAX_VALUE), segments.get(3).getEndToken());
+    assertEquals(Token.of(-7), segments.get(6).getEndToken());
+    for (int i = 0; i < segments.size(); i++) {
+      assertEquals(segments.get(i).getEndToken(),
+                   segments.get((i + 1) % segments.size()).getStartToken());
+    }
+  }
+
+  @Test
+  public void testMurmur3SegmentsMatchBigIntegerSegments() throws Exception {
+    SegmentGenerator generator = new SegmentGenerator("foo.bar.Murmur3Partitioner");
+    Random random = new Random(42);
+    for (int ring = 0; ring < 50; ring++) {
+      // up to 256 vnodes on 4 nodes, with fewer segments than ranges or many more
+      TreeSet<Long> ringTokens = Sets.newTreeSet();
+      int tokenCount = 2 + random.nextInt(1023);
+      while (ringTokens.size() < tokenCount) {
+        ringTokens.add(random.nextLong());
+      }
+      List<BigInteger> tokens = Lists.newArrayList();
+      for (long token : ringTokens) {
+        tokens.add(BigInteger.valueOf(token));
+      }
+      int segmentCount = 1 + random.nextInt(20000);
+
+      List<RingRange> longSegments = generator.generateSegments(segmentCount, tokens);
+      List<RingRange> bigIntegerSegments =
+          generator.generateBigIntegerSegments(segmentCount, tokens);
+      assertEquals(bigIntegerSegments.size(), longSegments.size());
+      for (int i = 0; i < longSegments.size(); i++) {
+        assertEquals(bigIntegerSegments.get(i).getStartToken(),
+                     longSegments.get(i).getStartToken());
+        assertEquals(bigIntegerSegments.get(i).getEndToken(), longSegments.get(i).getEndToken());
+      }
+    }
+  }
+
+  @Test(expected = ReaperException.class)
+  public void testMurmur3DisorderedRing() throws Exception {
+    List<BigInteger> tokens = Lists.newArrayList(
+        BigInteger.ZERO, BigInteger.valueOf(-100), BigInteger.valueOf(100));
+
+    SegmentGenerator generator = new SegmentGenerator("foo.bar.Murmur3Partitioner");
+    generator.generateSegments(10, tokens);
+  }
+
   @Test
   public void testMax() throws Exception {
     BigInteger one = BigInteger.ONE;
@@ -13,18 +13,23 @@
  */
 package com.spotify.reaper.unit.service;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import com.spotify.reaper.AppContext;
 import com.spotify.reaper.ReaperException;
+import com.spotify.reaper.cassandra.HostLoad;
 import com.spotify.reaper.cassandra.JmxConnectionFactory;
 import com.spotify.reaper.cassandra.JmxProxy;
 import com.spotify.reaper.cassandra.RepairStatusHandler;
 import com.spotify.reaper.core.RepairRun;
 import com.spotify.reaper.core.RepairSegment;
 import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.HostLoadCache;
+import com.spotify.reaper.service.RepairManager;
 import com.spotify.reaper.service.RingRange;
 import com.spotify.reaper.service.SegmentRunner;
 import com.spotify.reaper.storage.IStorage;
@@ -42,15 +47,21 @@ import org.mockito.stubbing.Answer;
 
 import java.math.BigInteger;
 import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SegmentRunnerTest {
@@ -65,6 +76,8 @@ public class SegmentRunnerTest {
   public void timeoutTest() throws InterruptedException, ReaperException, ExecutionException {
     final AppContext context = new AppContext();
     context.storage = new MemoryStorage();
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 100, TimeUnit.MILLISECONDS, 1, TimeUnit.SECONDS);
     RepairUnit cf = context.storage.addRepairUnit(
         new RepairUnit.Builder("reaper", "reaper", Sets.newHashSet("reaper")));
     RepairRun run = context.storage.addRepairRun(
@@ -85,20 +98,25 @@ public class SegmentRunnerTest {
         JmxProxy jmx = mock(JmxProxy.class);
         when(jmx.getClusterName()).thenReturn("reaper");
         when(jmx.isConnectionAlive()).thenReturn(true);
-        when(jmx.tokenRangeToEndpoint(anyString(), any(RingRange.class)))
-            .thenReturn(Lists.newArrayList(""));
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
         when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
-                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString())))
+                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class)))
             .then(new Answer<Integer>() {
               @Override
               public Integer answer(InvocationOnMock invocation) {
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
                 assertEquals(RepairSegment.State.NOT_STARTED,
                              context.storage.getRepairSegment(segmentId).get().getState());
                 future.setValue(executor.submit(new Thread() {
                   @Override
                   public void run() {
-                    handler.get().handle(1, ActiveRepairService.Status.STARTED,
-                                         "Repair command 1 has started");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.STARTED,
+                                               "Repair command 1 has started");
                     assertEquals(RepairSegment.State.RUNNING,
                                  context.storage.getRepairSegment(segmentId).get().getState());
                   }
@@ -110,14 +128,100 @@ public class SegmentRunnerTest {
         return jmx;
       }
     };
-    SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 100);
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 100);
 
     future.getValue().get();
+    RepairSegment.State resultingState = result.get();
     executor.shutdown();
 
+    assertEquals(RepairSegment.State.NOT_STARTED, resultingState);
     assertEquals(RepairSegment.State.NOT_STARTED,
                  context.storage.getRepairSegment(segmentId).get().getState());
     assertEquals(1, context.storage.getRepairSegment(segmentId).get().getFailCount());
+    assertEquals(1, context.metricRegistry.counter(
+        MetricRegistry.name(SegmentRunner.class, "timeouts")).getCount());
+  }
+
+  @Test
+  public void timeoutBeforeStartTest() throws Exception {
+    final AppContext context = new AppContext();
+    context.storage = new MemoryStorage();
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 100, TimeUnit.MILLISECONDS, 1, TimeUnit.SECONDS);
+    RepairUnit cf = context.storage.addRepairUnit(
+        new RepairUnit.Builder("reaper", "reaper", Sets.newHashSet("reaper")));
+    RepairRun run = context.storage.addRepairRun(
+        new RepairRun.Builder("reaper", cf.getId(), DateTime.now(), 0.5, 1,
+                              RepairParallelism.PARALLEL));
+    context.storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ONE, BigInteger.ZERO),
+                                  cf.getId())), run.getId());
+    final long segmentId = context.storage.getNextFreeSegment(run.getId()).get().getId();
+
+    final JmxProxy jmx = mock(JmxProxy.class);
+    when(jmx.getClusterName()).thenReturn("reaper");
+    when(jmx.isConnectionAlive()).thenReturn(true);
+    when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+    when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+        Collections.<RingRange, List<String>>singletonMap(
+            new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
+    // the coordinator accepts the command, but never reports it as started
+    when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                           Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString()),
+                           any(RepairStatusHandler.class)))
+        .thenReturn(1);
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(Optional<RepairStatusHandler> handler, String host) {
+        return jmx;
+      }
+    };
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 100);
+
+    assertEquals(RepairSegment.State.NOT_STARTED, result.get());
+    RepairSegment segment = context.storage.getRepairSegment(segmentId).get();
+    assertEquals(RepairSegment.State.NOT_STARTED, segment.getState());
+    assertEquals(1, segment.getFailCount());
+    assertNull(segment.getRepairCommandId());
+    verify(jmx, never()).cancelAllRepairs();
+  }
+
+  @Test
+  public void adoptedTimeoutTest() throws Exception {
+    final AppContext context = new AppContext();
+    context.storage = new MemoryStorage();
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 100, TimeUnit.MILLISECONDS, 1, TimeUnit.SECONDS);
+    RepairUnit cf = context.storage.addRepairUnit(
+        new RepairUnit.Builder("reaper", "reaper", Sets.newHashSet("reaper")));
+    RepairRun run = context.storage.addRepairRun(
+        new RepairRun.Builder("reaper", cf.getId(), DateTime.now(), 0.5, 1,
+                              RepairParallelism.PARALLEL));
+    context.storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ONE, BigInteger.ZERO),
+                                  cf.getId())), run.getId());
+    RepairSegment segment = context.storage.getNextFreeSegment(run.getId()).get();
+    // the repair was triggered before a restart, and is still running on its coordinator
+    segment = segment.with()
+        .state(RepairSegment.State.RUNNING)
+        .coordinatorHost("")
+        .repairCommandId(1)
+        .startTime(DateTime.now())
+        .build(segment.getId());
+    context.storage.updateRepairSegment(segment);
+
+    JmxProxy jmx = mock(JmxProxy.class);
+    when(jmx.getHost()).thenReturn("");
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.adopt(context, segment, jmx, 100);
+
+    assertEquals(RepairSegment.State.NOT_STARTED, result.get());
+    RepairSegment adopted = context.storage.getRepairSegment(segment.getId()).get();
+    assertEquals(RepairSegment.State.NOT_STARTED, adopted.getState());
+    assertEquals(1, adopted.getFailCount());
+    verify(jmx).cancelAllRepairs();
   }
 
   @Test
@@ -138,6 +242,8 @@ public class SegmentRunnerTest {
 
     AppContext context = new AppContext();
     context.storage = storage;
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
     context.jmxConnectionFactory = new JmxConnectionFactory() {
       @Override
       public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
@@ -145,31 +251,36 @@ public class SegmentRunnerTest {
         JmxProxy jmx = mock(JmxProxy.class);
         when(jmx.getClusterName()).thenReturn("reaper");
         when(jmx.isConnectionAlive()).thenReturn(true);
-        when(jmx.tokenRangeToEndpoint(anyString(), any(RingRange.class)))
-            .thenReturn(Lists.newArrayList(""));
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
         when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
-                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString())))
+                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class)))
             .then(new Answer<Integer>() {
               @Override
               public Integer answer(InvocationOnMock invocation) {
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
                 assertEquals(RepairSegment.State.NOT_STARTED,
                              storage.getRepairSegment(segmentId).get().getState());
                 future.setValue(executor.submit(new Runnable() {
                   @Override
                   public void run() {
-                    handler.get().handle(1, ActiveRepairService.Status.STARTED,
-                                         "Repair command 1 has started");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.STARTED,
+                                               "Repair command 1 has started");
                     assertEquals(RepairSegment.State.RUNNING,
                                  storage.getRepairSegment(segmentId).get().getState());
                     // report about an unrelated repair. Shouldn't affect anything.
-                    handler.get().handle(2, ActiveRepairService.Status.SESSION_FAILED,
-                                         "Repair command 2 has failed");
-                    handler.get().handle(1, ActiveRepairService.Status.SESSION_SUCCESS,
-                                         "Repair session succeeded in command 1");
+                    repairStatusHandler.handle(2, ActiveRepairService.Status.SESSION_FAILED,
+                                               "Repair command 2 has failed");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.SESSION_SUCCESS,
+                                               "Repair session succeeded in command 1");
                     assertEquals(RepairSegment.State.RUNNING,
                                  storage.getRepairSegment(segmentId).get().getState());
-                    handler.get().handle(1, ActiveRepairService.Status.FINISHED,
-                                         "Repair command 1 has finished");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.FINISHED,
+                                               "Repair command 1 has finished");
                     assertEquals(RepairSegment.State.DONE,
                                  storage.getRepairSegment(segmentId).get().getState());
                   }
@@ -181,13 +292,18 @@ public class SegmentRunnerTest {
         return jmx;
       }
     };
-    SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 1000);
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 1000);
 
     future.getValue().get();
+    RepairSegment.State resultingState = result.get();
     executor.shutdown();
 
+    assertEquals(RepairSegment.State.DONE, resultingState);
     assertEquals(RepairSegment.State.DONE, storage.getRepairSegment(segmentId).get().getState());
     assertEquals(0, storage.getRepairSegment(segmentId).get().getFailCount());
+    assertEquals(1, context.metricRegistry.histogram(
+        MetricRegistry.name(SegmentRunner.class, "duration", "reaper", "reaper")).getCount());
   }
 
   @Test
@@ -209,6 +325,8 @@ public class SegmentRunnerTest {
 
     AppContext context = new AppContext();
     context.storage = storage;
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
     context.jmxConnectionFactory = new JmxConnectionFactory() {
       @Override
       public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
@@ -216,28 +334,33 @@ public class SegmentRunnerTest {
         JmxProxy jmx = mock(JmxProxy.class);
         when(jmx.getClusterName()).thenReturn("reaper");
         when(jmx.isConnectionAlive()).thenReturn(true);
-        when(jmx.tokenRangeToEndpoint(anyString(), any(RingRange.class)))
-            .thenReturn(Lists.newArrayList(""));
+        when(jmx.getLoad()).thenReturn(new HostLoad(0, false));
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("")));
         when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
-                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString())))
+                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class)))
             .then(new Answer<Integer>() {
               @Override
               public Integer answer(InvocationOnMock invocation) {
+                final RepairStatusHandler repairStatusHandler =
+                    (RepairStatusHandler) invocation.getArguments()[5];
                 assertEquals(RepairSegment.State.NOT_STARTED,
                              storage.getRepairSegment(segmentId).get().getState());
                 future.setValue(executor.submit(new Runnable() {
                   @Override
                   public void run() {
-                    handler.get().handle(1, ActiveRepairService.Status.STARTED,
-                                         "Repair command 1 has started");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.STARTED,
+                                               "Repair command 1 has started");
                     assertEquals(RepairSegment.State.RUNNING,
                                  storage.getRepairSegment(segmentId).get().getState());
-                    handler.get().handle(1, ActiveRepairService.Status.SESSION_SUCCESS,
-                                         "Repair session succeeded in command 1");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.SESSION_SUCCESS,
+                                               "Repair session succeeded in command 1");
                     assertEquals(RepairSegment.State.RUNNING,
                                  storage.getRepairSegment(segmentId).get().getState());
-                    handler.get().handle(1, ActiveRepairService.Status.SESSION_FAILED,
-                                         "Repair command 1 has failed");
+                    repairStatusHandler.handle(1, ActiveRepairService.Status.SESSION_FAILED,
+                                               "Repair command 1 has failed");
                     assertEquals(RepairSegment.State.NOT_STARTED,
                                  storage.getRepairSegment(segmentId).get().getState());
                   }
@@ -250,13 +373,130 @@ public class SegmentRunnerTest {
         return jmx;
       }
     };
-    SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 1000);
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton(""), 1000);
 
     future.getValue().get();
+    RepairSegment.State resultingState = result.get();
     executor.shutdown();
 
+    assertEquals(RepairSegment.State.NOT_STARTED, resultingState);
     assertEquals(RepairSegment.State.NOT_STARTED,
                  storage.getRepairSegment(segmentId).get().getState());
     assertEquals(1, storage.getRepairSegment(segmentId).get().getFailCount());
+    assertEquals(1, context.metricRegistry.counter(
+        MetricRegistry.name(SegmentRunner.class, "postponed", "session-failed")).getCount());
+  }
+
+  @Test
+  public void failedProbeTest() throws Exception {
+    assertProbePostponesSegment(new Answer<HostLoad>() {
+      @Override
+      public HostLoad answer(InvocationOnMock invocation) {
+        throw new IllegalStateException("lost the connection while reading the load");
+      }
+    });
+  }
+
+  @Test
+  public void hangingProbeTest() throws Exception {
+    assertProbePostponesSegment(new Answer<HostLoad>() {
+      @Override
+      public HostLoad answer(InvocationOnMock invocation) throws InterruptedException {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+        return new HostLoad(0, false);
+      }
+    });
+  }
+
+  private void assertProbePostponesSegment(Answer<HostLoad> load) throws Exception {
+    final AppContext context = new AppContext();
+    context.storage = new MemoryStorage();
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+    context.repairManager.setProbeTimeout(100, TimeUnit.MILLISECONDS);
+    RepairUnit cf = context.storage.addRepairUnit(
+        new RepairUnit.Builder("reaper", "reaper", Sets.newHashSet("reaper")));
+    RepairRun run = context.storage.addRepairRun(
+        new RepairRun.Builder("reaper", cf.getId(), DateTime.now(), 0.5, 1,
+                              RepairParallelism.PARALLEL));
+    context.storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ONE, BigInteger.ZERO),
+                                  cf.getId())), run.getId());
+    final long segmentId = context.storage.getNextFreeSegment(run.getId()).get().getId();
+
+    final JmxProxy jmx = mock(JmxProxy.class);
+    when(jmx.getHost()).thenReturn("host1");
+    when(jmx.getClusterName()).thenReturn("reaper");
+    when(jmx.isConnectionAlive()).thenReturn(true);
+    when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+        Collections.<RingRange, List<String>>singletonMap(
+            new RingRange(BigInteger.ZERO, BigInteger.ZERO), Lists.newArrayList("host1")));
+    when(jmx.getLoad()).then(load);
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(Optional<RepairStatusHandler> handler, String host) {
+        return jmx;
+      }
+    };
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton("host1"), 1000);
+
+    assertEquals(RepairSegment.State.NOT_STARTED, result.get(5, TimeUnit.SECONDS));
+    assertEquals(1, context.storage.getRepairSegment(segmentId).get().getFailCount());
+    assertEquals(1, context.metricRegistry.counter(
+        MetricRegistry.name(SegmentRunner.class, "postponed", "replicas-unreachable")).getCount());
+    verify(jmx, never()).triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                                       Matchers.<RepairParallelism>any(),
+                                       Matchers.<Set<String>>any(),
+                                       any(RepairStatusHandler.class));
+  }
+
+  @Test
+  public void pendingCompactionsTest() throws Exception {
+    final AppContext context = new AppContext();
+    context.storage = new MemoryStorage();
+    context.repairManager = new RepairManager();
+    context.repairManager.initializeThreadPool(1, 1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+    RepairUnit cf = context.storage.addRepairUnit(
+        new RepairUnit.Builder("reaper", "reaper", Sets.newHashSet("reaper")));
+    RepairRun run = context.storage.addRepairRun(
+        new RepairRun.Builder("reaper", cf.getId(), DateTime.now(), 0.5, 1,
+                              RepairParallelism.PARALLEL));
+    context.storage.addRepairSegments(Collections.singleton(
+        new RepairSegment.Builder(run.getId(), new RingRange(BigInteger.ONE, BigInteger.ZERO),
+                                  cf.getId())), run.getId());
+    final long segmentId = context.storage.getNextFreeSegment(run.getId()).get().getId();
+    context.hostLoads.setMetricRegistry(context.metricRegistry);
+
+    context.jmxConnectionFactory = new JmxConnectionFactory() {
+      @Override
+      public JmxProxy connect(final Optional<RepairStatusHandler> handler, String host)
+          throws ReaperException {
+        JmxProxy jmx = mock(JmxProxy.class);
+        when(jmx.getHost()).thenReturn(host);
+        when(jmx.getClusterName()).thenReturn("reaper");
+        when(jmx.isConnectionAlive()).thenReturn(true);
+        when(jmx.getRangeToEndpointMap(anyString())).thenReturn(
+            Collections.<RingRange, List<String>>singletonMap(
+                new RingRange(BigInteger.ZERO, BigInteger.ZERO),
+                Lists.newArrayList("host1", "host2", "host3")));
+        when(jmx.getLoad()).thenReturn(new HostLoad(host.equals("host2") ? 100 : 0, false));
+        when(jmx.triggerRepair(any(BigInteger.class), any(BigInteger.class), anyString(),
+                               Matchers.<RepairParallelism>any(), Sets.newHashSet(anyString()),
+                               any(RepairStatusHandler.class)))
+            .thenThrow(new AssertionError("the segment should not be repaired"));
+        return jmx;
+      }
+    };
+    ListenableFuture<RepairSegment.State> result =
+        SegmentRunner.triggerRepair(context, segmentId, Collections.singleton("host1"), 1000);
+
+    assertEquals(RepairSegment.State.NOT_STARTED, result.get());
+    assertEquals(1, context.storage.getRepairSegment(segmentId).get().getFailCount());
+    assertEquals(1, context.metricRegistry.counter(
+        MetricRegistry.name(SegmentRunner.class, "postponed", "pending-compactions")).getCount());
+    assertEquals(1, context.metricRegistry.timer(
+        MetricRegistry.name(HostLoadCache.class, "fetch", "host2")).getCount());
   }
 }
@@ -0,0 +1,77 @@
+package com.spotify.reaper.unit.service;
+
+import com.spotify.reaper.service.Token;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenTest {
+
+  private static final String RANDOM_MAX = "170141183460469231731687303715884105727";
+
+  @Test
+  public void testConversions() throws Exception {
+    assertEquals(BigInteger.valueOf(-42), Token.of(-42).toBigInteger());
+    assertEquals(Token.of(-42), Token.of(BigInteger.valueOf(-42)));
+    assertEquals(Token.of(Long.MIN_VALUE), Token.parse("-9223372036854775808"));
+    assertTrue(Token.parse("-9223372036854775808").isLong());
+
+    Token big = Token.parse(RANDOM_MAX);
+    assertFalse(big.isLong());
+    assertEquals(new BigInteger(RANDOM_MAX), big.toBigInteger());
+    assertEquals(RANDOM_MAX, big.toString());
+
+    BigInteger twoPow64 = BigInteger.ONE.shiftLeft(64);
+    assertEquals(twoPow64, Token.of(twoPow64).toBigInteger());
+    assertEquals(twoPow64.subtract(BigInteger.ONE),
+                 Token.of(twoPow64.subtract(BigInteger.ONE)).toBigInteger());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooBig() throws Exception {
+    Token.of(BigInteger.ONE.shiftLeft(127));
+  }
+
+  @Test
+  public void testCompare() throws Exception {
+    assertTrue(Token.of(-1).compareTo(Token.of(1)) < 0);
+    assertTrue(Token.of(Long.MIN_VALUE).compareTo(Token.of(Long.MAX_VALUE)) < 0);
+    assertTrue(Token.of(Long.MAX_VALUE).compareTo(Token.parse("9223372036854775808")) < 0);
+    assertTrue(Token.parse(RANDOM_MAX).compareTo(Token.of(0)) > 0);
+    // lower halves compare unsigned
+    assertTrue(Token.parse("18446744073709551615").compareTo(Token.parse("18446744073709551616"))
+               < 0);
+    assertTrue(Token.parse("18446744073709551615").compareTo(Token.parse("1")) > 0);
+    assertEquals(0, Token.parse("123").compareTo(Token.of(123)));
+  }
+
+  @Test
+  public void testArithmetic() throws Exception {
+    assertEquals(Token.of(-2), Token.of(40).subtract(Token.of(42)));
+    assertEquals(Token.of(82), Token.of(40).add(Token.of(42)));
+    // carries and borrows between the halves
+    BigInteger twoPow64 = BigInteger.ONE.shiftLeft(64);
+    assertEquals(Token.of(twoPow64), Token.of(Long.MAX_VALUE).add(Token.of(Long.MAX_VALUE))
+        .add(Token.of(2)));
+    assertEquals(Token.of(Long.MIN_VALUE),
+                 Token.of(Long.MAX_VALUE).subtract(Token.of(twoPow64.subtract(BigInteger.ONE))));
+    // wraps around modulo 2^128
+    Token randomMax = Token.parse(RANDOM_MAX);
+    assertTrue(randomMax.add(Token.of(1)).compareTo(Token.of(0)) < 0);
+    assertEquals(Token.of(0), randomMax.add(Token.of(1)).add(randomMax).add(Token.of(1)));
+  }
+
+  @Test
+  public void testCompareUnsigned() throws Exception {
+    Token twoPow127 = Token.parse(RANDOM_MAX).add(Token.of(1));
+    assertTrue(twoPow127.compareUnsigned(Token.parse(RANDOM_MAX)) > 0);
+    assertTrue(Token.of(-1).compareUnsigned(twoPow127) > 0);
+    assertTrue(Token.of(1).compareUnsigned(Token.of(2)) < 0);
+    assertEquals(0, Token.of(-1).compareUnsigned(Token.of(-1)));
+  }
+}
@@ -0,0 +1,77 @@
+package com.spotify.reaper.unit.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.storage.CachingStorage;
+import com.spotify.reaper.storage.MemoryStorage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CachingStorageTest {
+
+  private MemoryStorage storage;
+  private CachingStorage cachingStorage;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = spy(new MemoryStorage());
+    cachingStorage = new CachingStorage(storage, 10);
+  }
+
+  @Test
+  public void testCachesClustersUntilUpdated() throws Exception {
+    storage.addCluster(new Cluster("cluster", "partitioner", Sets.newHashSet("host1")));
+    cachingStorage.getCluster("cluster");
+    cachingStorage.getCluster("cluster");
+    verify(storage, times(1)).getCluster("cluster");
+
+    cachingStorage.updateCluster(new Cluster("cluster", "partitioner", Sets.newHashSet("host2")));
+    assertEquals(Sets.newHashSet("host2"),
+                 cachingStorage.getCluster("cluster").get().getSeedHosts());
+    verify(storage, times(2)).getCluster("cluster");
+  }
+
+  @Test
+  public void testDoesNotCacheAbsentValues() throws Exception {
+    assertFalse(cachingStorage.getCluster("cluster").isPresent());
+    storage.addCluster(new Cluster("cluster", "partitioner", Sets.newHashSet("host1")));
+    assertEquals("cluster", cachingStorage.getCluster("cluster").get().getName());
+  }
+
+  @Test
+  public void testCachesRepairUnitsByIdAndByKey() throws Exception {
+    RepairUnit unit = cachingStorage.addRepairUnit(
+        new RepairUnit.Builder("cluster", "keyspace", Sets.newHashSet("table1", "table2")));
+    assertEquals(unit, cachingStorage.getRepairUnit(unit.getId()).get());
+    verify(storage, times(0)).getRepairUnit(unit.getId());
+
+    cachingStorage.getRepairUnit("cluster", "keyspace", Sets.newHashSet("table1", "table2"));
+    cachingStorage.getRepairUnit("cluster", "keyspace", Sets.newHashSet("table2", "table1"));
+    verify(storage, times(1))
+        .getRepairUnit("cluster", "keyspace", Sets.newHashSet("table1", "table2"));
+  }
+
+  @Test
+  public void testReportsHitRatio() throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    cachingStorage.setMetricRegistry(metricRegistry);
+    storage.addCluster(new Cluster("cluster", "partitioner", Sets.newHashSet("host1")));
+    for (int i = 0; i < 4; i++) {
+      cachingStorage.getCluster("cluster");
+    }
+    Gauge hitRatio = metricRegistry.getGauges().get(
+        MetricRegistry.name(CachingStorage.class, "clusters", "hit-ratio"));
+    assertEquals(0.75, (Double) hitRatio.getValue(), 0.001);
+  }
+}
@@ -0,0 +1,173 @@
+package com.spotify.reaper.unit.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import com.spotify.reaper.core.Cluster;
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSchedule;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.storage.EmbeddedStorage;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmbeddedStorageTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private static RingRange range(long start, long end) {
+    return new RingRange(BigInteger.valueOf(start), BigInteger.valueOf(end));
+  }
+
+  private static long populate(EmbeddedStorage storage) {
+    storage.addCluster(new Cluster("cluster", "partitioner", Sets.newHashSet("host1", "host2")));
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder("cluster", "keyspace", Sets.newHashSet("table")));
+    DateTime created = new DateTime(1000000L);
+    RepairRun run = storage.addRepairRun(new RepairRun.Builder(
+        "cluster", unit.getId(), created, 0.5, 2, RepairParallelism.PARALLEL).owner("owner"));
+    storage.addRepairSegments(Lists.newArrayList(
+        new RepairSegment.Builder(run.getId(), range(0, 100), unit.getId()),
+        new RepairSegment.Builder(run.getId(), range(100, 0), unit.getId())), run.getId());
+    RepairSegment segment = storage.getNextFreeSegment(run.getId()).get();
+    storage.updateRepairSegment(segment.with().state(RepairSegment.State.RUNNING)
+                                    .coordinatorHost("host1").repairCommandId(42)
+                                    .startTime(created).build(segment.getId()));
+    storage.updateRepairRun(run.with().runState(RepairRun.RunState.RUNNING)
+                                .startTime(created).build(run.getId()));
+    storage.addRepairSchedule(new RepairSchedule.Builder(
+        unit.getId(), RepairSchedule.State.RUNNING, 7, created,
+        ImmutableList.of(run.getId()), 2, RepairParallelism.PARALLEL, 0.5, created));
+    return run.getId();
+  }
+
+  private static void assertRestored(EmbeddedStorage storage, long runId) {
+    assertEquals(Sets.newHashSet("host1", "host2"),
+                 storage.getCluster("cluster").get().getSeedHosts());
+    RepairRun run = storage.getRepairRun(runId).get();
+    assertEquals(RepairRun.RunState.RUNNING, run.getRunState());
+    assertEquals("owner", run.getOwner());
+    assertEquals(new DateTime(1000000L), run.getStartTime());
+    assertEquals(1, storage.getRepairRunsForCluster("cluster").size());
+    assertTrue(storage.getRepairUnit("cluster", "keyspace", Sets.newHashSet("table")).isPresent());
+
+    RepairSegment running = storage.getSegmentsWithState(runId, RepairSegment.State.RUNNING)
+        .iterator().next();
+    assertEquals(Integer.valueOf(42), running.getRepairCommandId());
+    assertEquals("host1", running.getCoordinatorHost());
+    assertEquals(BigInteger.valueOf(100),
+                 storage.getNextFreeSegment(runId).get().getStartToken());
+
+    RepairSchedule schedule = storage.getAllRepairSchedules().iterator().next();
+    assertEquals(ImmutableList.of(runId), schedule.getRunHistory());
+    assertEquals(7, schedule.getDaysBetween());
+  }
+
+  @Test
+  public void testRestoreFromJournal() throws Exception {
+    EmbeddedStorage storage = new EmbeddedStorage(directory);
+    long runId = populate(storage);
+    storage.close();
+
+    EmbeddedStorage restored = new EmbeddedStorage(directory);
+    assertRestored(restored, runId);
+
+    // new ids don't collide with restored ones
+    RepairRun another = restored.addRepairRun(new RepairRun.Builder(
+        "cluster", 1, DateTime.now(), 0.5, 2, RepairParallelism.PARALLEL));
+    assertTrue(another.getId() > runId);
+    restored.close();
+  }
+
+  @Test
+  public void testRestoreAfterCompaction() throws Exception {
+    // compacts the journal after every few changes
+    EmbeddedStorage storage = new EmbeddedStorage(directory, 3);
+    long runId = populate(storage);
+    storage.close();
+
+    // the journals set aside were all replaced by the snapshot once closed
+    assertEquals(Sets.newHashSet("journal.json", "snapshot.json"),
+                 Sets.newHashSet(directory.list()));
+    EmbeddedStorage restored = new EmbeddedStorage(directory, 3);
+    assertRestored(restored, runId);
+    restored.close();
+  }
+
+  @Test
+  public void testRestoreFromJournalsSetAside() throws Exception {
+    EmbeddedStorage storage = new EmbeddedStorage(directory);
+    long runId = populate(storage);
+    storage.close();
+    // as if Reaper stopped before the journal set aside was compacted
+    assertTrue(new File(directory, "journal.json")
+                   .renameTo(new File(directory, "journal.7.json")));
+    Files.append("{\"type\":\"run\",\"value\":{\"id\":",
+                 new File(directory, "journal.7.json"), Charsets.UTF_8);
+
+    EmbeddedStorage restored = new EmbeddedStorage(directory);
+    assertRestored(restored, runId);
+    restored.close();
+    assertEquals(Sets.newHashSet("journal.json", "snapshot.json"),
+                 Sets.newHashSet(directory.list()));
+  }
+
+  @Test
+  public void testJournalsNothingForUnknownEntities() throws Exception {
+    EmbeddedStorage storage = new EmbeddedStorage(directory);
+    long runId = populate(storage);
+    RepairRun run = storage.getRepairRun(runId).get();
+    long journalLength = new File(directory, "journal.json").length();
+
+    assertFalse(storage.updateRepairRun(run.with().owner("other").build(runId + 1)));
+    assertFalse(storage.updateCluster(new Cluster("other", null, Sets.newHashSet("host"))));
+    assertEquals(journalLength, new File(directory, "journal.json").length());
+    storage.close();
+  }
+
+  @Test
+  public void testIgnoresIncompleteLastJournalRecord() throws Exception {
+    EmbeddedStorage storage = new EmbeddedStorage(directory);
+    long runId = populate(storage);
+    storage.close();
+    appendToJournal("{\"type\":\"run\",\"value\":{\"id\":");
+
+    EmbeddedStorage restored = new EmbeddedStorage(directory);
+    assertRestored(restored, runId);
+    restored.close();
+  }
+
+  private void appendToJournal(String text) throws IOException {
+    Files.append(text, new File(directory, "journal.json"), Charsets.UTF_8);
+  }
+}
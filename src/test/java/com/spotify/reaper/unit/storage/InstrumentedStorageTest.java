@@ -0,0 +1,73 @@
+package com.spotify.reaper.unit.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.storage.IStorage;
+import com.spotify.reaper.storage.InstrumentedStorage;
+import com.spotify.reaper.storage.MemoryStorage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InstrumentedStorageTest {
+
+  private MetricRegistry metricRegistry;
+  private IStorage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    metricRegistry = new MetricRegistry();
+    storage = InstrumentedStorage.instrument(new MemoryStorage(), metricRegistry, 1000);
+  }
+
+  @Test
+  public void testTimesCallsPerMethod() throws Exception {
+    storage.getRepairRun(1);
+    storage.getRepairRun(2);
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder("cluster", "keyspace", Sets.newHashSet("table")));
+    storage.getRepairUnit(unit.getId());
+    storage.getRepairUnit("cluster", "keyspace", Sets.newHashSet("table"));
+
+    assertEquals(2, metricRegistry.timer(
+        MetricRegistry.name(IStorage.class, "getRepairRun")).getCount());
+    assertEquals(1, metricRegistry.timer(
+        MetricRegistry.name(IStorage.class, "getRepairUnit", "long")).getCount());
+    assertEquals(1, metricRegistry.timer(
+        MetricRegistry.name(IStorage.class, "getRepairUnit", "String-String-Set")).getCount());
+  }
+
+  @Test
+  public void testCountsReturnedRows() throws Exception {
+    storage.getSegmentsWithState(1, RepairSegment.State.DONE);
+    assertEquals(1, metricRegistry.histogram(MetricRegistry.name(
+        IStorage.class, "getSegmentsWithState", "rows")).getCount());
+    assertEquals(0, metricRegistry.histogram(MetricRegistry.name(
+        IStorage.class, "getSegmentsWithState", "rows")).getSnapshot().getMax());
+  }
+
+  @Test
+  public void testRethrowsStorageExceptions() throws Exception {
+    IStorage failing = mock(IStorage.class);
+    IllegalStateException failure = new IllegalStateException("storage is down");
+    when(failing.getClusters()).thenThrow(failure);
+    IStorage instrumented = InstrumentedStorage.instrument(failing, metricRegistry, 1000);
+    try {
+      instrumented.getClusters();
+      fail("expected the exception of the storage");
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(1, metricRegistry.timer(
+        MetricRegistry.name(IStorage.class, "getClusters")).getCount());
+  }
+}
@@ -0,0 +1,193 @@
+package com.spotify.reaper.unit.storage;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import com.spotify.reaper.core.RepairRun;
+import com.spotify.reaper.core.RepairSegment;
+import com.spotify.reaper.core.RepairUnit;
+import com.spotify.reaper.service.RingRange;
+import com.spotify.reaper.storage.MemoryStorage;
+import com.spotify.reaper.storage.RepairRunSummary;
+
+import org.apache.cassandra.repair.RepairParallelism;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryStorageTest {
+
+  private static final long RUN_ID = 1L;
+  private static final long UNIT_ID = 2L;
+
+  private MemoryStorage storage;
+
+  private static RingRange range(long start, long end) {
+    return new RingRange(BigInteger.valueOf(start), BigInteger.valueOf(end));
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    storage = new MemoryStorage();
+    // added out of token order, the last one wrapping around the ring
+    List<RepairSegment.Builder> segments = Lists.newArrayList(
+        new RepairSegment.Builder(RUN_ID, range(100, 200), UNIT_ID),
+        new RepairSegment.Builder(RUN_ID, range(0, 100), UNIT_ID),
+        new RepairSegment.Builder(RUN_ID, range(200, 300), UNIT_ID),
+        new RepairSegment.Builder(RUN_ID, range(300, 0), UNIT_ID));
+    storage.addRepairSegments(segments, RUN_ID);
+  }
+
+  @Test
+  public void testNextFreeSegmentOrdersByFailCountThenToken() throws Exception {
+    RepairSegment first = storage.getNextFreeSegment(RUN_ID).get();
+    assertEquals(BigInteger.ZERO, first.getStartToken());
+
+    storage.updateRepairSegment(first.with().failCount(1).build(first.getId()));
+    assertEquals(BigInteger.valueOf(100), storage.getNextFreeSegment(RUN_ID).get().getStartToken());
+
+    RepairSegment second = storage.getNextFreeSegment(RUN_ID).get();
+    storage.updateRepairSegment(
+        second.with().state(RepairSegment.State.RUNNING).build(second.getId()));
+    assertEquals(BigInteger.valueOf(200), storage.getNextFreeSegment(RUN_ID).get().getStartToken());
+
+    assertFalse(storage.getNextFreeSegment(RUN_ID + 1).isPresent());
+  }
+
+  @Test
+  public void testNextFreeSegmentInRange() throws Exception {
+    assertEquals(BigInteger.valueOf(100),
+                 storage.getNextFreeSegmentInRange(RUN_ID, range(50, 250)).get().getStartToken());
+    assertEquals(BigInteger.valueOf(300),
+                 storage.getNextFreeSegmentInRange(RUN_ID, range(250, 50)).get().getStartToken());
+    assertEquals(BigInteger.ZERO,
+                 storage.getNextFreeSegmentInRange(RUN_ID, range(300, 100)).get().getStartToken());
+    assertFalse(storage.getNextFreeSegmentInRange(RUN_ID, range(10, 90)).isPresent());
+
+    // the whole ring
+    RepairSegment retried = storage.getNextFreeSegmentInRange(RUN_ID, range(0, 0)).get();
+    assertEquals(BigInteger.ZERO, retried.getStartToken());
+    storage.updateRepairSegment(retried.with().failCount(2).build(retried.getId()));
+    assertEquals(BigInteger.valueOf(100),
+                 storage.getNextFreeSegmentInRange(RUN_ID, range(0, 0)).get().getStartToken());
+  }
+
+  @Test
+  public void testClaimNextFreeSegment() throws Exception {
+    RepairSegment claimed = storage.claimNextFreeSegment(RUN_ID).get();
+    assertEquals(BigInteger.ZERO, claimed.getStartToken());
+    assertEquals(RepairSegment.State.RUNNING, claimed.getState());
+    assertEquals(RepairSegment.State.RUNNING,
+                 storage.getRepairSegment(claimed.getId()).get().getState());
+    assertEquals(BigInteger.valueOf(100), storage.getNextFreeSegment(RUN_ID).get().getStartToken());
+
+    assertEquals(BigInteger.valueOf(300), storage.claimNextFreeSegmentInRange(
+        RUN_ID, range(250, 100)).get().getStartToken());
+    assertFalse(storage.claimNextFreeSegmentInRange(RUN_ID, range(250, 100)).isPresent());
+
+    assertTrue(storage.claimNextFreeSegment(RUN_ID).isPresent());
+    assertTrue(storage.claimNextFreeSegment(RUN_ID).isPresent());
+    assertFalse(storage.claimNextFreeSegment(RUN_ID).isPresent());
+    assertEquals(4, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.RUNNING));
+  }
+
+  @Test
+  public void testCountsFollowUpdates() throws Exception {
+    assertEquals(4, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.NOT_STARTED));
+    assertEquals(0, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.RUNNING));
+
+    RepairSegment segment = storage.getNextFreeSegment(RUN_ID).get();
+    assertTrue(storage.updateRepairSegment(
+        segment.with().state(RepairSegment.State.RUNNING).build(segment.getId())));
+    assertTrue(storage.updateRepairSegment(
+        segment.with().state(RepairSegment.State.DONE).build(segment.getId())));
+
+    assertEquals(3, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.NOT_STARTED));
+    assertEquals(0, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.RUNNING));
+    assertEquals(1, storage.getSegmentAmountForRepairRun(RUN_ID, RepairSegment.State.DONE));
+    assertEquals(segment.getId(), storage.getSegmentsWithState(RUN_ID, RepairSegment.State.DONE)
+        .iterator().next().getId());
+    assertEquals(0, storage.getSegmentAmountForRepairRun(RUN_ID + 1, RepairSegment.State.DONE));
+
+    assertFalse(storage.updateRepairSegment(segment.with().build(segment.getId() + 100)));
+  }
+
+  @Test
+  public void testRepairRunIndexes() throws Exception {
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder("Cluster", "keyspace", Collections.<String>emptySet()));
+    RepairRun first = storage.addRepairRun(new RepairRun.Builder(
+        "Cluster", unit.getId(), DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+    RepairRun second = storage.addRepairRun(new RepairRun.Builder(
+        "cluster", unit.getId() + 1, DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+    storage.addRepairRun(new RepairRun.Builder(
+        "other", unit.getId(), DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+
+    assertEquals(2, storage.getRepairRunsForCluster("CLUSTER").size());
+    assertEquals(2, storage.getRepairRunIdsForCluster("cluster").size());
+    assertTrue(storage.getRepairRunsForCluster("missing").isEmpty());
+    assertEquals(2, storage.getRepairRunsForUnit(unit).size());
+    assertEquals(3, storage.getRepairRunsWithState(RepairRun.RunState.NOT_STARTED).size());
+
+    assertTrue(storage.updateRepairRun(
+        first.with().runState(RepairRun.RunState.RUNNING).build(first.getId())));
+    assertTrue(storage.updateRepairRun(
+        second.with().runState(RepairRun.RunState.RUNNING).build(second.getId())));
+    assertTrue(storage.updateRepairRun(
+        second.with().runState(RepairRun.RunState.DONE).build(second.getId())));
+
+    assertEquals(1, storage.getRepairRunsWithState(RepairRun.RunState.NOT_STARTED).size());
+    assertEquals(first.getId(), Iterables.getOnlyElement(
+        storage.getRepairRunsWithState(RepairRun.RunState.RUNNING)).getId());
+    assertEquals(second.getId(), Iterables.getOnlyElement(
+        storage.getRepairRunsWithState(RepairRun.RunState.DONE)).getId());
+    assertFalse(storage.updateRepairRun(first.with().build(first.getId() + 100)));
+  }
+
+  @Test
+  public void testRepairRunSummaries() throws Exception {
+    RepairUnit unit = storage.addRepairUnit(
+        new RepairUnit.Builder("cluster", "keyspace", Collections.<String>emptySet()));
+    RepairRun first = storage.addRepairRun(new RepairRun.Builder(
+        "cluster", unit.getId(), DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+    RepairRun second = storage.addRepairRun(new RepairRun.Builder(
+        "Cluster", unit.getId(), DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+    RepairRun other = storage.addRepairRun(new RepairRun.Builder(
+        "other", unit.getId(), DateTime.now(), 0.5, 4, RepairParallelism.PARALLEL));
+    assertEquals(RUN_ID, first.getId());
+    storage.updateRepairRun(first.with().runState(RepairRun.RunState.RUNNING).build(RUN_ID));
+    RepairSegment segment = storage.claimNextFreeSegment(RUN_ID).get();
+    storage.updateRepairSegment(segment.with().state(RepairSegment.State.DONE).build(
+        segment.getId()));
+
+    Set<RepairRun.RunState> anyState = EnumSet.noneOf(RepairRun.RunState.class);
+    List<RepairRunSummary> all = Lists.newArrayList(
+        storage.getRepairRunSummaries(Optional.<String>absent(), anyState, 0, 10));
+    assertEquals(3, all.size());
+    // newest first
+    assertEquals(other.getId(), all.get(0).getRepairRun().getId());
+    assertEquals(RUN_ID, all.get(2).getRepairRun().getId());
+    assertEquals(1, all.get(2).getSegmentsRepaired());
+
+    List<RepairRunSummary> page = Lists.newArrayList(
+        storage.getRepairRunSummaries(Optional.of("CLUSTER"), anyState, 1, 1));
+    assertEquals(RUN_ID, Iterables.getOnlyElement(page).getRepairRun().getId());
+    assertTrue(storage.getRepairRunSummaries(Optional.of("cluster"), anyState, 2, 1).isEmpty());
+
+    Collection<RepairRunSummary> notStarted = storage.getRepairRunSummaries(
+        Optional.of("cluster"), EnumSet.of(RepairRun.RunState.NOT_STARTED), 0, 10);
+    assertEquals(second.getId(), Iterables.getOnlyElement(notStarted).getRepairRun().getId());
+  }
+}